@@ -12,8 +12,7 @@ public class App {
 
 
     public static void main(String[] args) throws IOException {
-        try {
-            KeyValueStore kv = KeyValueStore.getInstance(AppConstants.BASE_DB_PATH);
+        try (KeyValueStore kv = KeyValueStore.open(AppConstants.BASE_DB_PATH)) {
             
             System.out.println("testing put operations...");
             kv.put("key1", "value1");
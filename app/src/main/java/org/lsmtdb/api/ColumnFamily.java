@@ -0,0 +1,84 @@
+package org.lsmtdb.api;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.lsmtdb.core.compaction.CompactionManager;
+import org.lsmtdb.core.compaction.CompactionPools;
+import org.lsmtdb.core.memtable.Memtable;
+import org.lsmtdb.core.memtable.WriteBufferManager;
+import org.lsmtdb.core.ratelimit.RateLimiter;
+import org.lsmtdb.core.snapshot.SnapshotList;
+import org.lsmtdb.core.sstable.SSTableMetadata;
+import org.lsmtdb.core.sstable.SSTableSearch;
+import org.lsmtdb.core.sstable.SSTableWriter;
+import org.lsmtdb.core.sstable.TableDirectory;
+
+// one keyspace of a store with its own memtable, levels, manifest and compaction settings. the wal, sequence
+// numbers, snapshots, block cache and background pools belong to the store and are shared by all its families
+public final class ColumnFamily {
+    public static final String DEFAULT_NAME = "default";
+
+    private final KeyValueStore store;
+    private final int id;
+    private final String name;
+    private final ColumnFamilyOptions options;
+    final Memtable memtable;
+    final TableDirectory tableDirectory;
+    final SSTableWriter sstableWriter;
+    final SSTableSearch ssTableSearch;
+    final CompactionManager compactionManager;
+
+    ColumnFamily(KeyValueStore store, int id, String name, String path, ColumnFamilyOptions options,
+                 AtomicLong lastSequence, SnapshotList snapshotList, CompactionPools pools) throws IOException {
+        this.store = store;
+        this.id = id;
+        this.name = name;
+        this.options = options;
+        this.memtable = new Memtable(snapshotList, options.getWriteBufferSize(), WriteBufferManager.getInstance());
+        this.tableDirectory = new TableDirectory(path, lastSequence);
+        this.sstableWriter = new SSTableWriter(0, tableDirectory);
+        this.sstableWriter.setPartitioning(options.getFlushPartitioning());
+        this.sstableWriter.setShardCount(options.getFlushShardCount());
+        this.ssTableSearch = new SSTableSearch(tableDirectory);
+        this.compactionManager = new CompactionManager(tableDirectory, snapshotList, pools);
+        this.compactionManager.setLevelSizeMultiplier(options.getLevelSizeMultiplier());
+        this.compactionManager.setDynamicLevelSizing(options.isDynamicLevelSizing());
+        this.compactionManager.setCompactionFilter(options.getCompactionFilter());
+        this.memtable.setMergeOperator(options.getMergeOperator());
+        this.ssTableSearch.setMergeOperator(options.getMergeOperator());
+        this.compactionManager.setMergeOperator(options.getMergeOperator());
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ColumnFamilyOptions getOptions() {
+        return options;
+    }
+
+    KeyValueStore getStore() {
+        return store;
+    }
+
+    // caller holds the store's write lock
+    void flush() throws IOException {
+        List<SSTableMetadata> flushed = sstableWriter.write(memtable);
+        memtable.clear();
+        System.out.println("flushed memtable of " + name + " to " + flushed.size() + " sstables");
+        for (SSTableMetadata sstable : flushed) {
+            compactionManager.queueRangeTombstoneCheck(sstable);
+        }
+        compactionManager.checkAndTriggerCompaction();
+    }
+
+    void close() {
+        RateLimiter.getInstance().removeCompactionDebt(compactionManager);
+        tableDirectory.shutdown();
+    }
+}
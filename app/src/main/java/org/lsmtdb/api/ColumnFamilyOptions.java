@@ -0,0 +1,82 @@
+package org.lsmtdb.api;
+
+import org.lsmtdb.core.compaction.CompactionFilter;
+import org.lsmtdb.core.merge.MergeOperator;
+import org.lsmtdb.core.memtable.Memtable;
+import org.lsmtdb.core.sstable.SSTableWriter;
+
+// per column family tuning, applied when the family is opened
+public class ColumnFamilyOptions {
+    private long writeBufferSize = Memtable.DEFAULT_THRESHOLD_SIZE;
+    private SSTableWriter.Partitioning flushPartitioning = SSTableWriter.Partitioning.NEXT_LEVEL_BOUNDARIES;
+    private int flushShardCount = 4;
+    private int levelSizeMultiplier = 10;
+    private boolean dynamicLevelSizing = true;
+    private CompactionFilter compactionFilter;
+    private MergeOperator mergeOperator;
+
+    // estimated memtable heap bytes that trigger a flush, on top of any process-wide WriteBufferManager budget
+    public long getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    public void setWriteBufferSize(long writeBufferSize) {
+        if (writeBufferSize < 1) {
+            throw new IllegalArgumentException("writeBufferSize must be positive");
+        }
+        this.writeBufferSize = writeBufferSize;
+    }
+
+    public SSTableWriter.Partitioning getFlushPartitioning() {
+        return flushPartitioning;
+    }
+
+    public void setFlushPartitioning(SSTableWriter.Partitioning flushPartitioning) {
+        this.flushPartitioning = flushPartitioning;
+    }
+
+    public int getFlushShardCount() {
+        return flushShardCount;
+    }
+
+    public void setFlushShardCount(int flushShardCount) {
+        if (flushShardCount < 1) {
+            throw new IllegalArgumentException("flushShardCount must be at least 1");
+        }
+        this.flushShardCount = flushShardCount;
+    }
+
+    public int getLevelSizeMultiplier() {
+        return levelSizeMultiplier;
+    }
+
+    public void setLevelSizeMultiplier(int levelSizeMultiplier) {
+        this.levelSizeMultiplier = levelSizeMultiplier;
+    }
+
+    public boolean isDynamicLevelSizing() {
+        return dynamicLevelSizing;
+    }
+
+    public void setDynamicLevelSizing(boolean dynamicLevelSizing) {
+        this.dynamicLevelSizing = dynamicLevelSizing;
+    }
+
+    // null for none; it is not persisted, so pass the same options every time the store is opened
+    public CompactionFilter getCompactionFilter() {
+        return compactionFilter;
+    }
+
+    public void setCompactionFilter(CompactionFilter compactionFilter) {
+        this.compactionFilter = compactionFilter;
+    }
+
+    // needed for KeyValueStore.merge and to read anything merged before; like the filter it is not persisted
+    public MergeOperator getMergeOperator() {
+        return mergeOperator;
+    }
+
+    public void setMergeOperator(MergeOperator mergeOperator) {
+        this.mergeOperator = mergeOperator;
+    }
+}
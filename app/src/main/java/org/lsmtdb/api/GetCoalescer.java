@@ -0,0 +1,94 @@
+package org.lsmtdb.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.lsmtdb.core.io.IOExecutor;
+
+// async gets are queued and drained in batches through multiGet. under load, gets that arrive while a read is in
+// flight are picked up together by the next pass, so keys sitting in the same sstable block share one block read.
+// a lone get drains immediately and waits on nothing
+final class GetCoalescer {
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_DRAINS = 8;
+
+    private final KeyValueStore store;
+    private final IOExecutor ioExecutor;
+    private final ConcurrentLinkedQueue<PendingGet> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger drains = new AtomicInteger();
+
+    private static final class PendingGet {
+        private final byte[] key;
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+        private PendingGet(byte[] key) {
+            this.key = key;
+        }
+    }
+
+    GetCoalescer(KeyValueStore store, IOExecutor ioExecutor) {
+        this.store = store;
+        this.ioExecutor = ioExecutor;
+    }
+
+    CompletableFuture<byte[]> get(byte[] key) {
+        PendingGet pending = new PendingGet(key);
+        queue.add(pending);
+        maybeDrain();
+        return pending.future;
+    }
+
+    private void maybeDrain() {
+        while (!queue.isEmpty()) {
+            int running = drains.get();
+            if (running >= MAX_DRAINS) {
+                // a running drain picks the queued gets up before it exits
+                return;
+            }
+            if (drains.compareAndSet(running, running + 1)) {
+                ioExecutor.submitRead(this::drain);
+                return;
+            }
+        }
+    }
+
+    private Void drain() {
+        try {
+            List<PendingGet> batch = poll();
+            while (!batch.isEmpty()) {
+                List<byte[]> keys = new ArrayList<>(batch.size());
+                for (PendingGet pending : batch) {
+                    keys.add(pending.key);
+                }
+                try {
+                    List<byte[]> values = store.multiGet(keys);
+                    for (int i = 0; i < batch.size(); i++) {
+                        batch.get(i).future.complete(values.get(i));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    for (PendingGet pending : batch) {
+                        pending.future.completeExceptionally(e);
+                    }
+                }
+                batch = poll();
+            }
+        } finally {
+            drains.decrementAndGet();
+        }
+        // a get queued between the last poll and the decrement may have seen every drain busy
+        maybeDrain();
+        return null;
+    }
+
+    private List<PendingGet> poll() {
+        List<PendingGet> batch = new ArrayList<>();
+        PendingGet pending;
+        while (batch.size() < MAX_BATCH && (pending = queue.poll()) != null) {
+            batch.add(pending);
+        }
+        return batch;
+    }
+}
@@ -1,9 +1,51 @@
 package org.lsmtdb.api;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.lsmtdb.core.compaction.CompactRangeOptions;
+import org.lsmtdb.core.snapshot.Snapshot;
+
+public interface IKeyValueStore extends Closeable {
+    public static final int NOT_FOUND = -1;
 
-public interface IKeyValueStore {
     public void put(String key, Object value) throws IOException;
+    public void put(String key, Object value, long ttlMillis) throws IOException;
+    public void merge(String key, Object operand) throws IOException;
     public Object get(String key) throws IOException;
+    public byte[] get(byte[] key) throws IOException;
+    public byte[] get(byte[] key, Snapshot snapshot) throws IOException;
+    public int get(byte[] key, ByteBuffer out) throws IOException;
+    public List<byte[]> multiGet(List<byte[]> keys) throws IOException;
+    public List<byte[]> multiGet(List<byte[]> keys, Snapshot snapshot) throws IOException;
     public void delete(String key) throws IOException;
-};
\ No newline at end of file
+    public void deleteRange(String startKey, String endKey) throws IOException;
+    public ScanIterator scan(String startKey, String endKey) throws IOException;
+    public ScanIterator scan(String startKey, String endKey, Snapshot snapshot) throws IOException;
+    public Snapshot getSnapshot();
+    public void releaseSnapshot(Snapshot snapshot);
+    public CompletableFuture<byte[]> getAsync(byte[] key);
+    public CompletableFuture<String> getAsync(String key);
+    public CompletableFuture<List<byte[]>> multiGetAsync(List<byte[]> keys);
+    public CompletableFuture<ScanIterator> scanAsync(String startKey, String endKey);
+    public CompletableFuture<Void> putAsync(String key, Object value);
+    public CompletableFuture<Void> compactRange(String startKey, String endKey, CompactRangeOptions options);
+
+    public ColumnFamily createColumnFamily(String name, ColumnFamilyOptions options) throws IOException;
+    public ColumnFamily getColumnFamily(String name);
+    public ColumnFamily getDefaultColumnFamily();
+    public void put(ColumnFamily family, String key, Object value) throws IOException;
+    public void put(ColumnFamily family, String key, Object value, long ttlMillis) throws IOException;
+    public void merge(ColumnFamily family, String key, Object operand) throws IOException;
+    public String get(ColumnFamily family, String key) throws IOException;
+    public byte[] get(ColumnFamily family, byte[] key, Snapshot snapshot) throws IOException;
+    public List<byte[]> multiGet(ColumnFamily family, List<byte[]> keys, Snapshot snapshot) throws IOException;
+    public void delete(ColumnFamily family, String key) throws IOException;
+    public void deleteRange(ColumnFamily family, String startKey, String endKey) throws IOException;
+    public ScanIterator scan(ColumnFamily family, String startKey, String endKey, Snapshot snapshot) throws IOException;
+    public CompletableFuture<Void> compactRange(ColumnFamily family, String startKey, String endKey, CompactRangeOptions options);
+    public void write(WriteBatch batch) throws IOException;
+    public Transaction beginTransaction();
+};
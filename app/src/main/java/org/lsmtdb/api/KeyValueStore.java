@@ -1,38 +1,83 @@
 package org.lsmtdb.api;
 
 import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.RangeTombstone;
 import org.lsmtdb.common.Value;
+import org.lsmtdb.core.compaction.CompactionPools;
+import org.lsmtdb.core.io.IOExecutor;
+import org.lsmtdb.core.merge.MergeOperands;
+import org.lsmtdb.core.manifest.VersionEdit;
 import org.lsmtdb.core.memtable.Memtable;
+import org.lsmtdb.core.memtable.MemtableIterator;
+import org.lsmtdb.core.memtable.WriteBufferManager;
+import org.lsmtdb.core.ratelimit.RateLimiter;
+import org.lsmtdb.core.snapshot.Snapshot;
+import org.lsmtdb.core.snapshot.SnapshotList;
 
-import org.lsmtdb.core.sstable.SSTableSearch;
 import org.lsmtdb.core.sstable.SSTableWriter;
+import org.lsmtdb.core.sstable.Version;
 import org.lsmtdb.core.wal.WALWriter;
 import org.lsmtdb.core.wal.WalEntry;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.lsmtdb.core.compaction.CompactRangeOptions;
 import org.lsmtdb.core.compaction.CompactionManager;
 
+// one database under dbPath. any number can be open in a process; each owns its wal, sequence numbers, snapshots
+// and compaction pools, while the block cache and io executor are process wide
 public class KeyValueStore implements IKeyValueStore {
+    // lines of "<id> <name>"; the default family is implicit with id 0 and lives directly under dbPath
+    private static final String COLUMN_FAMILIES_FILE = "COLUMN_FAMILIES";
+    // families that are rarely written keep wal records alive; past this every family is flushed so the wal can go
+    private static final long MAX_WAL_BYTES = 64L * 1024 * 1024;
 
+    private final String dbPath;
     private final WALWriter walWriter;
     // private final WALReader walReader;
-    private final Memtable memTable;
-    private final SSTableWriter sstableWriter;
-    private SSTableSearch ssTableSearch;
-    private static KeyValueStore keyValueStore;
-    private final CompactionManager compactionManager;
-    
-
-    private KeyValueStore(String dbPath) throws IOException{
+    private final AtomicLong lastSequence = new AtomicLong(VersionEdit.NO_SEQUENCE);
+    private final SnapshotList snapshotList = new SnapshotList();
+    private final CompactionPools compactionPools = new CompactionPools();
+    private final Map<String, ColumnFamily> families = new ConcurrentHashMap<>();
+    private final Map<String, Integer> familyIds = new LinkedHashMap<>();
+    private final ColumnFamily defaultFamily;
+    private final Thread compactionDaemon;
+    private final long openStartNanos;
+    private final IOExecutor ioExecutor;
+    private final GetCoalescer getCoalescer;
+    private final AtomicBoolean firstRequestSeen = new AtomicBoolean(false);
+    // writes take their sequence number and land in the memtable under this lock, so a snapshot never sees a
+    // later sequence applied before an earlier one
+    private final Object writeLock = new Object();
+    private boolean closed;
+
+
+    private KeyValueStore(String dbPath, Map<String, ColumnFamilyOptions> familyOptions) throws IOException{
+        this.openStartNanos = System.nanoTime();
+        this.dbPath = dbPath;
         Path path = Paths.get(dbPath);
         if (!Files.exists(path)) {
             Files.createDirectories(path);
         }
-        
+
         Path sstablePath = Paths.get(dbPath + "/sstables");
         if (!Files.exists(sstablePath)) {
             Files.createDirectories(sstablePath);
@@ -40,66 +85,672 @@ public class KeyValueStore implements IKeyValueStore {
 
         this.walWriter = new WALWriter(Paths.get(dbPath + "/wal.log"), 1000);
         // this.walReader = new WALReader(Paths.get(dbPath + "/wal.log"));
-        this.memTable = Memtable.getInstance();
-        // String sstableFilePath = dbPath + "/sstable/" + SSTABLE_FILE;
-        // this.sstableReader = new SSTableReader(sstableFilePath);
-        this.sstableWriter = new SSTableWriter(0);
-        this.ssTableSearch =  new SSTableSearch();
-        this.compactionManager = new CompactionManager();
-        this.compactionManager.startCompactionDaemon();
+
+        // every family is opened up front: they share the sequence counter, and each manifest has to be seen
+        // before the first write takes a number
+        readColumnFamilies();
+        for (Map.Entry<String, Integer> entry : familyIds.entrySet()) {
+            ColumnFamilyOptions options = familyOptions.getOrDefault(entry.getKey(), new ColumnFamilyOptions());
+            families.put(entry.getKey(), openFamily(entry.getValue(), entry.getKey(), options));
+        }
+        this.defaultFamily = families.get(ColumnFamily.DEFAULT_NAME);
+        this.compactionDaemon = startCompactionDaemon();
+        this.ioExecutor = IOExecutor.getInstance();
+        this.getCoalescer = new GetCoalescer(this, ioExecutor);
+        System.out.println("store opened in " + (System.nanoTime() - openStartNanos) / 1_000_000 + "ms");
+    }
+
+    public static KeyValueStore open(String dbPath) throws IOException{
+        return open(dbPath, Collections.emptyMap());
+    }
+
+    // familyOptions is keyed by family name; families without an entry open with default options
+    public static KeyValueStore open(String dbPath, Map<String, ColumnFamilyOptions> familyOptions) throws IOException{
+        return new KeyValueStore(dbPath, familyOptions);
+    }
+
+
+    public RateLimiter getRateLimiter(){
+        return RateLimiter.getInstance();
+    }
+
+    // shared by every store in the process
+    public WriteBufferManager getWriteBufferManager(){
+        return WriteBufferManager.getInstance();
+    }
+
+    public void setFlushPartitioning(SSTableWriter.Partitioning partitioning, int shardCount){
+        defaultFamily.sstableWriter.setPartitioning(partitioning);
+        defaultFamily.sstableWriter.setShardCount(shardCount);
+    }
+
+    // startup is only as fast as the first request it can serve, so that is what gets reported
+    private void recordFirstRequest(){
+        if(!firstRequestSeen.get() && firstRequestSeen.compareAndSet(false, true)){
+            System.out.println("time to first request: " + (System.nanoTime() - openStartNanos) / 1_000_000 + "ms");
+        }
+    }
+
+    @Override
+    public ColumnFamily createColumnFamily(String name, ColumnFamilyOptions options) throws IOException {
+        if (name == null || name.isEmpty() || name.chars().anyMatch(Character::isWhitespace)) {
+            throw new IllegalArgumentException("invalid column family name: " + name);
+        }
+        synchronized (writeLock) {
+            if (familyIds.containsKey(name)) {
+                throw new IllegalArgumentException("column family already exists: " + name);
+            }
+            int id = Collections.max(familyIds.values()) + 1;
+            ColumnFamily family = openFamily(id, name, options != null ? options : new ColumnFamilyOptions());
+            familyIds.put(name, id);
+            writeColumnFamilies();
+            families.put(name, family);
+            System.out.println("created column family " + name + " with id " + id);
+            return family;
+        }
     }
 
-    public static KeyValueStore getInstance(String dbPath) throws IOException{
-        if(keyValueStore == null){
-            keyValueStore = new KeyValueStore(dbPath);
+    // null when the store has no family of that name
+    @Override
+    public ColumnFamily getColumnFamily(String name) {
+        return families.get(name);
+    }
+
+    @Override
+    public ColumnFamily getDefaultColumnFamily() {
+        return defaultFamily;
+    }
+
+    private ColumnFamily openFamily(int id, String name, ColumnFamilyOptions options) throws IOException {
+        String path = id == WalEntry.DEFAULT_COLUMN_FAMILY ? dbPath : dbPath + "/cf" + id;
+        ColumnFamily family = new ColumnFamily(this, id, name, path, options, lastSequence, snapshotList, compactionPools);
+        WriteBufferManager.getInstance().register(family.memtable, () -> flushForWriteBuffer(family));
+        return family;
+    }
+
+    // called from the write buffer manager's thread when the process-wide budget picks this memtable
+    private void flushForWriteBuffer(ColumnFamily family) {
+        synchronized (writeLock) {
+            if (closed || family.memtable.isEmpty()) {
+                return;
+            }
+            try {
+                family.flush();
+                clearWalIfDrained();
+            } catch (IOException e) {
+                System.err.println("write buffer flush of " + family.getName() + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void readColumnFamilies() throws IOException {
+        familyIds.put(ColumnFamily.DEFAULT_NAME, WalEntry.DEFAULT_COLUMN_FAMILY);
+        Path file = Paths.get(dbPath, COLUMN_FAMILIES_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            String[] parts = line.split(" ", 2);
+            familyIds.put(parts[1], Integer.parseInt(parts[0]));
         }
-        return keyValueStore;
     }
 
+    // caller holds the write lock
+    private void writeColumnFamilies() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : familyIds.entrySet()) {
+            if (entry.getValue() != WalEntry.DEFAULT_COLUMN_FAMILY) {
+                lines.append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+            }
+        }
+        Path file = Paths.get(dbPath, COLUMN_FAMILIES_FILE);
+        Path temp = Paths.get(dbPath, COLUMN_FAMILIES_FILE + ".tmp");
+        Files.write(temp, lines.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private ColumnFamily resolve(ColumnFamily family) {
+        if (family == null) {
+            return defaultFamily;
+        }
+        if (family.getStore() != this) {
+            throw new IllegalArgumentException("column family " + family.getName() + " belongs to another store");
+        }
+        return family;
+    }
 
     @Override
     public void put(String key, Object value) throws IOException {
+        put(defaultFamily, key, value);
+    }
+
+    @Override
+    public void put(ColumnFamily family, String key, Object value) throws IOException {
+        putWithExpiry(family, key, value, Value.NO_EXPIRY);
+    }
+
+    // the value reads as deleted ttlMillis after the put, and compaction reclaims it like a tombstone
+    @Override
+    public void put(String key, Object value, long ttlMillis) throws IOException {
+        put(defaultFamily, key, value, ttlMillis);
+    }
+
+    @Override
+    public void put(ColumnFamily family, String key, Object value, long ttlMillis) throws IOException {
+        putWithExpiry(family, key, value, expiresAt(ttlMillis));
+    }
+
+    private void putWithExpiry(ColumnFamily family, String key, Object value, long expiresAt) throws IOException {
+        recordFirstRequest();
+        ColumnFamily target = resolve(family);
         byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
-        Value valueObj = new Value(value.toString().getBytes(StandardCharsets.UTF_8), System.currentTimeMillis(), false);
         ByteArrayWrapper keyWrapper = new ByteArrayWrapper(keyBytes);
-        walWriter.append(new WalEntry(keyWrapper, valueObj));
-        memTable.put(keyWrapper, valueObj);
-        if(memTable.shouldFlush()){
-            sstableWriter.write(memTable);
-            memTable.clear();
-            walWriter.clear();
-            System.out.println("flushed memtable to sstable");
-            compactionManager.checkAndTriggerCompaction();
+        byte[] valueBytes = value.toString().getBytes(StandardCharsets.UTF_8);
+        synchronized (writeLock) {
+            WalEntry entry = new WalEntry(target.getId(), keyWrapper, new Value(valueBytes, nextSequence(), false, expiresAt));
+            walWriter.append(entry);
+            apply(target, entry);
+            maybeFlush(target);
+        }
+    }
+
+    // records operand against the key without reading it; reads see the family's merge operator applied to the
+    // value below and every operand since. throws IllegalStateException when the family has no merge operator
+    @Override
+    public void merge(String key, Object operand) throws IOException {
+        merge(defaultFamily, key, operand);
+    }
+
+    @Override
+    public void merge(ColumnFamily family, String key, Object operand) throws IOException {
+        recordFirstRequest();
+        ColumnFamily target = requireMergeOperator(resolve(family));
+        ByteArrayWrapper keyWrapper = new ByteArrayWrapper(key.getBytes(StandardCharsets.UTF_8));
+        byte[] operandBytes = operand.toString().getBytes(StandardCharsets.UTF_8);
+        synchronized (writeLock) {
+            WalEntry entry = new WalEntry(target.getId(), keyWrapper, Value.mergeOperand(operandBytes, nextSequence()));
+            walWriter.append(entry);
+            apply(target, entry);
+            maybeFlush(target);
+        }
+    }
+
+    private static ColumnFamily requireMergeOperator(ColumnFamily family) {
+        if (family.getOptions().getMergeOperator() == null) {
+            throw new IllegalStateException("column family " + family.getName() + " has no merge operator");
         }
+        return family;
     }
 
     @Override
     public String get(String key) throws IOException {
-        byte [] keyBytes = key.getBytes(StandardCharsets.UTF_8);
-        if (memTable.get(keyBytes) != null) {    
-            byte[] value =  memTable.get(keyBytes);
-            return new String(value, StandardCharsets.UTF_8);
-        } else {
-            ByteArrayWrapper kArrayWrapper =  new ByteArrayWrapper(keyBytes);
-            byte[] value = ssTableSearch.search(kArrayWrapper);
-            return new String(value, StandardCharsets.UTF_8);
+        return get(defaultFamily, key);
+    }
+
+    @Override
+    public String get(ColumnFamily family, String key) throws IOException {
+        recordFirstRequest();
+        byte[] value = read(resolve(family), new ByteArrayWrapper(key.getBytes(StandardCharsets.UTF_8)), sequenceOf(null), false);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    // null when the key is absent or deleted; misses never go through exceptions
+    @Override
+    public byte[] get(byte[] key) throws IOException {
+        return get(defaultFamily, key, null);
+    }
+
+    // as of the snapshot, or the latest state when snapshot is null
+    @Override
+    public byte[] get(byte[] key, Snapshot snapshot) throws IOException {
+        return get(defaultFamily, key, snapshot);
+    }
+
+    @Override
+    public byte[] get(ColumnFamily family, byte[] key, Snapshot snapshot) throws IOException {
+        recordFirstRequest();
+        return read(resolve(family), new ByteArrayWrapper(key), sequenceOf(snapshot), true);
+    }
+
+    // the value as of the sequence. a memtable hit is the memtable's own array, so it is copied unless the caller
+    // only reads it before returning; values from the sstables or a merge are fresh arrays either way
+    private static byte[] read(ColumnFamily target, ByteArrayWrapper key, long sequence, boolean copyShared) throws IOException {
+        Memtable.Lookup lookup = target.memtable.lookup(key, sequence);
+        Value memValue = lookup.getEntry();
+        if (memValue != null) {
+            if (memValue.isDeleted() || memValue.getTimestamp() < lookup.getCoveringTombstoneTimestamp()) {
+                return null;
+            }
+            if (memValue.isMergeOperand()) {
+                return getMerged(target, key, lookup, sequence);
+            }
+            return copyShared ? memValue.getValue().clone() : memValue.getValue();
+        }
+        return target.ssTableSearch.get(key, lookup.getCoveringTombstoneTimestamp(), sequence);
+    }
+
+    // folds the memtable versions below a merge operand, going on into the sstables when they do not end the walk
+    private static byte[] getMerged(ColumnFamily family, ByteArrayWrapper key, Memtable.Lookup lookup, long sequence) throws IOException {
+        MergeOperands operands = new MergeOperands(family.getOptions().getMergeOperator());
+        long now = System.currentTimeMillis();
+        for (Value version : lookup.getVersions()) {
+            if (version.getTimestamp() <= sequence && operands.add(version, lookup.getCoveringTombstoneTimestamp(), now)) {
+                return operands.resolve();
+            }
+        }
+        return family.ssTableSearch.getMerged(key, lookup.getCoveringTombstoneTimestamp(), sequence, operands);
+    }
+
+    // copies the value into out and returns its length, or NOT_FOUND. when out has less room than the value nothing
+    // is copied and the required length is returned, so the caller can retry with a larger buffer. a memtable hit is
+    // copied straight from the memtable; a value found in the sstables is still read into an array of its own first
+    @Override
+    public int get(byte[] key, ByteBuffer out) throws IOException {
+        recordFirstRequest();
+        byte[] value = read(defaultFamily, new ByteArrayWrapper(key), sequenceOf(null), false);
+        if (value == null) {
+            return NOT_FOUND;
+        }
+        if (out.remaining() >= value.length) {
+            out.put(value);
+        }
+        return value.length;
+    }
+
+    // results line up with keys, null where a key is absent or deleted. the memtable settles what it can, the rest
+    // go to the sstables sorted, so each file is read once for all the keys it may hold
+    @Override
+    public List<byte[]> multiGet(List<byte[]> keys) throws IOException {
+        return multiGet(defaultFamily, keys, null);
+    }
+
+    @Override
+    public List<byte[]> multiGet(List<byte[]> keys, Snapshot snapshot) throws IOException {
+        return multiGet(defaultFamily, keys, snapshot);
+    }
+
+    @Override
+    public List<byte[]> multiGet(ColumnFamily family, List<byte[]> keys, Snapshot snapshot) throws IOException {
+        recordFirstRequest();
+        ColumnFamily target = resolve(family);
+        long sequence = sequenceOf(snapshot);
+        int count = keys.size();
+        byte[][] results = new byte[count][];
+        ByteArrayWrapper[] wrappers = new ByteArrayWrapper[count];
+        long[] coveringTombstones = new long[count];
+        List<Integer> remaining = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            wrappers[i] = new ByteArrayWrapper(keys.get(i));
+            Memtable.Lookup lookup = target.memtable.lookup(wrappers[i], sequence);
+            Value memValue = lookup.getEntry();
+            if (memValue != null) {
+                boolean live = !memValue.isDeleted() && memValue.getTimestamp() >= lookup.getCoveringTombstoneTimestamp();
+                if (live && memValue.isMergeOperand()) {
+                    results[i] = getMerged(target, wrappers[i], lookup, sequence);
+                } else {
+                    results[i] = live ? memValue.getValue().clone() : null;
+                }
+            } else {
+                coveringTombstones[i] = lookup.getCoveringTombstoneTimestamp();
+                remaining.add(i);
+            }
+        }
+        if (!remaining.isEmpty()) {
+            remaining.sort((a, b) -> wrappers[a].compareTo(wrappers[b]));
+            List<ByteArrayWrapper> sortedKeys = new ArrayList<>(remaining.size());
+            long[] sortedTombstones = new long[remaining.size()];
+            for (int j = 0; j < remaining.size(); j++) {
+                sortedKeys.add(wrappers[remaining.get(j)]);
+                sortedTombstones[j] = coveringTombstones[remaining.get(j)];
+            }
+            byte[][] found = target.ssTableSearch.multiGet(sortedKeys, sortedTombstones, sequence);
+            for (int j = 0; j < remaining.size(); j++) {
+                results[remaining.get(j)] = found[j];
+            }
         }
+        return Arrays.asList(results);
+    }
+
+    // async forms: reads run on the io executor with concurrent gets coalesced, writes apply in submission order
+    @Override
+    public CompletableFuture<byte[]> getAsync(byte[] key) {
+        return getCoalescer.get(key);
+    }
+
+    @Override
+    public CompletableFuture<String> getAsync(String key) {
+        return getAsync(key.getBytes(StandardCharsets.UTF_8))
+            .thenApply(value -> value == null ? null : new String(value, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> multiGetAsync(List<byte[]> keys) {
+        return ioExecutor.submitRead(() -> multiGet(keys));
+    }
+
+    @Override
+    public CompletableFuture<ScanIterator> scanAsync(String startKey, String endKey) {
+        return ioExecutor.submitRead(() -> scan(startKey, endKey));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, Object value) {
+        return ioExecutor.submitWrite(() -> {
+            put(key, value);
+            return null;
+        });
     }
 
     @Override
     public void delete(String key) throws IOException {
+        delete(defaultFamily, key);
+    }
+
+    @Override
+    public void delete(ColumnFamily family, String key) throws IOException {
+        recordFirstRequest();
+        ColumnFamily target = resolve(family);
         byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
-        Value valueObj = new Value(null, System.currentTimeMillis(), true);
         ByteArrayWrapper keyWrapper = new ByteArrayWrapper(keyBytes);
-        walWriter.append(new WalEntry(keyWrapper, valueObj));
-        memTable.put(keyWrapper, valueObj);
-        if(memTable.shouldFlush()){
-            sstableWriter.write(memTable);
-            memTable.clear();
+        synchronized (writeLock) {
+            WalEntry entry = new WalEntry(target.getId(), keyWrapper, new Value(null, nextSequence(), true));
+            walWriter.append(entry);
+            apply(target, entry);
+            maybeFlush(target);
+        }
+    }
+
+    // deletes every key in [startKey, endKey) with a single range tombstone instead of one tombstone per key
+    @Override
+    public void deleteRange(String startKey, String endKey) throws IOException {
+        deleteRange(defaultFamily, startKey, endKey);
+    }
+
+    @Override
+    public void deleteRange(ColumnFamily family, String startKey, String endKey) throws IOException {
+        recordFirstRequest();
+        ColumnFamily target = resolve(family);
+        ByteArrayWrapper start = new ByteArrayWrapper(startKey.getBytes(StandardCharsets.UTF_8));
+        ByteArrayWrapper end = new ByteArrayWrapper(endKey.getBytes(StandardCharsets.UTF_8));
+        synchronized (writeLock) {
+            WalEntry entry = new WalEntry(target.getId(), new RangeTombstone(start, end, nextSequence()));
+            walWriter.append(entry);
+            apply(target, entry);
+            maybeFlush(target);
+        }
+    }
+
+    // all of the batch or none of it: one wal record, and the memtables take it under the write lock that snapshots
+    // are taken under, so no snapshot falls inside the batch
+    @Override
+    public void write(WriteBatch batch) throws IOException {
+        recordFirstRequest();
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<WriteBatch.Op> ops = batch.ops();
+        List<ColumnFamily> targets = new ArrayList<>(ops.size());
+        for (WriteBatch.Op op : ops) {
+            targets.add(resolve(op.family));
+        }
+        synchronized (writeLock) {
+            List<WalEntry> entries = new ArrayList<>(ops.size());
+            for (int i = 0; i < ops.size(); i++) {
+                WriteBatch.Op op = ops.get(i);
+                int familyId = targets.get(i).getId();
+                ByteArrayWrapper key = new ByteArrayWrapper(op.key);
+                long sequence = nextSequence();
+                switch (op.kind) {
+                    case PUT:
+                        long expiresAt = op.ttlMillis == WriteBatch.NO_TTL ? Value.NO_EXPIRY : expiresAt(op.ttlMillis);
+                        entries.add(new WalEntry(familyId, key, new Value(op.value, sequence, false, expiresAt)));
+                        break;
+                    case MERGE:
+                        requireMergeOperator(targets.get(i));
+                        entries.add(new WalEntry(familyId, key, Value.mergeOperand(op.value, sequence)));
+                        break;
+                    case DELETE:
+                        entries.add(new WalEntry(familyId, key, new Value(null, sequence, true)));
+                        break;
+                    default:
+                        entries.add(new WalEntry(familyId, new RangeTombstone(key, new ByteArrayWrapper(op.value), sequence)));
+                        break;
+                }
+            }
+            walWriter.appendBatch(entries);
+            Set<ColumnFamily> touched = new LinkedHashSet<>();
+            for (int i = 0; i < entries.size(); i++) {
+                apply(targets.get(i), entries.get(i));
+                touched.add(targets.get(i));
+            }
+            for (ColumnFamily family : touched) {
+                maybeFlush(family);
+            }
+        }
+    }
+
+    private static void apply(ColumnFamily family, WalEntry entry) {
+        if (entry.isRangeTombstone()) {
+            family.memtable.addRangeTombstone(entry.rangeTombstone);
+        } else {
+            family.memtable.put(entry.key, entry.value);
+        }
+    }
+
+    // live entries in [startKey, endKey) in key order; either bound may be null. close the iterator when done
+    @Override
+    public ScanIterator scan(String startKey, String endKey) throws IOException {
+        return scan(defaultFamily, startKey, endKey, null);
+    }
+
+    @Override
+    public ScanIterator scan(String startKey, String endKey, Snapshot snapshot) throws IOException {
+        return scan(defaultFamily, startKey, endKey, snapshot);
+    }
+
+    @Override
+    public ScanIterator scan(ColumnFamily family, String startKey, String endKey, Snapshot snapshot) throws IOException {
+        recordFirstRequest();
+        ColumnFamily target = resolve(family);
+        long sequence = sequenceOf(snapshot);
+        ByteArrayWrapper start = startKey == null ? null : new ByteArrayWrapper(startKey.getBytes(StandardCharsets.UTF_8));
+        ByteArrayWrapper end = endKey == null ? null : new ByteArrayWrapper(endKey.getBytes(StandardCharsets.UTF_8));
+        MemtableIterator memtableSource = new MemtableIterator(target.memtable.iterator(start, end, sequence));
+        return new ScanIterator(target.ssTableSearch.scan(start, end, memtableSource, target.memtable.getRangeTombstones(), sequence));
+    }
+
+    // an optimistic transaction reading this store as of now; commit or roll it back, or close it, to release it
+    @Override
+    public Transaction beginTransaction() {
+        recordFirstRequest();
+        return new Transaction(this);
+    }
+
+    // the sstables are checked first without the write lock, against a pinned version of each family's files. under
+    // the lock only the memtables and files that reached a family since it was pinned are left, and the batch is
+    // applied there, so no write can land between the check and the batch
+    void commit(Map<ColumnFamily, Set<ByteArrayWrapper>> tracked, long readSequence, WriteBatch batch) throws IOException {
+        Map<ColumnFamily, Version> checked = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<ColumnFamily, Set<ByteArrayWrapper>> entry : tracked.entrySet()) {
+                ColumnFamily family = resolve(entry.getKey());
+                Version version = checked.get(family);
+                if (version == null) {
+                    version = family.ssTableSearch.acquireVersion();
+                    checked.put(family, version);
+                }
+                ByteArrayWrapper changed = family.ssTableSearch.firstChangedSince(version, entry.getValue(), readSequence);
+                if (changed != null) {
+                    throw conflict(family, changed, readSequence);
+                }
+            }
+            synchronized (writeLock) {
+                for (Map.Entry<ColumnFamily, Set<ByteArrayWrapper>> entry : tracked.entrySet()) {
+                    ColumnFamily family = resolve(entry.getKey());
+                    List<ByteArrayWrapper> unsettled = new ArrayList<>();
+                    for (ByteArrayWrapper key : entry.getValue()) {
+                        Boolean changed = changedInMemtable(family, key, readSequence);
+                        if (changed == null) {
+                            unsettled.add(key);
+                        } else if (changed) {
+                            throw conflict(family, key, readSequence);
+                        }
+                    }
+                    ByteArrayWrapper changed = family.ssTableSearch.firstChangedInNewFiles(checked.get(family), unsettled, readSequence);
+                    if (changed != null) {
+                        throw conflict(family, changed, readSequence);
+                    }
+                }
+                write(batch);
+            }
+        } finally {
+            for (Version version : checked.values()) {
+                version.close();
+            }
+        }
+    }
+
+    // the memtable holds everything newer than the sstables, so a version of the key there settles it; null when the
+    // memtable has nothing on the key and the sstables decide
+    private static Boolean changedInMemtable(ColumnFamily family, ByteArrayWrapper key, long sequence) {
+        Memtable.Lookup lookup = family.memtable.lookup(key);
+        if (lookup.getCoveringTombstoneTimestamp() > sequence) {
+            return true;
+        }
+        if (lookup.getEntry() != null) {
+            return lookup.getEntry().getTimestamp() > sequence;
+        }
+        return null;
+    }
+
+    private static TransactionConflictException conflict(ColumnFamily family, ByteArrayWrapper key, long sequence) {
+        return new TransactionConflictException("key " + new String(key.getData(), StandardCharsets.UTF_8) + " in column family "
+            + family.getName() + " was written after sequence " + sequence);
+    }
+
+    // pins the current state of every family: reads through the snapshot keep seeing it, and flushes and
+    // compactions keep the versions it needs, until it is released
+    @Override
+    public Snapshot getSnapshot() {
+        synchronized (writeLock) {
+            return snapshotList.acquire(lastSequence.get());
+        }
+    }
+
+    @Override
+    public void releaseSnapshot(Snapshot snapshot) {
+        snapshotList.release(snapshot);
+    }
+
+    private static long sequenceOf(Snapshot snapshot) {
+        return snapshot == null ? Long.MAX_VALUE : snapshot.getSequence();
+    }
+
+    private long nextSequence() {
+        return lastSequence.incrementAndGet();
+    }
+
+    private static long expiresAt(long ttlMillis) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+        long now = System.currentTimeMillis();
+        return ttlMillis >= Value.NO_EXPIRY - now ? Value.NO_EXPIRY : now + ttlMillis;
+    }
+
+    @Override
+    public CompletableFuture<Void> compactRange(String startKey, String endKey, CompactRangeOptions options) {
+        return compactRange(defaultFamily, startKey, endKey, options);
+    }
+
+    @Override
+    public CompletableFuture<Void> compactRange(ColumnFamily family, String startKey, String endKey, CompactRangeOptions options) {
+        ByteArrayWrapper start = startKey == null ? null : new ByteArrayWrapper(startKey.getBytes(StandardCharsets.UTF_8));
+        ByteArrayWrapper end = endKey == null ? null : new ByteArrayWrapper(endKey.getBytes(StandardCharsets.UTF_8));
+        return resolve(family).compactionManager.compactRange(start, end, options);
+    }
+
+    // blocking form of compactRange with default options
+    public void compactRange(String startKey, String endKey) throws IOException {
+        try {
+            compactRange(startKey, endKey, new CompactRangeOptions()).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // the wal is shared, so it is only cleared once no family's memtable still holds writes logged in it
+    private void maybeFlush(ColumnFamily family) throws IOException {
+        if(family.memtable.shouldFlush()){
+            family.flush();
+        }else if(walWriter.size() >= MAX_WAL_BYTES){
+            for (ColumnFamily other : families.values()) {
+                if (!other.memtable.isEmpty()) {
+                    other.flush();
+                }
+            }
+        }else{
+            return;
+        }
+        clearWalIfDrained();
+    }
+
+    private void clearWalIfDrained() throws IOException {
+        for (ColumnFamily other : families.values()) {
+            if (!other.memtable.isEmpty()) {
+                return;
+            }
+        }
+        walWriter.clear();
+    }
+
+    // one daemon walks every family, their compactions share the store's pools
+    private Thread startCompactionDaemon(){
+        Thread daemon = new Thread(() -> {
+            while(!Thread.currentThread().isInterrupted()){
+                try{
+                    for (ColumnFamily family : families.values()) {
+                        family.compactionManager.checkAndTriggerCompaction();
+                    }
+                    Thread.sleep(CompactionManager.COMPACTION_CHECK_INTERVAL_MS);
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        });
+        daemon.setDaemon(true);
+        daemon.start();
+        return daemon;
+    }
+
+    // flushes every memtable so nothing is left only in the wal, then stops background work
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (ColumnFamily family : families.values()) {
+                if (!family.memtable.isEmpty()) {
+                    family.flush();
+                }
+            }
             walWriter.clear();
-            System.out.println("flushed memtable to sstable");
-            compactionManager.checkAndTriggerCompaction();
+            walWriter.close();
+        }
+        compactionDaemon.interrupt();
+        compactionPools.shutdown();
+        for (ColumnFamily family : families.values()) {
+            WriteBufferManager.getInstance().unregister(family.memtable);
+            family.close();
         }
     }
-    
 }
@@ -0,0 +1,37 @@
+package org.lsmtdb.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.core.sstable.merger.RangeScanIterator;
+
+// string view over a range scan; holds sstable readers open until closed
+public class ScanIterator implements Iterator<Map.Entry<String, String>>, Closeable {
+    private final RangeScanIterator delegate;
+
+    ScanIterator(RangeScanIterator delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return delegate.hasNext();
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+        Map.Entry<ByteArrayWrapper, byte[]> entry = delegate.next();
+        return new AbstractMap.SimpleImmutableEntry<>(
+            new String(entry.getKey().getData(), StandardCharsets.UTF_8),
+            new String(entry.getValue(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
@@ -0,0 +1,174 @@
+package org.lsmtdb.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.core.merge.MergeOperator;
+import org.lsmtdb.core.snapshot.Snapshot;
+
+// optimistic read-modify-write across keys and column families of one store. reads see the store as of begin plus
+// the transaction's own writes; writes are buffered and applied as one batch by commit, which first checks that no
+// key the transaction read or wrote has been written since begin. nothing is locked while the transaction runs,
+// so transactions over different keys never wait on each other. not thread safe
+public class Transaction implements Closeable {
+    private final KeyValueStore store;
+    private final Snapshot snapshot;
+    private final WriteBatch batch = new WriteBatch();
+    // every key read or written, per family, checked at commit against writes after the snapshot
+    private final Map<ColumnFamily, Set<ByteArrayWrapper>> tracked = new LinkedHashMap<>();
+    // what the buffered writes make of each key, so the transaction reads its own writes
+    private final Map<ColumnFamily, Map<ByteArrayWrapper, PendingWrite>> pending = new HashMap<>();
+    private boolean finished;
+
+    // the last put or delete of a key in the transaction, and the merges buffered after it
+    private static final class PendingWrite {
+        private boolean overwritten;
+        // null when the key was deleted
+        private byte[] value;
+        private final List<byte[]> operands = new ArrayList<>();
+    }
+
+    Transaction(KeyValueStore store) {
+        this.store = store;
+        this.snapshot = store.getSnapshot();
+    }
+
+    // sequence the transaction reads at; a write above it to a tracked key fails the commit
+    public long getReadSequence() {
+        return snapshot.getSequence();
+    }
+
+    public String get(String key) throws IOException {
+        return get(null, key);
+    }
+
+    // null when the key is absent or deleted
+    public String get(ColumnFamily family, String key) throws IOException {
+        ensureActive();
+        ColumnFamily target = family(family);
+        ByteArrayWrapper keyWrapper = key(key);
+        track(target, keyWrapper);
+        PendingWrite write = pending.getOrDefault(target, Map.of()).get(keyWrapper);
+        byte[] value;
+        if (write != null && write.overwritten) {
+            value = write.value;
+        } else {
+            value = store.get(target, keyWrapper.getData(), snapshot);
+        }
+        if (write != null && !write.operands.isEmpty()) {
+            MergeOperator operator = target.getOptions().getMergeOperator();
+            for (byte[] operand : write.operands) {
+                value = operator.merge(value, operand);
+            }
+        }
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    public void put(String key, Object value) {
+        put(null, key, value);
+    }
+
+    public void put(ColumnFamily family, String key, Object value) {
+        ensureActive();
+        ColumnFamily target = family(family);
+        batch.put(target, key, value);
+        overwrite(target, key(key), value.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void delete(String key) {
+        delete(null, key);
+    }
+
+    public void delete(ColumnFamily family, String key) {
+        ensureActive();
+        ColumnFamily target = family(family);
+        batch.delete(target, key);
+        overwrite(target, key(key), null);
+    }
+
+    public void merge(String key, Object operand) {
+        merge(null, key, operand);
+    }
+
+    // throws IllegalStateException when the family has no merge operator
+    public void merge(ColumnFamily family, String key, Object operand) {
+        ensureActive();
+        ColumnFamily target = family(family);
+        if (target.getOptions().getMergeOperator() == null) {
+            throw new IllegalStateException("column family " + target.getName() + " has no merge operator");
+        }
+        batch.merge(target, key, operand);
+        ByteArrayWrapper keyWrapper = key(key);
+        track(target, keyWrapper);
+        pending.computeIfAbsent(target, f -> new HashMap<>()).computeIfAbsent(keyWrapper, k -> new PendingWrite())
+            .operands.add(operand.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // applies the writes as one batch, or throws TransactionConflictException and applies nothing. either way the
+    // transaction is over
+    public void commit() throws IOException {
+        ensureActive();
+        try {
+            store.commit(tracked, snapshot.getSequence(), batch);
+        } finally {
+            finish();
+        }
+    }
+
+    // drops the buffered writes
+    public void rollback() {
+        ensureActive();
+        finish();
+    }
+
+    // rolls back unless already committed or rolled back
+    @Override
+    public void close() {
+        if (!finished) {
+            finish();
+        }
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    private void overwrite(ColumnFamily family, ByteArrayWrapper key, byte[] value) {
+        track(family, key);
+        PendingWrite write = new PendingWrite();
+        write.overwritten = true;
+        write.value = value;
+        pending.computeIfAbsent(family, f -> new HashMap<>()).put(key, write);
+    }
+
+    private void track(ColumnFamily family, ByteArrayWrapper key) {
+        tracked.computeIfAbsent(family, f -> new LinkedHashSet<>()).add(key);
+    }
+
+    private ColumnFamily family(ColumnFamily family) {
+        return family == null ? store.getDefaultColumnFamily() : family;
+    }
+
+    private static ByteArrayWrapper key(String key) {
+        return new ByteArrayWrapper(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void ensureActive() {
+        if (finished) {
+            throw new IllegalStateException("transaction already committed or rolled back");
+        }
+    }
+
+    private void finish() {
+        finished = true;
+        store.releaseSnapshot(snapshot);
+    }
+}
@@ -0,0 +1,11 @@
+package org.lsmtdb.api;
+
+// a transaction's commit found a key it read or wrote already written by someone else since the transaction began;
+// nothing of the transaction was applied, and it can be retried from the start
+public class TransactionConflictException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public TransactionConflictException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,101 @@
+package org.lsmtdb.api;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// writes to any of a store's column families that are applied together: the batch is one wal record, its
+// writes take consecutive sequence numbers, and a snapshot sees either all of them or none
+public class WriteBatch {
+
+    enum Kind { PUT, MERGE, DELETE, DELETE_RANGE }
+
+    static final long NO_TTL = 0;
+
+    static final class Op {
+        final Kind kind;
+        // null for the default family of whichever store the batch is written to
+        final ColumnFamily family;
+        final byte[] key;
+        // the value of a put, the operand of a merge, the range end of a range delete
+        final byte[] value;
+        // counted from when the batch is written
+        final long ttlMillis;
+
+        private Op(Kind kind, ColumnFamily family, byte[] key, byte[] value) {
+            this(kind, family, key, value, NO_TTL);
+        }
+
+        private Op(Kind kind, ColumnFamily family, byte[] key, byte[] value, long ttlMillis) {
+            this.kind = kind;
+            this.family = family;
+            this.key = key;
+            this.value = value;
+            this.ttlMillis = ttlMillis;
+        }
+    }
+
+    private final List<Op> ops = new ArrayList<>();
+
+    public WriteBatch put(String key, Object value) {
+        return put(null, key, value);
+    }
+
+    public WriteBatch put(ColumnFamily family, String key, Object value) {
+        ops.add(new Op(Kind.PUT, family, bytes(key), bytes(value.toString())));
+        return this;
+    }
+
+    public WriteBatch put(ColumnFamily family, String key, Object value, long ttlMillis) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+        ops.add(new Op(Kind.PUT, family, bytes(key), bytes(value.toString()), ttlMillis));
+        return this;
+    }
+
+    public WriteBatch merge(String key, Object operand) {
+        return merge(null, key, operand);
+    }
+
+    public WriteBatch merge(ColumnFamily family, String key, Object operand) {
+        ops.add(new Op(Kind.MERGE, family, bytes(key), bytes(operand.toString())));
+        return this;
+    }
+
+    public WriteBatch delete(String key) {
+        return delete(null, key);
+    }
+
+    public WriteBatch delete(ColumnFamily family, String key) {
+        ops.add(new Op(Kind.DELETE, family, bytes(key), null));
+        return this;
+    }
+
+    // deletes every key in [startKey, endKey)
+    public WriteBatch deleteRange(ColumnFamily family, String startKey, String endKey) {
+        ops.add(new Op(Kind.DELETE_RANGE, family, bytes(startKey), bytes(endKey)));
+        return this;
+    }
+
+    public int size() {
+        return ops.size();
+    }
+
+    public boolean isEmpty() {
+        return ops.isEmpty();
+    }
+
+    public void clear() {
+        ops.clear();
+    }
+
+    List<Op> ops() {
+        return Collections.unmodifiableList(ops);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
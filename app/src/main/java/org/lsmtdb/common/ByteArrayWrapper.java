@@ -1,5 +1,7 @@
 package org.lsmtdb.common;
 
+import java.util.Arrays;
+
 public class ByteArrayWrapper implements Comparable<ByteArrayWrapper> {
     private final byte[] data;
 
@@ -12,31 +14,25 @@ public class ByteArrayWrapper implements Comparable<ByteArrayWrapper> {
         if(!(other instanceof ByteArrayWrapper)){
             return false;
         }
-        return compareTo((ByteArrayWrapper) other) ==0;
+        return Arrays.equals(data, ((ByteArrayWrapper) other).data);
     }
 
     @Override
     public int hashCode(){
-        int result = 1;
-        for( byte b : data){
-            result = 31 * result + b;
-        }
-        return result;
+        return Arrays.hashCode(data);
     }
 
+    // unsigned lexicographic order; Arrays.compareUnsigned is vectorized via mismatch on long strides
     @Override
     public int compareTo(ByteArrayWrapper other){
-        int minLength = Math.min(data.length, other.data.length);
-        for(int i = 0; i<minLength;i++){
-            int cmp = Byte.compare(data[i], other.data[i]);
-            if(cmp!=0){
-                return cmp;
-            }
-        }
-        return Integer.compare(data.length, other.data.length);
+        return Arrays.compareUnsigned(data, other.data);
+    }
+
+    public static int compare(byte[] a, byte[] b){
+        return Arrays.compareUnsigned(a, b);
     }
 
     public byte[] getData(){
         return  this.data;
     }
-}
\ No newline at end of file
+}
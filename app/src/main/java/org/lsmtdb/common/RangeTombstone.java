@@ -0,0 +1,87 @@
+package org.lsmtdb.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+public class RangeTombstone {
+    public static final long NONE = Long.MIN_VALUE;
+
+    // start is inclusive, end is exclusive
+    public final ByteArrayWrapper start;
+    public final ByteArrayWrapper end;
+    public final long timestamp;
+
+    public RangeTombstone(ByteArrayWrapper start, ByteArrayWrapper end, long timestamp) {
+        if (start.compareTo(end) >= 0) {
+            throw new IllegalArgumentException("range tombstone start must be before end");
+        }
+        this.start = start;
+        this.end = end;
+        this.timestamp = timestamp;
+    }
+
+    public ByteArrayWrapper getStart() {
+        return start;
+    }
+
+    public ByteArrayWrapper getEnd() {
+        return end;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean contains(ByteArrayWrapper key) {
+        return start.compareTo(key) <= 0 && key.compareTo(end) < 0;
+    }
+
+    public boolean covers(ByteArrayWrapper key, long entryTimestamp) {
+        return entryTimestamp < timestamp && contains(key);
+    }
+
+    // true when [minKey, maxKey] lies entirely inside the tombstone's range
+    public boolean containsRange(ByteArrayWrapper minKey, ByteArrayWrapper maxKey) {
+        return start.compareTo(minKey) <= 0 && maxKey.compareTo(end) < 0;
+    }
+
+    public boolean overlaps(ByteArrayWrapper minKey, ByteArrayWrapper maxKey) {
+        return start.compareTo(maxKey) <= 0 && minKey.compareTo(end) < 0;
+    }
+
+    public int getSize() {
+        return start.getData().length + end.getData().length + Long.BYTES;
+    }
+
+    public static long maxCoveringTimestamp(Collection<RangeTombstone> tombstones, ByteArrayWrapper key) {
+        long max = NONE;
+        for (RangeTombstone tombstone : tombstones) {
+            if (tombstone.timestamp > max && tombstone.contains(key)) {
+                max = tombstone.timestamp;
+            }
+        }
+        return max;
+    }
+
+    // same, ignoring tombstones written after the snapshot sequence
+    public static long maxCoveringTimestamp(Collection<RangeTombstone> tombstones, ByteArrayWrapper key, long snapshot) {
+        long max = NONE;
+        for (RangeTombstone tombstone : tombstones) {
+            if (tombstone.timestamp > max && tombstone.timestamp <= snapshot && tombstone.contains(key)) {
+                max = tombstone.timestamp;
+            }
+        }
+        return max;
+    }
+
+    public static List<RangeTombstone> visibleAt(Collection<RangeTombstone> tombstones, long snapshot) {
+        List<RangeTombstone> visible = new ArrayList<>(tombstones.size());
+        for (RangeTombstone tombstone : tombstones) {
+            if (tombstone.timestamp <= snapshot) {
+                visible.add(tombstone);
+            }
+        }
+        return visible;
+    }
+}
@@ -1,14 +1,35 @@
 package org.lsmtdb.common;
 
 public class Value {
+    // expiresAt of a value written without a ttl
+    public static final long NO_EXPIRY = Long.MAX_VALUE;
+
     public final byte[] value;
     public final long timestamp;
     public final boolean isDeleted;
+    // wall clock millis from which the value reads as deleted
+    public final long expiresAt;
+    // an operand to be folded into the versions below it by the family's merge operator, never expires
+    public final boolean isMergeOperand;
 
     public Value(byte[] value, long timestamp,boolean isDeleted){
+        this(value, timestamp, isDeleted, NO_EXPIRY);
+    }
+
+    public Value(byte[] value, long timestamp, boolean isDeleted, long expiresAt){
+        this(value, timestamp, isDeleted, expiresAt, false);
+    }
+
+    private Value(byte[] value, long timestamp, boolean isDeleted, long expiresAt, boolean isMergeOperand){
         this.value = value;
         this.timestamp = timestamp;
         this.isDeleted = isDeleted;
+        this.expiresAt = expiresAt;
+        this.isMergeOperand = isMergeOperand;
+    }
+
+    public static Value mergeOperand(byte[] operand, long timestamp){
+        return new Value(operand, timestamp, false, NO_EXPIRY, true);
     }
 
     public byte[] getValue(){
@@ -23,6 +44,23 @@ public class Value {
         return this.isDeleted;
     }
 
+    public long getExpiresAt(){
+        return this.expiresAt;
+    }
+
+    public boolean isMergeOperand(){
+        return this.isMergeOperand;
+    }
+
+    public boolean isExpired(long now){
+        return !isDeleted && expiresAt <= now;
+    }
+
+    // an expired value hides older versions just like the tombstone it stands in for
+    public Value liveAt(long now){
+        return isExpired(now) ? new Value(null, timestamp, true) : this;
+    }
+
     public int getSize(){
         return  (value!=null) ? value.length : 0;
     }
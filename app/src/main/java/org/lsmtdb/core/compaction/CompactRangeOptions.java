@@ -0,0 +1,46 @@
+package org.lsmtdb.core.compaction;
+
+public class CompactRangeOptions {
+    public static final int BOTTOM_LEVEL = -1;
+
+    private int targetLevel = BOTTOM_LEVEL;
+    private int maxSubcompactions = 4;
+    private boolean forceBottommostRewrite = false;
+    private CompactionProgressListener progressListener;
+
+    public int getTargetLevel() {
+        return targetLevel;
+    }
+
+    public void setTargetLevel(int targetLevel) {
+        this.targetLevel = targetLevel;
+    }
+
+    public int getMaxSubcompactions() {
+        return maxSubcompactions;
+    }
+
+    public void setMaxSubcompactions(int maxSubcompactions) {
+        if (maxSubcompactions < 1) {
+            throw new IllegalArgumentException("maxSubcompactions must be at least 1");
+        }
+        this.maxSubcompactions = maxSubcompactions;
+    }
+
+    // when false, files already at the bottom level are only rewritten if they still hold tombstones
+    public boolean isForceBottommostRewrite() {
+        return forceBottommostRewrite;
+    }
+
+    public void setForceBottommostRewrite(boolean forceBottommostRewrite) {
+        this.forceBottommostRewrite = forceBottommostRewrite;
+    }
+
+    public CompactionProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    public void setProgressListener(CompactionProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+}
@@ -0,0 +1,94 @@
+package org.lsmtdb.core.compaction;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// called by the merger for every value that survives a compaction and that no live snapshot can read, so a
+// snapshot never sees a rewritten value. compactions run in parallel, so implementations must be thread safe.
+// blocks copied through a merge untouched and files moved down a level are not filtered
+public interface CompactionFilter {
+
+    Decision filter(Context context, byte[] key, byte[] value);
+
+    final class Decision {
+        private static final Decision KEEP = new Decision(false, null);
+        private static final Decision REMOVE = new Decision(true, null);
+
+        private final boolean remove;
+        private final byte[] newValue;
+
+        private Decision(boolean remove, byte[] newValue) {
+            this.remove = remove;
+            this.newValue = newValue;
+        }
+
+        public static Decision keep() {
+            return KEEP;
+        }
+
+        // the entry becomes a tombstone, so older versions of the key stay hidden until it reaches the bottom level
+        public static Decision remove() {
+            return REMOVE;
+        }
+
+        public static Decision changeValue(byte[] newValue) {
+            if (newValue == null) {
+                throw new IllegalArgumentException("new value must not be null, use remove()");
+            }
+            return new Decision(false, newValue);
+        }
+
+        public boolean isRemove() {
+            return remove;
+        }
+
+        // null unless the value is replaced
+        public byte[] getNewValue() {
+            return newValue;
+        }
+    }
+
+    // one compaction's view, shared by every call the filter gets during it
+    final class Context {
+        private final int outputLevel;
+        private final boolean bottommost;
+        private final AtomicLong kept = new AtomicLong();
+        private final AtomicLong removed = new AtomicLong();
+        private final AtomicLong changed = new AtomicLong();
+
+        public Context(int outputLevel, boolean bottommost) {
+            this.outputLevel = outputLevel;
+            this.bottommost = bottommost;
+        }
+
+        public int getOutputLevel() {
+            return outputLevel;
+        }
+
+        // nothing older than the compaction's inputs sits below them
+        public boolean isBottommost() {
+            return bottommost;
+        }
+
+        public void record(Decision decision) {
+            if (decision.isRemove()) {
+                removed.incrementAndGet();
+            } else if (decision.getNewValue() != null) {
+                changed.incrementAndGet();
+            } else {
+                kept.incrementAndGet();
+            }
+        }
+
+        public long getKeptCount() {
+            return kept.get();
+        }
+
+        public long getRemovedCount() {
+            return removed.get();
+        }
+
+        public long getChangedCount() {
+            return changed.get();
+        }
+    }
+}
@@ -1,14 +1,25 @@
 package org.lsmtdb.core.compaction;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.RangeTombstone;
+import org.lsmtdb.core.merge.MergeOperator;
+import org.lsmtdb.core.snapshot.SnapshotList;
+import org.lsmtdb.core.manifest.VersionEdit;
+import org.lsmtdb.core.ratelimit.RateLimiter;
 import org.lsmtdb.core.sstable.SSTableMetadata;
-import org.lsmtdb.core.sstable.SSTableReader;
+import org.lsmtdb.core.sstable.TableCache;
 import org.lsmtdb.core.sstable.TableDirectory;
 import org.lsmtdb.core.sstable.merger.*;
 
@@ -16,187 +27,578 @@ import org.lsmtdb.core.sstable.merger.*;
 public class CompactionManager {
     private final List<LevelMetadata> levels;
     private final CompactionStrategy compactionStrategy;
+    private final CompactionPools pools;
     private final ExecutorService compactionExecutor;
+    private final ExecutorService manualCompactionExecutor;
+    private final ExecutorService l0SubcompactionExecutor;
     private final Map<Integer,Future<?>> activeCompaction;
     private final ReentrantLock compactionLock;
-    private static final int MAX_CONCURRENT_COMPACTIONS = 1;
-    private static final int COMPACTION_CHECK_INTERVAL_MS = 60*30;
+    private static final int MAX_PARALLEL_L0_COMPACTIONS = CompactionPools.MAX_PARALLEL_L0_COMPACTIONS;
+    public static final int COMPACTION_CHECK_INTERVAL_MS = 60*30;
     private final TableDirectory tableDirectory;
-
-    public CompactionManager(){
-        this.tableDirectory = TableDirectory.getInstance();
+    private final SnapshotList snapshotList;
+    private volatile CompactionFilter compactionFilter;
+    private volatile MergeOperator mergeOperator;
+    // files carrying range tombstones whose covered files have not been looked for yet
+    private final Queue<SSTableMetadata> pendingTombstoneSources = new ConcurrentLinkedQueue<>();
+
+    // compacts the levels of one column family on the store's shared pools
+    public CompactionManager(TableDirectory tableDirectory, SnapshotList snapshotList, CompactionPools pools){
+        this.tableDirectory = tableDirectory;
+        this.snapshotList = snapshotList;
         this.levels = tableDirectory.getAllLevels();
         this.compactionStrategy = new CompactionStrategy();
-        this.compactionExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_COMPACTIONS);
+        this.pools = pools;
+        this.compactionExecutor = pools.compactionExecutor;
+        this.manualCompactionExecutor = pools.manualCompactionExecutor;
+        this.l0SubcompactionExecutor = pools.l0SubcompactionExecutor;
         this.activeCompaction = new ConcurrentHashMap<>();
         this.compactionLock = new ReentrantLock();
     }
 
-    public void startCompactionDaemon(){
-        Thread daemon = new Thread(() -> {
-            while(!Thread.currentThread().isInterrupted()){
-                try{
-                    checkAndTriggerCompaction();
-                    Thread.sleep(COMPACTION_CHECK_INTERVAL_MS);
-                } catch (InterruptedException e){
-                    Thread.currentThread().interrupt();
-                    break;
-                }
-            }
-        });
-        daemon.setDaemon(true);
-        daemon.start();
-    }
-
     public void checkAndTriggerCompaction(){
         if(!compactionLock.tryLock()){
             return;
         }
 
         try{
+            dropPendingCoveredFiles();
+            dropExpiredFiles();
+            compactionStrategy.updateLevelTargets(levels);
+            RateLimiter.getInstance().updateCompactionDebt(this, compactionStrategy.pendingCompactionBytes(levels));
             for(int i = 0; i< levels.size()-1 ; i++){
                 LevelMetadata currentLevel = levels.get(i);
                 if(compactionStrategy.shouldCompact(currentLevel)){
                     
-                    LevelMetadata nextLevel = i < levels.size()-1 ? levels.get(i + 1) : null;
+                    LevelMetadata nextLevel = levels.get(nextLevelFor(i));
+                    if(i == 0 && activeCompaction.containsKey(nextLevel.levelNumber)){
+                        triggerIntraL0Compaction(currentLevel);
+                        return;
+                    }
                     triggerCompaction(currentLevel, nextLevel);
-                    break;
+                    return;
                 }
             }
+            if(triggerSeekCompaction()){
+                return;
+            }
+            triggerDeletionCompaction();
         }finally{
             compactionLock.unlock();
         }
     }
 
+    // l0 compacts straight into the base level; levels between l0 and the base level are normally empty
+    private int nextLevelFor(int level){
+        return level == 0 ? compactionStrategy.getBaseLevel() : level + 1;
+    }
+
+    public void setLevelSizeMultiplier(int levelSizeMultiplier){
+        compactionStrategy.setLevelSizeMultiplier(levelSizeMultiplier);
+    }
+
+    public void setDynamicLevelSizing(boolean dynamicLevelSizing){
+        compactionStrategy.setDynamicLevelSizing(dynamicLevelSizing);
+    }
+
+    public CompactionFilter getCompactionFilter(){
+        return compactionFilter;
+    }
+
+    // null turns filtering off; compactions already running keep the filter they started with
+    public void setCompactionFilter(CompactionFilter compactionFilter){
+        this.compactionFilter = compactionFilter;
+    }
+
+    public MergeOperator getMergeOperator(){
+        return mergeOperator;
+    }
+
+    // folds merge operands during compactions; null carries them over untouched
+    public void setMergeOperator(MergeOperator mergeOperator){
+        this.mergeOperator = mergeOperator;
+    }
+
     private void triggerCompaction(LevelMetadata currentLevel, LevelMetadata nextLevel){
         if(activeCompaction.containsKey(nextLevel.levelNumber)){
             return;
         }
-        ;
-        List<SSTableMetadata> sstTablesToCompact = compactionStrategy.findOverlaps(currentLevel.sstables.get(0), nextLevel.sstables);
+        if(currentLevel.levelNumber == 0){
+            triggerL0Compaction(currentLevel, nextLevel);
+            return;
+        }
+        SSTableMetadata source = pickCompactionSource(currentLevel);
+        if(source == null){
+            return;
+        }
+        compactFile(source, currentLevel, nextLevel);
+    }
+
+    // partitioned flushes leave l0 files that each overlap only a slice of the next level, so several of them
+    // are compacted at once as independent subcompactions under a single active compaction
+    private void triggerL0Compaction(LevelMetadata level0, LevelMetadata nextLevel){
+        List<SSTableMetadata> sources = compactionStrategy.pickL0Compactions(level0, nextLevel, MAX_PARALLEL_L0_COMPACTIONS);
+        if(sources.isEmpty()){
+            return;
+        }
+        if(sources.size() == 1){
+            compactFile(sources.get(0), level0, nextLevel);
+            return;
+        }
+
+        List<List<SSTableMetadata>> jobs = new ArrayList<>();
+        for(SSTableMetadata source : sources){
+            List<SSTableMetadata> job = new ArrayList<>();
+            job.add(source);
+            job.addAll(compactionStrategy.findOverlaps(source, nextLevel.sstables));
+            job.forEach(s -> s.setBeingCompacted(true));
+            jobs.add(job);
+        }
+        System.out.println("compaction triggred at level 0 for " + sources.size() + " sstables in parallel into level " + nextLevel.levelNumber);
+        Future<?> future = compactionExecutor.submit(() -> {
+            try{
+                runSubcompactions(0, jobs, nextLevel, l0SubcompactionExecutor, new CompactRangeOptions());
+            }catch(IOException e){
+                handleCompactionError(0, e);
+            }finally{
+                activeCompaction.remove(nextLevel.levelNumber);
+            }
+        });
+        activeCompaction.put(nextLevel.levelNumber, future);
+    }
+
+    // while l0 -> l1 is busy, new l0 files would pile up and every read probes each of them, so merge the oldest
+    // idle run of l0 files into a single l0 file instead of waiting
+    private void triggerIntraL0Compaction(LevelMetadata level0){
+        if(activeCompaction.containsKey(level0.levelNumber)){
+            return;
+        }
+        List<SSTableMetadata> run = compactionStrategy.pickIntraL0Compaction(level0);
+        if(run.isEmpty()){
+            return;
+        }
+        System.out.println("l1 busy, intra-l0 compaction of " + run.size() + " files");
+        submitCompaction(level0, level0, run);
+    }
+
+    // a file that keeps being probed without holding the key is pushed into the next level so later reads
+    // of those keys need one probe fewer
+    private boolean triggerSeekCompaction(){
+        SSTableMetadata source = compactionStrategy.pickSeekCompaction(levels);
+        if(source == null){
+            return false;
+        }
+        LevelMetadata currentLevel = levels.get(source.getLevel());
+        LevelMetadata nextLevel = levels.get(nextLevelFor(source.getLevel()));
+        if(activeCompaction.containsKey(nextLevel.levelNumber)){
+            return false;
+        }
+        // l0 files must leave in age order, so the regular l0 pick decides which files go
+        if(source.getLevel() == 0){
+            triggerCompaction(currentLevel, nextLevel);
+            return true;
+        }
+        System.out.println("seek triggered compaction at level " + currentLevel.levelNumber + " for sstable " + source.getFileNumber());
+        compactFile(source, currentLevel, nextLevel);
+        return true;
+    }
+
+    // files whose tombstone density over a sliding window crosses the threshold are compacted even when no level is over size
+    private void triggerDeletionCompaction(){
+        SSTableMetadata source = compactionStrategy.pickDeletionCompaction(levels);
+        if(source == null){
+            return;
+        }
+        LevelMetadata currentLevel = levels.get(source.getLevel());
+        if(source.getLevel() == 0){
+            triggerCompaction(currentLevel, levels.get(nextLevelFor(0)));
+            return;
+        }
+        System.out.println("deletion triggered compaction at level " + currentLevel.levelNumber + " for sstable " + source.getFileNumber() + ", maxWindowTombstones=" + source.getMaxWindowTombstones());
+        if(source.getLevel() == levels.size() - 1 || isBottommost(source.getLevel(), List.of(source))){
+            if(!activeCompaction.containsKey(currentLevel.levelNumber)){
+                submitCompaction(currentLevel, currentLevel, List.of(source));
+            }
+            return;
+        }
+        LevelMetadata nextLevel = levels.get(nextLevelFor(source.getLevel()));
+        if(!activeCompaction.containsKey(nextLevel.levelNumber)){
+            compactFile(source, currentLevel, nextLevel);
+        }
+    }
+
+    private void compactFile(SSTableMetadata source, LevelMetadata currentLevel, LevelMetadata nextLevel){
+        List<SSTableMetadata> overlaps = compactionStrategy.findOverlaps(source, nextLevel.sstables);
+        if(overlaps.stream().anyMatch(SSTableMetadata::isBeingCompacted)){
+            return;
+        }
 
-        if(sstTablesToCompact.isEmpty()){
-            System.out.println("compaction triggred at level " + currentLevel.levelNumber + " for sstable  " + currentLevel.sstables.get(0));
-            handleNoOverlap(currentLevel.sstables.get(0));
+        if(overlaps.isEmpty()){
+            System.out.println("compaction triggred at level " + currentLevel.levelNumber + " for sstable  " + source.getFileNumber() + ", trivial move");
+            handleNoOverlap(source, nextLevel.levelNumber);
             return;
         }
 
+        List<SSTableMetadata> sstTablesToCompact = new ArrayList<>();
+        sstTablesToCompact.add(source);
+        sstTablesToCompact.addAll(overlaps);
+        submitCompaction(currentLevel, nextLevel, sstTablesToCompact);
+    }
+
+    private void submitCompaction(LevelMetadata currentLevel, LevelMetadata outputLevel, List<SSTableMetadata> sstTablesToCompact){
+        sstTablesToCompact.forEach(s -> s.setBeingCompacted(true));
+
         Future<?> future = compactionExecutor.submit(()->{
             try{
                 System.out.println("compaction triggred at level " + currentLevel.levelNumber + " for sstable  " + sstTablesToCompact.get(0).getFileNumber());
-                performCompaction(currentLevel, nextLevel, sstTablesToCompact);
+                performCompaction(outputLevel, sstTablesToCompact);
             }catch(Exception e){
+                sstTablesToCompact.forEach(s -> s.setBeingCompacted(false));
                 handleCompactionError(currentLevel.levelNumber, e);
             }finally{
-                activeCompaction.remove(nextLevel.levelNumber);
+                activeCompaction.remove(outputLevel.levelNumber);
             }
         });
-        activeCompaction.put(nextLevel.levelNumber, future);
+        activeCompaction.put(outputLevel.levelNumber, future);
     }
 
-    private void performCompaction(LevelMetadata currentLevel , LevelMetadata nextLevel, List<SSTableMetadata> sstTablesToCompact) throws IOException {
-        List<SSTableMetadata> newSSTables = mergeSSTables(sstTablesToCompact);
+    // the output is bottommost when no deeper level holds a file overlapping the inputs' key range
+    private boolean isBottommost(int outputLevel, List<SSTableMetadata> inputs){
+        // other l0 files may hold older versions of the same keys
+        if(outputLevel == 0){
+            return false;
+        }
+        SSTableMetadata range = compactionStrategy.keyRange(inputs);
+        for(int level = outputLevel + 1; level < levels.size(); level++){
+            if(!compactionStrategy.findOverlaps(range, levels.get(level).sstables).isEmpty()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private SSTableMetadata pickCompactionSource(LevelMetadata level){
+        for(SSTableMetadata sstable : level.sstables){
+            if(!sstable.isBeingCompacted()){
+                return sstable;
+            }
+        }
+        return null;
+    }
 
-        currentLevel.sstables.removeAll(sstTablesToCompact);
-        currentLevel.totalSize -= sstTablesToCompact.stream().mapToLong(SSTableMetadata::getFileSize).sum();
+    private void performCompaction(LevelMetadata outputLevel, List<SSTableMetadata> sstTablesToCompact) throws IOException {
+        boolean bottommost = isBottommost(outputLevel.levelNumber, sstTablesToCompact);
+        List<SSTableMetadata> newSSTables = mergeSSTables(sstTablesToCompact, outputLevel.levelNumber, bottommost);
+
+        // outputs and inputs swap in a single version, so a reader sees either the old files or the new ones
+        VersionEdit edit = new VersionEdit();
+        for (SSTableMetadata sstable : newSSTables) {
+            edit.addFile(sstable);
+        }
+        for (SSTableMetadata sstable : sstTablesToCompact) {
+            edit.deleteFile(sstable.getLevel(), sstable.getFilePath());
+        }
+        tableDirectory.logAndApply(edit);
 
-        if (nextLevel != null) {
-            nextLevel.sstables.addAll(newSSTables);
-            nextLevel.totalSize += newSSTables.stream()
-                .mapToLong(SSTableMetadata::getFileSize)
-                .sum();
+        for (SSTableMetadata sstable : newSSTables) {
+            queueRangeTombstoneCheck(sstable);
         }
+    }
 
-        cleanupOldSSTables(sstTablesToCompact);
+    // files whose whole key range sits under a newer range tombstone are deleted outright instead of being rewritten.
+    // the search runs with the next compaction check, under the compaction lock, so it never picks a file that a
+    // compaction is about to claim; the tombstones hide the covered data until then
+    public void queueRangeTombstoneCheck(SSTableMetadata source){
+        if(source != null && source.getRangeTombstoneCount() > 0){
+            pendingTombstoneSources.add(source);
+        }
     }
 
-    private List<SSTableMetadata> mergeSSTables(List<SSTableMetadata> sstablesToCompact) throws IOException {
-        return SSTableMerger.mergeSSTables(sstablesToCompact);
+    // caller holds compactionLock
+    private void dropPendingCoveredFiles(){
+        SSTableMetadata source;
+        while((source = pendingTombstoneSources.poll()) != null){
+            // a source compacted away in the meantime left its tombstones to its outputs, which are queued themselves
+            if(levels.get(source.getLevel()).sstables.contains(source)){
+                dropFilesCoveredByRangeTombstones(source);
+            }
+        }
     }
 
-    private void cleanupOldSSTables(List<SSTableMetadata> oldSSTables) {
-        for (SSTableMetadata meta : oldSSTables) {
-            File file = new File(meta.getFilePath());
-            boolean deleted = file.delete();
-            if (!deleted) {
-                System.err.println("failed to delete sstable file: " + meta.getFilePath());
+    private void dropFilesCoveredByRangeTombstones(SSTableMetadata source){
+        List<RangeTombstone> tombstones;
+        try(TableCache.Handle handle = TableCache.getInstance().acquire(source)){
+            tombstones = handle.reader().getRangeTombstones();
+        }catch(IOException e){
+            System.err.println("failed to read range tombstones from " + source.getFilePath() + ": " + e.getMessage());
+            return;
+        }
+
+        long[] snapshots = snapshotList.liveSequences();
+        List<SSTableMetadata> covered = new ArrayList<>();
+        for(LevelMetadata level : levels){
+            for(SSTableMetadata sstable : new ArrayList<>(level.sstables)){
+                if(sstable == source || sstable.isBeingCompacted() || sstable.getMaxTimestamp() <= 0){
+                    continue;
+                }
+                for(RangeTombstone tombstone : tombstones){
+                    // a snapshot taken between the file's writes and the tombstone still reads the file
+                    boolean sameStripe = SnapshotList.stripe(snapshots, sstable.getMinTimestamp()) == SnapshotList.stripe(snapshots, tombstone.getTimestamp());
+                    if(sstable.getMaxTimestamp() < tombstone.getTimestamp() && sameStripe && tombstone.containsRange(sstable.getMinKey(), sstable.getMaxKey())){
+                        covered.add(sstable);
+                        break;
+                    }
+                }
+            }
+        }
+        if(!covered.isEmpty()){
+            System.out.println("dropping " + covered.size() + " sstables fully covered by range tombstones in " + source.getFilePath());
+            covered.forEach(s -> s.setBeingCompacted(true));
+            try{
+                cleanupOldSSTables(covered);
+            }catch(RuntimeException e){
+                covered.forEach(s -> s.setBeingCompacted(false));
+                throw e;
             }
-            tableDirectory.removeSSTables(meta.getLevel(), List.of(meta));
         }
     }
 
-    private void handleCompactionError(int levelNumber, Exception e) {
-        System.err.println("compaction error at level " + levelNumber + ": " + e.getMessage());
-        e.printStackTrace();
+    // files in which every value has passed its ttl are deleted without being read. an expired value still hides
+    // older versions of its key, so a file only goes once nothing older overlaps it; levels are walked deepest
+    // first and l0 oldest first, letting a stack of expired files go in one pass
+    private void dropExpiredFiles(){
+        long now = System.currentTimeMillis();
+        List<SSTableMetadata> expired = new ArrayList<>();
+        for(int level = levels.size() - 1; level >= 0; level--){
+            List<SSTableMetadata> candidates = new ArrayList<>(levels.get(level).sstables);
+            candidates.sort(Comparator.comparingLong(SSTableMetadata::getMaxTimestamp));
+            for(SSTableMetadata sstable : candidates){
+                if(sstable.isExpired(now) && !sstable.isBeingCompacted() && !overlapsOlderData(sstable, expired)){
+                    expired.add(sstable);
+                }
+            }
+        }
+        if(!expired.isEmpty()){
+            System.out.println("dropping " + expired.size() + " sstables whose values have all expired");
+            cleanupOldSSTables(expired);
+        }
     }
 
-    public void shutdown() {
-        compactionExecutor.shutdown();
-        try {
-            if (!compactionExecutor.awaitTermination(60, TimeUnit.SECONDS)) {
-                compactionExecutor.shutdownNow();
+    private boolean overlapsOlderData(SSTableMetadata sstable, List<SSTableMetadata> dropping){
+        for(int level = sstable.getLevel(); level < levels.size(); level++){
+            for(SSTableMetadata other : compactionStrategy.findOverlaps(sstable, levels.get(level).sstables)){
+                if(other == sstable || dropping.contains(other)){
+                    continue;
+                }
+                // an l0 neighbour is only older when it holds sequences below this file's newest
+                if(level > sstable.getLevel() || other.getMinTimestamp() < sstable.getMaxTimestamp()){
+                    return true;
+                }
             }
-        } catch (InterruptedException e) {
-            compactionExecutor.shutdownNow();
-            Thread.currentThread().interrupt();
         }
+        return false;
     }
 
-    public void addSSTableToLevel(SSTableMetadata sstable, int level) {
-        if (level >= 0 && level < levels.size()) {
-            LevelMetadata levelMetadata = levels.get(level);
-            levelMetadata.sstables.add(sstable);
-            levelMetadata.totalSize += sstable.getFileSize();
+    private List<SSTableMetadata> mergeSSTables(List<SSTableMetadata> sstablesToCompact, int outputLevel, boolean bottommost) throws IOException {
+        return SSTableMerger.mergeSSTables(tableDirectory, snapshotList, sstablesToCompact, outputLevel, bottommost, compactionFilter, mergeOperator);
+    }
+
+    // the files themselves are deleted once no reader's version still lists them
+    private void cleanupOldSSTables(List<SSTableMetadata> oldSSTables) {
+        VersionEdit edit = new VersionEdit();
+        for (SSTableMetadata meta : oldSSTables) {
+            edit.deleteFile(meta.getLevel(), meta.getFilePath());
         }
+        tableDirectory.logAndApply(edit);
     }
 
-    void handleNoOverlap(SSTableMetadata sstTable){
-        SSTableIterator iterator;
-        try(SSTableReader reader = new SSTableReader(sstTable.getFilePath())){
-            iterator = new SSTableIterator(reader);
-            int level = sstTable.getLevel();
-            String newFilePath = tableDirectory.generatePath(level+1);
-            int fileNumber = tableDirectory.getAndIncrementNextFileNumber();
+    private void handleCompactionError(int levelNumber, Exception e) {
+        System.err.println("compaction error at level " + levelNumber + ": " + e.getMessage());
+        e.printStackTrace();
+    }
 
-            ByteArrayWrapper minKey = null;
-            ByteArrayWrapper maxKey = null;
+    // compacts every level overlapping [start, end] down to the target level; null bounds leave that side open.
+    // background compactions are paused while it runs, and independent key ranges are compacted in parallel
+    public CompletableFuture<Void> compactRange(ByteArrayWrapper start, ByteArrayWrapper end, CompactRangeOptions options){
+        CompactRangeOptions rangeOptions = options != null ? options : new CompactRangeOptions();
+        return CompletableFuture.runAsync(() -> {
+            try{
+                runCompactRange(start, end, rangeOptions);
+            }catch(IOException e){
+                throw new CompletionException(e);
+            }
+        }, manualCompactionExecutor);
+    }
 
-            try(SSTableStreamWriter writer = new SSTableStreamWriter(newFilePath)){ 
-                while (iterator.hasNext()) {
-                    iterator.next();
+    private void runCompactRange(ByteArrayWrapper start, ByteArrayWrapper end, CompactRangeOptions options) throws IOException {
+        int bottomLevel = levels.size() - 1;
+        int targetLevel = options.getTargetLevel() == CompactRangeOptions.BOTTOM_LEVEL ? bottomLevel : options.getTargetLevel();
+        if(targetLevel < 0 || targetLevel > bottomLevel){
+            throw new IllegalArgumentException("invalid target level: " + targetLevel);
+        }
 
-                    ByteArrayWrapper key = iterator.getCurrentKey();
-                    byte[] value = iterator.getCurrentValue();
-                    long timestamp = iterator.getCurrentTimestamp();
+        compactionLock.lock();
+        try{
+            awaitActiveCompactions();
+            for(int level = 0; level < targetLevel; level++){
+                // l0 goes to the base level like the background compactions, the empty levels above it are skipped over
+                LevelMetadata outputLevel = levels.get(level == 0 ? Math.min(nextLevelFor(0), targetLevel) : level + 1);
+                List<SSTableMetadata> inputs = compactionStrategy.findInRange(levels.get(level).sstables, start, end);
+                if(inputs.isEmpty()){
+                    continue;
+                }
+                if(level == 0){
+                    // an l0 file left behind would sit above newer data moved down past it
+                    inputs = compactionStrategy.expandL0Inputs(inputs, levels.get(0).sstables);
+                }
+                List<List<SSTableMetadata>> jobs = compactionStrategy.groupDisjoint(inputs, outputLevel.sstables);
+                System.out.println("manual compaction of level " + level + " into level " + outputLevel.levelNumber + ": " + inputs.size() + " files in " + jobs.size() + " subcompactions");
+                runSubcompactions(level, jobs, outputLevel, l0SubcompactionExecutor, options);
+            }
 
-                    if(value == null) continue;
+            if(targetLevel == bottomLevel){
+                LevelMetadata bottom = levels.get(bottomLevel);
+                List<List<SSTableMetadata>> jobs = new ArrayList<>();
+                for(SSTableMetadata sstable : compactionStrategy.findInRange(bottom.sstables, start, end)){
+                    // a filter gets to see every bottom file too, that is usually why a range is compacted by hand
+                    if(options.isForceBottommostRewrite() || compactionFilter != null || sstable.getTombstoneCount() > 0 || sstable.getRangeTombstoneCount() > 0){
+                        jobs.add(List.of(sstable));
+                    }
+                }
+                runSubcompactions(bottomLevel, jobs, bottom, l0SubcompactionExecutor, options);
+            }
+        }finally{
+            compactionLock.unlock();
+        }
+    }
 
-                    writer.writeEntry(key.getData(), value, timestamp);
+    private void runSubcompactions(int level, List<List<SSTableMetadata>> jobs, LevelMetadata outputLevel, ExecutorService executor, CompactRangeOptions options) throws IOException {
+        if(jobs.isEmpty()){
+            return;
+        }
+        CompactionProgressListener listener = options.getProgressListener();
+        AtomicInteger completed = new AtomicInteger();
+        // the pool is shared, so the job count per call is held to maxSubcompactions here instead
+        Semaphore slots = new Semaphore(options.getMaxSubcompactions());
+        List<Future<?>> futures = new ArrayList<>();
+        for(List<SSTableMetadata> job : jobs){
+            job.forEach(s -> s.setBeingCompacted(true));
+            slots.acquireUninterruptibly();
+            futures.add(executor.submit(() -> {
+                try{
+                    if(job.size() == 1 && job.get(0).getLevel() < outputLevel.levelNumber){
+                        handleNoOverlap(job.get(0), outputLevel.levelNumber);
+                    }else{
+                        performCompaction(outputLevel, job);
+                    }
+                }catch(IOException | RuntimeException e){
+                    job.forEach(s -> s.setBeingCompacted(false));
+                    throw e;
+                }finally{
+                    slots.release();
+                }
+                int done = completed.incrementAndGet();
+                if(listener != null){
+                    listener.onProgress(level, done, jobs.size());
+                }
+                return null;
+            }));
+        }
 
-                    if(minKey == null || key.compareTo(minKey) < 0) minKey = key;
-                    if(maxKey == null || key.compareTo(maxKey) > 0) maxKey = key;
+        IOException failure = null;
+        for(Future<?> future : futures){
+            try{
+                future.get();
+            }catch(ExecutionException e){
+                handleCompactionError(level, (Exception) e.getCause());
+                if(failure == null){
+                    failure = new IOException("subcompaction failed at level " + level, e.getCause());
                 }
-                writer.finish();
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for subcompactions");
             }
+        }
+        if(failure != null){
+            throw failure;
+        }
+    }
 
-            if(minKey == null || maxKey == null) {
-                tableDirectory.removeSSTables(level, List.of(sstTable));
-                new File(sstTable.getFilePath()).delete();
+    private void awaitActiveCompactions(){
+        for(Future<?> future : new ArrayList<>(activeCompaction.values())){
+            try{
+                future.get();
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
                 return;
+            }catch(ExecutionException | CancellationException e){
+                // failures are already reported by the compaction task itself
+            }
+        }
+    }
+
+    // stops the pools; when they are shared the store shuts them down once instead
+    public void shutdown() {
+        pools.shutdown();
+    }
+
+    public void addSSTableToLevel(SSTableMetadata sstable, int level) {
+        if (level >= 0 && level < levels.size()) {
+            tableDirectory.addSSTable(level, sstable);
+        }
+    }
+
+    // moves a file that overlaps nothing in the target level without rewriting it: the data is hard-linked
+    // (or copied when links are unsupported) into the target level's directory and only the manifest changes.
+    // the source is never renamed, pinned versions may still read it; it goes with the other obsolete files
+    void handleNoOverlap(SSTableMetadata sstTable, int targetLevel){
+        int level = sstTable.getLevel();
+        int fileNumber = tableDirectory.getAndIncrementNextFileNumber();
+        String newFilePath = tableDirectory.generatePath(targetLevel, fileNumber);
+        Path source = Paths.get(sstTable.getFilePath());
+        Path target = Paths.get(newFilePath);
+
+        try{
+            Files.createDirectories(target.getParent());
+            boolean linked;
+            try{
+                Files.createLink(target, source);
+                linked = true;
+            }catch(UnsupportedOperationException | IOException e){
+                Files.deleteIfExists(target);
+                copyFile(source, target);
+                linked = false;
             }
 
-            File newFile = new File(newFilePath);
             SSTableMetadata newMeta = tableDirectory.allocateNewSSTable(
-                level, minKey, maxKey, newFile.length(), newFilePath, fileNumber
+                targetLevel, sstTable.getMinKey(), sstTable.getMaxKey(), sstTable.getFileSize(), newFilePath, fileNumber
             );
+            newMeta.copyStatsFrom(sstTable);
 
-            tableDirectory.removeSSTables(level, List.of(sstTable));
-            tableDirectory.addSSTable(level +1, newMeta);
-
-            new File(sstTable.getFilePath()).delete();
+            VersionEdit edit = new VersionEdit();
+            edit.deleteFile(level, sstTable.getFilePath());
+            edit.addFile(newMeta);
+            tableDirectory.logAndApply(edit);
+            System.out.println("trivial move of " + sstTable.getFilePath() + " to " + newFilePath + (linked ? " (hard link)" : " (copy)"));
+        }catch(IOException e){
+            throw new RuntimeException("Error moving sstable " + sstTable.getFilePath() + " to level " + targetLevel, e);
+        }
+    }
 
+    // the copy is synced before the manifest names it, so a crash leaves either the old entry or a complete file.
+    // a failed copy is removed here, no manifest entry will ever point at it
+    private static void copyFile(Path source, Path target) throws IOException {
+        try(FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)){
+            long size = in.size();
+            long position = 0;
+            while(position < size){
+                position += in.transferTo(position, size - position, out);
+            }
+            out.force(true);
         }catch(IOException e){
-            throw new RuntimeException("Error creating SSTableIterator for " + sstTable.getFilePath(), e);
+            Files.deleteIfExists(target);
+            throw e;
         }
-    } 
+    }
 }
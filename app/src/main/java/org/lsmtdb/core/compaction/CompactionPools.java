@@ -0,0 +1,36 @@
+package org.lsmtdb.core.compaction;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// background compaction threads. the column families of a store share one set, so adding families does not
+// add threads and their compactions compete for the same slots
+public class CompactionPools {
+    static final int MAX_CONCURRENT_COMPACTIONS = 2;
+    static final int MAX_PARALLEL_L0_COMPACTIONS = 4;
+
+    final ExecutorService compactionExecutor;
+    final ExecutorService manualCompactionExecutor;
+    final ExecutorService l0SubcompactionExecutor;
+
+    public CompactionPools(){
+        this.compactionExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_COMPACTIONS);
+        this.manualCompactionExecutor = Executors.newSingleThreadExecutor();
+        this.l0SubcompactionExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_L0_COMPACTIONS);
+    }
+
+    public void shutdown() {
+        manualCompactionExecutor.shutdown();
+        l0SubcompactionExecutor.shutdown();
+        compactionExecutor.shutdown();
+        try {
+            if (!compactionExecutor.awaitTermination(60, TimeUnit.SECONDS)) {
+                compactionExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            compactionExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
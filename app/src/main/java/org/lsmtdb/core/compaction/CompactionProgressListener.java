@@ -0,0 +1,5 @@
+package org.lsmtdb.core.compaction;
+
+public interface CompactionProgressListener {
+    void onProgress(int level, int completedJobs, int totalJobs);
+}
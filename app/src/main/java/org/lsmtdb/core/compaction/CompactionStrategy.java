@@ -1,17 +1,268 @@
 package org.lsmtdb.core.compaction;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import org.lsmtdb.common.ByteArrayWrapper;
 import org.lsmtdb.core.sstable.SSTableMetadata;
+import org.lsmtdb.core.sstable.util.DeletionStatsCollector;
 import java.util.stream.Collectors;
 
 public class CompactionStrategy {
+    private static final int DELETION_TRIGGER_WINDOW_TOMBSTONES = DeletionStatsCollector.WINDOW_SIZE / 2;
+    private static final int MIN_INTRA_L0_FILES = 4;
+    private static final long MAX_INTRA_L0_BYTES = 64L * 1024 * 1024;
+    private static final long BASE_LEVEL_MIN_BYTES = 8 * 4 * 1024 * 1024;
+    private int levelSizeMultiplier = 10;
+    private boolean dynamicLevelSizing = true;
+    private int baseLevel = 1;
+
+    // l0 files overlap, so their age (newest entry, then file number) decides which one shadows another
+    static final Comparator<SSTableMetadata> OLDEST_FIRST = Comparator.comparingLong(SSTableMetadata::getMaxTimestamp).thenComparingInt(SSTableMetadata::getFileNumber);
+
     boolean shouldCompact(LevelMetadata level){
         return level.totalSize > level.maxSize;
     }
 
+    // targets are derived backwards from the deepest non-empty level: the bottom level keeps its actual size and each
+    // level above gets 1/multiplier of the one below, down to BASE_LEVEL_MIN_BYTES. levels above that point get a
+    // target of zero so l0 skips them and flushes go to the base level, unless an upper level still holds data.
+    // l0 keeps its own target
+    void updateLevelTargets(List<LevelMetadata> levels){
+        int maxLevel = levels.size() - 1;
+        if(!dynamicLevelSizing){
+            for(int level = 1; level <= maxLevel; level++){
+                levels.get(level).maxSize = LevelMetadata.defaultMaxSize(level);
+            }
+            baseLevel = 1;
+            return;
+        }
+
+        long bottomSize = 0;
+        int firstNonEmpty = maxLevel;
+        for(int level = maxLevel; level >= 1; level--){
+            if(levels.get(level).totalSize > 0){
+                if(bottomSize == 0){
+                    bottomSize = levels.get(level).totalSize;
+                }
+                firstNonEmpty = level;
+            }
+        }
+
+        long[] targets = new long[levels.size()];
+        targets[maxLevel] = Math.max(bottomSize, BASE_LEVEL_MIN_BYTES);
+        int base = maxLevel;
+        for(int level = maxLevel - 1; level >= 1; level--){
+            long target = targets[level + 1] / levelSizeMultiplier;
+            if(target < BASE_LEVEL_MIN_BYTES){
+                break;
+            }
+            targets[level] = target;
+            base = level;
+        }
+        // l0 must never skip a level that still holds data, or newer versions would land below older ones
+        for(int level = firstNonEmpty; level < base; level++){
+            targets[level] = BASE_LEVEL_MIN_BYTES;
+        }
+        base = Math.min(base, firstNonEmpty);
+        for(int level = 1; level <= maxLevel; level++){
+            levels.get(level).maxSize = targets[level];
+        }
+        if(base != baseLevel){
+            System.out.println("base level changed from " + baseLevel + " to " + base + ", bottom level size=" + bottomSize);
+        }
+        baseLevel = base;
+    }
+
+    int getBaseLevel(){
+        return baseLevel;
+    }
+
+    int getLevelSizeMultiplier(){
+        return levelSizeMultiplier;
+    }
+
+    void setLevelSizeMultiplier(int levelSizeMultiplier){
+        if(levelSizeMultiplier < 2){
+            throw new IllegalArgumentException("level size multiplier must be at least 2");
+        }
+        this.levelSizeMultiplier = levelSizeMultiplier;
+    }
+
+    boolean isDynamicLevelSizing(){
+        return dynamicLevelSizing;
+    }
+
+    void setDynamicLevelSizing(boolean dynamicLevelSizing){
+        this.dynamicLevelSizing = dynamicLevelSizing;
+    }
+
+    long pendingCompactionBytes(List<LevelMetadata> levels){
+        long pending = 0;
+        for(LevelMetadata level : levels){
+            pending += Math.max(0, level.totalSize - level.maxSize);
+        }
+        return pending;
+    }
+
     List<SSTableMetadata> findOverlaps(SSTableMetadata target, List<SSTableMetadata> candidates){
         return candidates.stream()
             .filter(candidate -> candidate.getMinKey().compareTo(target.getMaxKey()) <= 0 && candidate.getMaxKey().compareTo(target.getMinKey()) >= 0)
             .collect(Collectors.toList());
     }
+
+    // l0 files that can be compacted into the next level at the same time, oldest first. a file is held back while an
+    // older overlapping l0 file stays behind, and the picked files must not share or touch each other's next-level overlaps,
+    // so the outputs of the parallel jobs have disjoint key ranges
+    List<SSTableMetadata> pickL0Compactions(LevelMetadata level0, LevelMetadata nextLevel, int max){
+        List<SSTableMetadata> byAge = new ArrayList<>(level0.sstables);
+        byAge.sort(OLDEST_FIRST);
+
+        List<SSTableMetadata> picked = new ArrayList<>();
+        List<SSTableMetadata> claimed = new ArrayList<>();
+        List<SSTableMetadata> heldBack = new ArrayList<>();
+        for(SSTableMetadata sstable : byAge){
+            if(picked.size() >= max){
+                break;
+            }
+            boolean eligible = !sstable.isBeingCompacted()
+                && findOverlaps(sstable, heldBack).isEmpty()
+                && findOverlaps(sstable, picked).isEmpty();
+            if(eligible){
+                List<SSTableMetadata> overlaps = findOverlaps(sstable, nextLevel.sstables);
+                for(SSTableMetadata overlap : overlaps){
+                    if(overlap.isBeingCompacted() || claimed.contains(overlap)){
+                        eligible = false;
+                        break;
+                    }
+                }
+                if(eligible){
+                    picked.add(sstable);
+                    claimed.addAll(overlaps);
+                    continue;
+                }
+            }
+            heldBack.add(sstable);
+        }
+        return picked;
+    }
+
+    // oldest run of l0 files that are adjacent in age order and not being compacted. keeping the run contiguous
+    // means the merged file's timestamp range never straddles another l0 file, so the age order still holds after the merge
+    List<SSTableMetadata> pickIntraL0Compaction(LevelMetadata level0){
+        List<SSTableMetadata> byAge = new ArrayList<>(level0.sstables);
+        byAge.sort(OLDEST_FIRST);
+
+        List<SSTableMetadata> run = new ArrayList<>();
+        long runBytes = 0;
+        for(SSTableMetadata sstable : byAge){
+            if(sstable.isBeingCompacted()){
+                run.clear();
+                runBytes = 0;
+                continue;
+            }
+            if(!run.isEmpty() && runBytes + sstable.getFileSize() > MAX_INTRA_L0_BYTES){
+                if(run.size() >= MIN_INTRA_L0_FILES){
+                    break;
+                }
+                run.clear();
+                runBytes = 0;
+            }
+            run.add(sstable);
+            runBytes += sstable.getFileSize();
+        }
+        return run.size() >= MIN_INTRA_L0_FILES ? run : new ArrayList<>();
+    }
+
+    boolean needsDeletionCompaction(SSTableMetadata sstable){
+        return sstable.getMaxWindowTombstones() >= DELETION_TRIGGER_WINDOW_TOMBSTONES;
+    }
+
+    SSTableMetadata pickDeletionCompaction(List<LevelMetadata> levels){
+        SSTableMetadata picked = null;
+        for(LevelMetadata level : levels){
+            for(SSTableMetadata sstable : level.sstables){
+                if(sstable.isBeingCompacted() || !needsDeletionCompaction(sstable)){
+                    continue;
+                }
+                if(picked == null || sstable.getMaxWindowTombstones() > picked.getMaxWindowTombstones()){
+                    picked = sstable;
+                }
+            }
+        }
+        return picked;
+    }
+
+    // files that used up their seek budget on the read path; the last level has nowhere to compact into
+    SSTableMetadata pickSeekCompaction(List<LevelMetadata> levels){
+        for(int level = 0; level < levels.size() - 1; level++){
+            for(SSTableMetadata sstable : levels.get(level).sstables){
+                if(sstable.isSeekCompactionPending() && !sstable.isBeingCompacted()){
+                    return sstable;
+                }
+            }
+        }
+        return null;
+    }
+
+    SSTableMetadata keyRange(List<SSTableMetadata> sstables){
+        ByteArrayWrapper minKey = null;
+        ByteArrayWrapper maxKey = null;
+        for(SSTableMetadata sstable : sstables){
+            if(minKey == null || sstable.getMinKey().compareTo(minKey) < 0) minKey = sstable.getMinKey();
+            if(maxKey == null || sstable.getMaxKey().compareTo(maxKey) > 0) maxKey = sstable.getMaxKey();
+        }
+        return new SSTableMetadata(0, null, minKey, maxKey, 0, false, -1);
+    }
+
+    // null bounds mean the range is open on that side
+    List<SSTableMetadata> findInRange(List<SSTableMetadata> candidates, ByteArrayWrapper start, ByteArrayWrapper end){
+        return candidates.stream()
+            .filter(candidate -> !candidate.isBeingCompacted())
+            .filter(candidate -> (end == null || candidate.getMinKey().compareTo(end) <= 0) && (start == null || candidate.getMaxKey().compareTo(start) >= 0))
+            .collect(Collectors.toList());
+    }
+
+    // adds every l0 file that overlaps the picked ones, directly or through another added file, so the l0 files left
+    // behind share no key with what moves down
+    List<SSTableMetadata> expandL0Inputs(List<SSTableMetadata> picked, List<SSTableMetadata> level0){
+        List<SSTableMetadata> inputs = new ArrayList<>(picked);
+        for(int i = 0; i < inputs.size(); i++){
+            for(SSTableMetadata overlap : findOverlaps(inputs.get(i), level0)){
+                if(!inputs.contains(overlap)){
+                    inputs.add(overlap);
+                }
+            }
+        }
+        return inputs;
+    }
+
+    // splits the inputs and the next-level files they overlap into groups with disjoint key ranges,
+    // each group can be compacted independently of the others
+    List<List<SSTableMetadata>> groupDisjoint(List<SSTableMetadata> inputs, List<SSTableMetadata> nextLevel){
+        List<SSTableMetadata> candidates = new ArrayList<>(inputs);
+        for(SSTableMetadata input : inputs){
+            for(SSTableMetadata overlap : findOverlaps(input, nextLevel)){
+                if(!candidates.contains(overlap)){
+                    candidates.add(overlap);
+                }
+            }
+        }
+        candidates.sort(Comparator.comparing(SSTableMetadata::getMinKey));
+
+        List<List<SSTableMetadata>> groups = new ArrayList<>();
+        List<SSTableMetadata> current = null;
+        ByteArrayWrapper currentMax = null;
+        for(SSTableMetadata candidate : candidates){
+            if(current == null || candidate.getMinKey().compareTo(currentMax) > 0){
+                current = new ArrayList<>();
+                groups.add(current);
+                currentMax = candidate.getMaxKey();
+            }else if(candidate.getMaxKey().compareTo(currentMax) > 0){
+                currentMax = candidate.getMaxKey();
+            }
+            current.add(candidate);
+        }
+        return groups;
+    }
 }
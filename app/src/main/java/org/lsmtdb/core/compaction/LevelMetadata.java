@@ -7,8 +7,9 @@ import org.lsmtdb.core.sstable.SSTableMetadata;
 
 public class LevelMetadata {
     int levelNumber;
-    List<SSTableMetadata> sstables;
-    long totalSize;
+    // swapped for a new list by the table directory and read without its lock by compaction threads
+    volatile List<SSTableMetadata> sstables;
+    volatile long totalSize;
     long maxSize;
 
     public LevelMetadata (int levelNumber, List<SSTableMetadata> sstables, long totalSize, long maxSize){
@@ -55,7 +56,7 @@ public class LevelMetadata {
         this.maxSize = defaultMaxSize(levelNumber); 
     }
 
-    private long defaultMaxSize(int level){
+    static long defaultMaxSize(int level){
         long base = 8 * 4 * 1024 * 1024;
         for(int i =0; i< level;i++) base*=10;
         return base;
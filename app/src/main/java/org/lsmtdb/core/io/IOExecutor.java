@@ -0,0 +1,100 @@
+package org.lsmtdb.core.io;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+// executors behind the async api. reads run on virtual threads when the runtime has them (looked up reflectively,
+// the build still targets 17) and otherwise on a pool sized for blocking i/o; either way a semaphore caps how many
+// reads are outstanding. writes go through a single thread so async writes apply in the order they were submitted
+public class IOExecutor {
+    private static IOExecutor instance;
+    private static final int MAX_OUTSTANDING_READS = 64;
+    private static final int READ_THREADS_PER_CORE = 4;
+
+    private final ExecutorService readExecutor;
+    private final ExecutorService writeExecutor;
+    private final Semaphore outstandingReads = new Semaphore(MAX_OUTSTANDING_READS);
+    private final boolean virtualThreads;
+
+    public interface IOTask<T> {
+        T call() throws IOException;
+    }
+
+    private IOExecutor() {
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.readExecutor = virtual != null ? virtual : Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors() * READ_THREADS_PER_CORE, runnable -> {
+                Thread thread = new Thread(runnable, "kv-read");
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.writeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kv-write");
+            thread.setDaemon(true);
+            return thread;
+        });
+        System.out.println("async reads on " + (virtualThreads ? "virtual threads" : "a platform thread pool"));
+    }
+
+    public static synchronized IOExecutor getInstance() {
+        if (instance == null) {
+            instance = new IOExecutor();
+        }
+        return instance;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public <T> CompletableFuture<T> submitRead(IOTask<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        readExecutor.execute(() -> {
+            try {
+                outstandingReads.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(e);
+                return;
+            }
+            try {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                outstandingReads.release();
+            }
+        });
+        return future;
+    }
+
+    public <T> CompletableFuture<T> submitWrite(IOTask<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        writeExecutor.execute(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int availableReadPermits() {
+        return outstandingReads.availablePermits();
+    }
+}
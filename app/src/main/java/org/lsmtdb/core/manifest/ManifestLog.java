@@ -0,0 +1,161 @@
+package org.lsmtdb.core.manifest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// append-only log of version edits in MANIFEST-<n>, with CURRENT naming the live one.
+// records are [int length][int crc32][payload]. writers append under a lock and fsync outside it, and one force
+// covers every record appended before it, so concurrent edits share an fsync
+public class ManifestLog implements AutoCloseable {
+    private static final String CURRENT = "CURRENT";
+    private static final String PREFIX = "MANIFEST-";
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    public static final long MAX_MANIFEST_BYTES = 4 * 1024 * 1024;
+
+    private final File dbDir;
+    private final int manifestNumber;
+    private final FileChannel channel;
+    private final Object writeLock = new Object();
+    private final Object syncLock = new Object();
+    private long writtenPosition;
+    private volatile long syncedPosition;
+    private volatile boolean closed;
+
+    private ManifestLog(File dbDir, int manifestNumber) throws IOException {
+        this.dbDir = dbDir;
+        this.manifestNumber = manifestNumber;
+        this.channel = FileChannel.open(manifestPath(dbDir, manifestNumber),
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    // writes a fresh manifest starting with the snapshot, makes it durable, then points CURRENT at it
+    public static ManifestLog create(File dbDir, int manifestNumber, VersionEdit snapshot) throws IOException {
+        ManifestLog log = new ManifestLog(dbDir, manifestNumber);
+        log.sync(log.write(snapshot));
+
+        Path current = new File(dbDir, CURRENT).toPath();
+        Path temp = new File(dbDir, CURRENT + ".tmp").toPath();
+        try (FileChannel tempChannel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            tempChannel.write(ByteBuffer.wrap((PREFIX + manifestNumber + "\n").getBytes(StandardCharsets.UTF_8)));
+            tempChannel.force(true);
+        }
+        Files.move(temp, current, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return log;
+    }
+
+    // number of the manifest CURRENT points at, or 0 when there is none
+    public static int currentManifestNumber(File dbDir) throws IOException {
+        File current = new File(dbDir, CURRENT);
+        if (!current.exists()) {
+            return 0;
+        }
+        String name = new String(Files.readAllBytes(current.toPath()), StandardCharsets.UTF_8).trim();
+        if (!name.startsWith(PREFIX)) {
+            throw new IOException("malformed CURRENT file: " + name);
+        }
+        return Integer.parseInt(name.substring(PREFIX.length()));
+    }
+
+    // reads every intact record; a torn or corrupt tail left by a crash mid-append ends the replay
+    public static List<VersionEdit> replay(File dbDir, int manifestNumber) throws IOException {
+        byte[] data = Files.readAllBytes(manifestPath(dbDir, manifestNumber));
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        List<VersionEdit> edits = new ArrayList<>();
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                System.err.println("manifest " + manifestNumber + " has a truncated record at offset " + (buffer.position() - RECORD_HEADER_SIZE));
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            if (checksum(payload) != checksum) {
+                System.err.println("manifest " + manifestNumber + " has a corrupt record at offset " + (buffer.position() - length - RECORD_HEADER_SIZE));
+                break;
+            }
+            edits.add(VersionEdit.decode(payload));
+        }
+        return edits;
+    }
+
+    public static void deleteManifest(File dbDir, int manifestNumber) throws IOException {
+        Files.deleteIfExists(manifestPath(dbDir, manifestNumber));
+    }
+
+    // appends the edit without forcing it; pass the returned position to sync
+    public long write(VersionEdit edit) throws IOException {
+        byte[] payload = edit.encode();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt(checksum(payload));
+        record.put(payload);
+        record.flip();
+        synchronized (writeLock) {
+            while (record.hasRemaining()) {
+                writtenPosition += channel.write(record, writtenPosition);
+            }
+            return writtenPosition;
+        }
+    }
+
+    // returns once everything up to position is durable
+    public void sync(long position) throws IOException {
+        if (syncedPosition >= position || closed) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncedPosition >= position || closed) {
+                return;
+            }
+            long target;
+            synchronized (writeLock) {
+                target = writtenPosition;
+            }
+            channel.force(false);
+            syncedPosition = target;
+        }
+    }
+
+    public long size() {
+        synchronized (writeLock) {
+            return writtenPosition;
+        }
+    }
+
+    public int getManifestNumber() {
+        return manifestNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            if (closed) {
+                return;
+            }
+            channel.force(false);
+            closed = true;
+            channel.close();
+        }
+    }
+
+    private static Path manifestPath(File dbDir, int manifestNumber) {
+        return new File(dbDir, PREFIX + manifestNumber).toPath();
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,192 @@
+package org.lsmtdb.core.manifest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.core.sstable.SSTableMetadata;
+
+// one manifest record: the files a flush or compaction added and removed plus the counters to restore on replay.
+// encoded as a sequence of [byte tag][payload] fields so new tags can be added without breaking old records
+public class VersionEdit {
+    private static final int TAG_NEXT_FILE_NUMBER = 1;
+    private static final int TAG_LAST_SEQUENCE = 2;
+    private static final int TAG_DELETED_FILE = 3;
+    private static final int TAG_NEW_FILE = 4;
+    private static final int TAG_SNAPSHOT = 5;
+    // [long minExpiry][long maxExpiry] of the file added by the preceding TAG_NEW_FILE, left out when it never expires
+    private static final int TAG_FILE_EXPIRY = 6;
+
+    public static final long NO_SEQUENCE = -1;
+
+    private int nextFileNumber = -1;
+    private long lastSequence = NO_SEQUENCE;
+    private boolean snapshot;
+    private final List<DeletedFile> deletedFiles = new ArrayList<>();
+    private final List<SSTableMetadata> newFiles = new ArrayList<>();
+
+    public static class DeletedFile {
+        private final int level;
+        private final String filePath;
+
+        public DeletedFile(int level, String filePath) {
+            this.level = level;
+            this.filePath = filePath;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public String getFilePath() {
+            return filePath;
+        }
+    }
+
+    public void addFile(SSTableMetadata sstable) {
+        newFiles.add(sstable);
+    }
+
+    public void deleteFile(int level, String filePath) {
+        deletedFiles.add(new DeletedFile(level, filePath));
+    }
+
+    public List<SSTableMetadata> getNewFiles() {
+        return newFiles;
+    }
+
+    public List<DeletedFile> getDeletedFiles() {
+        return deletedFiles;
+    }
+
+    public int getNextFileNumber() {
+        return nextFileNumber;
+    }
+
+    public void setNextFileNumber(int nextFileNumber) {
+        this.nextFileNumber = nextFileNumber;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public void setLastSequence(long lastSequence) {
+        this.lastSequence = lastSequence;
+    }
+
+    // a snapshot edit describes the complete file set and is the first record of every manifest
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    public void setSnapshot(boolean snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (snapshot) {
+            out.writeByte(TAG_SNAPSHOT);
+        }
+        if (nextFileNumber >= 0) {
+            out.writeByte(TAG_NEXT_FILE_NUMBER);
+            out.writeInt(nextFileNumber);
+        }
+        if (lastSequence != NO_SEQUENCE) {
+            out.writeByte(TAG_LAST_SEQUENCE);
+            out.writeLong(lastSequence);
+        }
+        for (DeletedFile deleted : deletedFiles) {
+            out.writeByte(TAG_DELETED_FILE);
+            out.writeInt(deleted.level);
+            out.writeUTF(deleted.filePath);
+        }
+        for (SSTableMetadata sstable : newFiles) {
+            out.writeByte(TAG_NEW_FILE);
+            out.writeInt(sstable.getLevel());
+            out.writeInt(sstable.getFileNumber());
+            out.writeUTF(sstable.getFilePath());
+            writeBytes(out, sstable.getMinKey().getData());
+            writeBytes(out, sstable.getMaxKey().getData());
+            out.writeLong(sstable.getFileSize());
+            out.writeLong(sstable.getEntryCount());
+            out.writeLong(sstable.getTombstoneCount());
+            out.writeInt(sstable.getMaxWindowTombstones());
+            out.writeLong(sstable.getMinTimestamp());
+            out.writeLong(sstable.getMaxTimestamp());
+            out.writeInt(sstable.getRangeTombstoneCount());
+            if (sstable.hasExpiry()) {
+                out.writeByte(TAG_FILE_EXPIRY);
+                out.writeLong(sstable.getMinExpiry());
+                out.writeLong(sstable.getMaxExpiry());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static VersionEdit decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        VersionEdit edit = new VersionEdit();
+        while (in.available() > 0) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case TAG_SNAPSHOT:
+                    edit.snapshot = true;
+                    break;
+                case TAG_NEXT_FILE_NUMBER:
+                    edit.nextFileNumber = in.readInt();
+                    break;
+                case TAG_LAST_SEQUENCE:
+                    edit.lastSequence = in.readLong();
+                    break;
+                case TAG_DELETED_FILE:
+                    edit.deleteFile(in.readInt(), in.readUTF());
+                    break;
+                case TAG_NEW_FILE:
+                    int level = in.readInt();
+                    int fileNumber = in.readInt();
+                    String filePath = in.readUTF();
+                    ByteArrayWrapper minKey = new ByteArrayWrapper(readBytes(in));
+                    ByteArrayWrapper maxKey = new ByteArrayWrapper(readBytes(in));
+                    long fileSize = in.readLong();
+                    SSTableMetadata sstable = new SSTableMetadata(fileNumber, filePath, minKey, maxKey, fileSize, false, level);
+                    long entryCount = in.readLong();
+                    long tombstoneCount = in.readLong();
+                    sstable.setDeletionStats(entryCount, tombstoneCount, in.readInt());
+                    long minTimestamp = in.readLong();
+                    sstable.setTimestampRange(minTimestamp, in.readLong());
+                    sstable.setRangeTombstoneCount(in.readInt());
+                    edit.addFile(sstable);
+                    break;
+                case TAG_FILE_EXPIRY:
+                    if (edit.newFiles.isEmpty()) {
+                        throw new IOException("manifest file expiry without a file");
+                    }
+                    long minExpiry = in.readLong();
+                    edit.newFiles.get(edit.newFiles.size() - 1).setExpiryRange(minExpiry, in.readLong());
+                    break;
+                default:
+                    throw new IOException("unknown manifest tag " + tag);
+            }
+        }
+        return edit;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return data;
+    }
+}
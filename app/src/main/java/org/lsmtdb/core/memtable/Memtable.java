@@ -1,30 +1,53 @@
 package org.lsmtdb.core.memtable;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.RangeTombstone;
 import org.lsmtdb.common.Value;
+import org.lsmtdb.core.merge.MergeOperands;
+import org.lsmtdb.core.merge.MergeOperator;
+import org.lsmtdb.core.snapshot.SnapshotList;
 
 public class Memtable {
 
-    private static volatile Memtable instance;
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private TreeMap<ByteArrayWrapper, Value> store = new TreeMap<>();
+    // every key maps to its versions newest first. older versions are only kept while a live snapshot still sees them
+    private TreeMap<ByteArrayWrapper, Value[]> store = new TreeMap<>();
+    private final List<RangeTombstone> rangeTombstones = new ArrayList<>();
+    // raw key and value bytes, what a flush will write
     private final AtomicLong size = new AtomicLong(0);
-    private final long THRESHOLD_SIZE = 8 * 1024 * 1024;
+    // estimated heap held, object headers, references and padding included; this is what is flushed on
+    private final AtomicLong memoryUsage = new AtomicLong(0);
+    public static final long DEFAULT_THRESHOLD_SIZE = 8 * 1024 * 1024;
+    private final long thresholdSize;
+    private final SnapshotList snapshotList;
+    private final WriteBufferManager writeBufferManager;
+    private volatile MergeOperator mergeOperator;
 
-    private Memtable(){}
+    // heap layout assumed for the estimate: 64-bit jvm with compressed references, 8 byte aligned objects
+    private static final int TREE_ENTRY_BYTES = 40;
+    private static final int WRAPPER_BYTES = 16;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int VALUE_BYTES = 40;
+    private static final int RANGE_TOMBSTONE_BYTES = 24;
 
-    public static Memtable getInstance() {
-        if (instance == null) {
-            instance = new Memtable();
-        }
-        return instance;
+    // a memtable of one column family; snapshots are those of the store it belongs to. writeBufferManager may be
+    // null, otherwise heap use is reported to it as it changes
+    public Memtable(SnapshotList snapshotList, long thresholdSize, WriteBufferManager writeBufferManager){
+        this.snapshotList = snapshotList;
+        this.thresholdSize = thresholdSize;
+        this.writeBufferManager = writeBufferManager;
     }
 
     public void put(ByteArrayWrapper key, Value valueObj) {
@@ -32,20 +55,130 @@ public class Memtable {
             throw new IllegalArgumentException("Key cant be null");
         }
 
+        long[] snapshots = snapshotList.liveSequences();
         lock.writeLock().lock();
         try {
-            Value oldValue = this.store.get(key);
-            if (oldValue != null) {
-                size.addAndGet(-oldValue.getSize());
-            }
-            store.put(key, valueObj);
-            size.addAndGet(key.getData().length + valueObj.getSize());
+            Value[] versions = this.store.get(key);
+            Value[] updated = retainVisible(key, insert(versions, valueObj), snapshots);
+            store.put(key, updated);
+            size.addAndGet(sizeOf(updated) - sizeOf(versions) + (versions == null ? key.getData().length : 0));
+            charge(heapOf(key, updated) - (versions == null ? 0 : heapOf(key, versions)));
         } finally {
             lock.writeLock().unlock();
         }
 
     }
 
+    // writers may reach the memtable slightly out of sequence order, so versions are placed by sequence
+    private static Value[] insert(Value[] versions, Value value) {
+        if (versions == null) {
+            return new Value[] { value };
+        }
+        int at = 0;
+        while (at < versions.length && versions[at].getTimestamp() > value.getTimestamp()) {
+            at++;
+        }
+        Value[] updated = new Value[versions.length + 1];
+        System.arraycopy(versions, 0, updated, 0, at);
+        updated[at] = value;
+        System.arraycopy(versions, at, updated, at + 1, versions.length - at);
+        return updated;
+    }
+
+    // keeps the newest version and, below it, only versions some snapshot sees instead of the one kept above.
+    // a merge operand newest in its stripe absorbs the versions it hides, so counters do not pile up operands
+    private Value[] retainVisible(ByteArrayWrapper key, Value[] versions, long[] snapshots) {
+        if (versions.length == 1) {
+            return versions;
+        }
+        List<Value> kept = new ArrayList<>(versions.length);
+        int i = 0;
+        while (i < versions.length) {
+            int stripe = SnapshotList.stripe(snapshots, versions[i].getTimestamp());
+            int next = i + 1;
+            while (next < versions.length && SnapshotList.stripe(snapshots, versions[next].getTimestamp()) == stripe) {
+                next++;
+            }
+            if (versions[i].isMergeOperand() && next - i > 1) {
+                long stripeSequence = stripe < snapshots.length ? snapshots[stripe] : Long.MAX_VALUE;
+                kept.add(fold(key, versions, i, next, stripeSequence));
+            } else {
+                kept.add(versions[i]);
+            }
+            i = next;
+        }
+        return kept.size() == versions.length ? versions : kept.toArray(new Value[0]);
+    }
+
+    // folds versions[from, to), one stripe headed by an operand, into a single version at the operand's sequence.
+    // landing on a value gives a value that keeps its expiry; landing on a deletion gives a value merged onto nothing
+    private Value fold(ByteArrayWrapper key, Value[] versions, int from, int to, long stripeSequence) {
+        MergeOperands operands = new MergeOperands(mergeOperator);
+        Value newest = versions[from];
+        operands.add(newest.getValue(), true, newest.getTimestamp(), RangeTombstone.NONE);
+        long coveringTimestamp = rangeTombstones.isEmpty() ? RangeTombstone.NONE : RangeTombstone.maxCoveringTimestamp(rangeTombstones, key, stripeSequence);
+        long now = System.currentTimeMillis();
+        for (int i = from + 1; i < to; i++) {
+            if (operands.add(versions[i], coveringTimestamp, now)) {
+                break;
+            }
+        }
+        if (operands.isComplete()) {
+            return new Value(operands.resolve(), newest.getTimestamp(), false, operands.getBaseExpiresAt());
+        }
+        return Value.mergeOperand(operands.combine(), newest.getTimestamp());
+    }
+
+    private void charge(long bytes) {
+        memoryUsage.addAndGet(bytes);
+        if (writeBufferManager != null) {
+            writeBufferManager.reserve(bytes);
+        }
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private static long heapOf(byte[] data) {
+        return data == null ? 0 : align(ARRAY_HEADER_BYTES + data.length);
+    }
+
+    // the tree entry, the key and its version array with every version
+    private static long heapOf(ByteArrayWrapper key, Value[] versions) {
+        long bytes = TREE_ENTRY_BYTES + WRAPPER_BYTES + heapOf(key.getData()) + align(ARRAY_HEADER_BYTES + (long) REFERENCE_BYTES * versions.length);
+        for (Value version : versions) {
+            bytes += VALUE_BYTES + heapOf(version.getValue());
+        }
+        return bytes;
+    }
+
+    private static long heapOf(RangeTombstone tombstone) {
+        return REFERENCE_BYTES + RANGE_TOMBSTONE_BYTES + 2 * WRAPPER_BYTES + heapOf(tombstone.getStart().getData()) + heapOf(tombstone.getEnd().getData());
+    }
+
+    private static long sizeOf(Value[] versions) {
+        long total = 0;
+        if (versions != null) {
+            for (Value version : versions) {
+                total += version.getSize();
+            }
+        }
+        return total;
+    }
+
+    // newest version visible at the snapshot sequence, or null
+    private static Value visibleAt(Value[] versions, long snapshot) {
+        if (versions != null) {
+            for (Value version : versions) {
+                if (version.getTimestamp() <= snapshot) {
+                    return version;
+                }
+            }
+        }
+        return null;
+    }
+
     public byte[] get(byte[] key) {
         if (key == null) {
             throw new IllegalArgumentException("Key cant be null");
@@ -55,67 +188,252 @@ public class Memtable {
 
         lock.readLock().lock();
         try {
-            Value valueObj = store.get(keyWrapper);
-            if (valueObj == null || valueObj.isDeleted()) {
+            Value[] versions = store.get(keyWrapper);
+            if (versions == null || versions[0].isDeleted() || versions[0].isExpired(System.currentTimeMillis())) {
                 return null;
             }
-            return valueObj.getValue();
+            return versions[0].getValue();
         } finally {
             lock.readLock().unlock();
         }
     }
 
-    public void remove(byte[] key, long timestamp) {
+    // unlike get, returns tombstones so callers can stop before consulting older sstables; an expired value comes
+    // back as one
+    public Value getEntry(byte[] key) {
         if (key == null) {
             throw new IllegalArgumentException("Key cant be null");
         }
 
         ByteArrayWrapper keyWrapper = new ByteArrayWrapper(key);
 
-        lock.writeLock().lock();
+        lock.readLock().lock();
         try {
-            Value valueObj = store.get(keyWrapper);
-            if (valueObj != null) {
-                size.addAndGet(-valueObj.getSize());
+            Value[] versions = store.get(keyWrapper);
+            return versions == null ? null : versions[0].liveAt(System.currentTimeMillis());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // the entry for a key together with the newest memtable range tombstone covering it
+    public static final class Lookup {
+        // shared result for the common case of a key the memtable knows nothing about
+        static final Lookup MISS = new Lookup(null, RangeTombstone.NONE, null);
+
+        private final Value entry;
+        private final long coveringTombstoneTimestamp;
+        private final Value[] versions;
+
+        private Lookup(Value entry, long coveringTombstoneTimestamp, Value[] versions) {
+            this.entry = entry;
+            this.coveringTombstoneTimestamp = coveringTombstoneTimestamp;
+            this.versions = versions;
+        }
+
+        // every version the memtable holds for the key, newest first and unfiltered by the snapshot; what a merge
+        // operand entry is folded onto before older sstables are consulted
+        public Value[] getVersions() {
+            return versions;
+        }
+
+        // null when the memtable holds no entry for the key
+        public Value getEntry() {
+            return entry;
+        }
+
+        public long getCoveringTombstoneTimestamp() {
+            return coveringTombstoneTimestamp;
+        }
+    }
+
+    public Lookup lookup(ByteArrayWrapper key) {
+        return lookup(key, Long.MAX_VALUE);
+    }
+
+    // point and range tombstone probe under one read lock, seeing only writes at or below the snapshot sequence.
+    // expired values come back as tombstones
+    public Lookup lookup(ByteArrayWrapper key, long snapshot) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cant be null");
+        }
+
+        lock.readLock().lock();
+        try {
+            Value[] versions = store.get(key);
+            Value entry = visibleAt(versions, snapshot);
+            if (entry != null) {
+                entry = entry.liveAt(System.currentTimeMillis());
+            }
+            long coveringTimestamp = rangeTombstones.isEmpty() ? RangeTombstone.NONE : RangeTombstone.maxCoveringTimestamp(rangeTombstones, key, snapshot);
+            if (entry == null && coveringTimestamp == RangeTombstone.NONE) {
+                return Lookup.MISS;
             }
+            return new Lookup(entry, coveringTimestamp, versions);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-            Value tombstone = new Value(null, timestamp, true);
-            store.put(keyWrapper, tombstone);
-            size.addAndGet(key.length); 
+    public void remove(byte[] key, long timestamp) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cant be null");
+        }
+        put(new ByteArrayWrapper(key), new Value(null, timestamp, true));
+    }
+
+    public void addRangeTombstone(RangeTombstone tombstone) {
+        lock.writeLock().lock();
+        try {
+            rangeTombstones.add(tombstone);
+            size.addAndGet(tombstone.getSize());
+            charge(heapOf(tombstone));
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    public List<RangeTombstone> getRangeTombstones() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(rangeTombstones);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long maxCoveringTombstoneTimestamp(ByteArrayWrapper key) {
+        lock.readLock().lock();
+        try {
+            return RangeTombstone.maxCoveringTimestamp(rangeTombstones, key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public MergeOperator getMergeOperator() {
+        return mergeOperator;
+    }
+
+    public void setMergeOperator(MergeOperator mergeOperator) {
+        this.mergeOperator = mergeOperator;
+    }
+
+    public SnapshotList getSnapshotList() {
+        return snapshotList;
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    public long getMemoryUsage() {
+        return memoryUsage.get();
+    }
+
     public boolean shouldFlush() {
-        return size.get() >= THRESHOLD_SIZE;
+        return memoryUsage.get() >= thresholdSize;
     }
 
+    // key bounds cover range tombstones too, so a flushed file's range includes every key it can delete
     public ByteArrayWrapper minKey(){
-        return store.firstKey();
+        lock.readLock().lock();
+        try {
+            ByteArrayWrapper min = store.isEmpty() ? null : store.firstKey();
+            for (RangeTombstone tombstone : rangeTombstones) {
+                if (min == null || tombstone.getStart().compareTo(min) < 0) {
+                    min = tombstone.getStart();
+                }
+            }
+            return min;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public ByteArrayWrapper maxKey(){
-        return store.lastKey();
+        lock.readLock().lock();
+        try {
+            ByteArrayWrapper max = store.isEmpty() ? null : store.lastKey();
+            for (RangeTombstone tombstone : rangeTombstones) {
+                if (max == null || tombstone.getEnd().compareTo(max) > 0) {
+                    max = tombstone.getEnd();
+                }
+            }
+            return max;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.readLock().lock();
+        try {
+            return store.isEmpty() && rangeTombstones.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public void clear() {
         lock.writeLock().lock();
         try {
             store.clear();
+            rangeTombstones.clear();
             size.set(0);
+            charge(-memoryUsage.get());
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    // every retained version in key order, newest first within a key; this is what a flush writes
     public Iterator<Map.Entry<ByteArrayWrapper,Value>> iterator () {
         lock.readLock().lock();
         try{
-            TreeMap<ByteArrayWrapper,Value> copy = new TreeMap<>(store);
-            return copy.entrySet().iterator();
+            List<Map.Entry<ByteArrayWrapper,Value>> copy = new ArrayList<>(store.size());
+            for (Map.Entry<ByteArrayWrapper,Value[]> entry : store.entrySet()) {
+                for (Value version : entry.getValue()) {
+                    copy.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), version));
+                }
+            }
+            return copy.iterator();
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    public Iterator<Map.Entry<ByteArrayWrapper,Value>> iterator(ByteArrayWrapper start, ByteArrayWrapper end) {
+        return iterator(start, end, Long.MAX_VALUE);
+    }
+
+    // snapshot of [start, end) as seen at the snapshot sequence, one version per key unless that version is a merge
+    // operand, which is followed by the older versions down to the one it lands on; either bound may be null
+    public Iterator<Map.Entry<ByteArrayWrapper,Value>> iterator(ByteArrayWrapper start, ByteArrayWrapper end, long snapshot) {
+        lock.readLock().lock();
+        try{
+            NavigableMap<ByteArrayWrapper,Value[]> range = store;
+            if(start != null){
+                range = range.tailMap(start, true);
+            }
+            if(end != null){
+                range = range.headMap(end, false);
+            }
+            List<Map.Entry<ByteArrayWrapper,Value>> copy = new ArrayList<>(range.size());
+            for (Map.Entry<ByteArrayWrapper,Value[]> entry : range.entrySet()) {
+                for (Value version : entry.getValue()) {
+                    if (version.getTimestamp() > snapshot) {
+                        continue;
+                    }
+                    copy.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), version));
+                    if (!version.isMergeOperand()) {
+                        break;
+                    }
+                }
+            }
+            return copy.iterator();
         }finally{
             lock.readLock().unlock();
         }
     }
-}
\ No newline at end of file
+}
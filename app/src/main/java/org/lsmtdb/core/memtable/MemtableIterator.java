@@ -0,0 +1,63 @@
+package org.lsmtdb.core.memtable;
+
+import java.util.Iterator;
+import java.util.Map;
+import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.Value;
+import org.lsmtdb.core.sstable.merger.KeyValueIterator;
+
+// adapts a memtable snapshot to the merge iterator protocol; values expired when the iterator was made read as tombstones
+public class MemtableIterator implements KeyValueIterator {
+    private final Iterator<Map.Entry<ByteArrayWrapper, Value>> entries;
+    private ByteArrayWrapper currentKey;
+    private byte[] currentValue;
+    private long currentTimestamp;
+    private long currentExpiresAt;
+    private boolean currentMergeOperand;
+    private final long now = System.currentTimeMillis();
+
+    public MemtableIterator(Iterator<Map.Entry<ByteArrayWrapper, Value>> entries) {
+        this.entries = entries;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return entries.hasNext();
+    }
+
+    @Override
+    public void next() {
+        Map.Entry<ByteArrayWrapper, Value> entry = entries.next();
+        Value value = entry.getValue().liveAt(now);
+        currentKey = entry.getKey();
+        currentValue = value.isDeleted() ? null : value.getValue();
+        currentTimestamp = value.getTimestamp();
+        currentExpiresAt = value.getExpiresAt();
+        currentMergeOperand = value.isMergeOperand();
+    }
+
+    @Override
+    public ByteArrayWrapper getCurrentKey() {
+        return currentKey;
+    }
+
+    @Override
+    public byte[] getCurrentValue() {
+        return currentValue;
+    }
+
+    @Override
+    public long getCurrentTimestamp() {
+        return currentTimestamp;
+    }
+
+    @Override
+    public long getCurrentExpiresAt() {
+        return currentExpiresAt;
+    }
+
+    @Override
+    public boolean isCurrentMergeOperand() {
+        return currentMergeOperand;
+    }
+}
@@ -0,0 +1,144 @@
+package org.lsmtdb.core.memtable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.lsmtdb.core.sstable.TableCache;
+
+// memtable heap across every store in the process, held to one budget. once the budget is reached the largest
+// memtable is handed to its owner to flush. with costToCache the same bytes are charged to the table cache, so
+// memtables and cached readers stay under the cache's capacity together
+public class WriteBufferManager {
+    private static WriteBufferManager instance;
+
+    private final AtomicLong memoryUsage = new AtomicLong();
+    private final Map<Memtable, Runnable> flushers = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final ExecutorService flushExecutor;
+    // 0 leaves memtables to their own write buffer sizes
+    private volatile long bufferSize = 0;
+    private volatile boolean costToCache = false;
+    // bytes currently charged to the table cache, so turning costToCache off hands back exactly those
+    private final AtomicLong chargedToCache = new AtomicLong();
+
+    private WriteBufferManager() {
+        this.flushExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "write-buffer-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static synchronized WriteBufferManager getInstance() {
+        if (instance == null) {
+            instance = new WriteBufferManager();
+        }
+        return instance;
+    }
+
+    // flush runs off the write path and must flush the memtable, or do nothing if it is already empty
+    public void register(Memtable memtable, Runnable flush) {
+        flushers.put(memtable, flush);
+    }
+
+    public void unregister(Memtable memtable) {
+        flushers.remove(memtable);
+    }
+
+    // called by memtables as their heap use changes
+    void reserve(long bytes) {
+        memoryUsage.addAndGet(bytes);
+        if (costToCache || chargedToCache.get() != 0) {
+            reconcileCacheCharge();
+        }
+        if (shouldFlush()) {
+            scheduleFlush();
+        }
+    }
+
+    public boolean shouldFlush() {
+        long limit = bufferSize;
+        return limit > 0 && memoryUsage.get() >= limit;
+    }
+
+    // one flush in flight at a time; when it is done the budget is checked again, so a burst of writes drains
+    // memtables largest first until usage is back under it
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        flushExecutor.execute(() -> {
+            try {
+                Map.Entry<Memtable, Runnable> largest = null;
+                for (Map.Entry<Memtable, Runnable> entry : flushers.entrySet()) {
+                    if (largest == null || entry.getKey().getMemoryUsage() > largest.getKey().getMemoryUsage()) {
+                        largest = entry;
+                    }
+                }
+                if (largest != null && largest.getKey().getMemoryUsage() > 0) {
+                    System.out.println("write buffer at " + memoryUsage.get() + " of " + bufferSize + " bytes, flushing a memtable of " + largest.getKey().getMemoryUsage() + " bytes");
+                    largest.getValue().run();
+                }
+            } catch (RuntimeException e) {
+                System.err.println("write buffer flush failed: " + e.getMessage());
+            } finally {
+                flushScheduled.set(false);
+            }
+            if (shouldFlush() && hasFlushable()) {
+                scheduleFlush();
+            }
+        });
+    }
+
+    private boolean hasFlushable() {
+        for (Memtable memtable : flushers.keySet()) {
+            if (memtable.getMemoryUsage() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getMemoryUsage() {
+        return memoryUsage.get();
+    }
+
+    public long getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(long bufferSize) {
+        if (bufferSize < 0) {
+            throw new IllegalArgumentException("buffer size must not be negative");
+        }
+        this.bufferSize = bufferSize;
+        if (shouldFlush()) {
+            scheduleFlush();
+        }
+    }
+
+    public boolean isCostToCache() {
+        return costToCache;
+    }
+
+    public synchronized void setCostToCache(boolean costToCache) {
+        if (this.costToCache == costToCache) {
+            return;
+        }
+        this.costToCache = costToCache;
+        reconcileCacheCharge();
+    }
+
+    // brings the cache charge to the current usage, or to zero with costToCache off. the flag and usage are read
+    // under the same lock the charge is made under, so a reserve racing a toggle cannot leave bytes behind in the cache
+    private synchronized void reconcileCacheCharge() {
+        long target = costToCache ? memoryUsage.get() : 0;
+        long delta = target - chargedToCache.getAndSet(target);
+        if (delta != 0) {
+            TableCache.getInstance().charge(delta);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.lsmtdb.core.merge;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.lsmtdb.common.Value;
+
+// the operands of one key gathered while walking its versions newest first, until a value, a tombstone or a
+// covering range tombstone ends the walk. folded oldest first onto whatever ended it
+public final class MergeOperands {
+    private final MergeOperator operator;
+    private final List<byte[]> operands = new ArrayList<>();
+    private byte[] base;
+    private long baseExpiresAt = Value.NO_EXPIRY;
+    private boolean complete;
+
+    public MergeOperands(MergeOperator operator) {
+        if (operator == null) {
+            throw new IllegalStateException("merge operand found but no merge operator is set");
+        }
+        this.operator = operator;
+    }
+
+    // takes the next older version, value null for a tombstone. returns true once the walk is complete
+    public boolean add(byte[] value, boolean mergeOperand, long timestamp, long coveringTombstoneTimestamp) {
+        return add(value, mergeOperand, timestamp, Value.NO_EXPIRY, coveringTombstoneTimestamp);
+    }
+
+    // expiresAt is kept when the version turns out to be the value the operands land on
+    public boolean add(byte[] value, boolean mergeOperand, long timestamp, long expiresAt, long coveringTombstoneTimestamp) {
+        if (complete) {
+            return true;
+        }
+        if (value == null || timestamp < coveringTombstoneTimestamp) {
+            complete = true;
+        } else if (mergeOperand) {
+            operands.add(value);
+        } else {
+            base = value;
+            baseExpiresAt = expiresAt;
+            complete = true;
+        }
+        return complete;
+    }
+
+    // expired values count as the tombstones they read as
+    public boolean add(Value version, long coveringTombstoneTimestamp, long now) {
+        Value live = version.liveAt(now);
+        return add(live.isDeleted() ? null : live.getValue(), live.isMergeOperand(), live.getTimestamp(), live.getExpiresAt(), coveringTombstoneTimestamp);
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isEmpty() {
+        return operands.isEmpty();
+    }
+
+    // the value the key reads as, treating an incomplete walk as having hit nothing
+    public byte[] resolve() {
+        byte[] value = base;
+        for (int i = operands.size() - 1; i >= 0; i--) {
+            value = operator.merge(value, operands.get(i));
+        }
+        return value;
+    }
+
+    // a single operand equivalent to all gathered ones, for when the value below is not known yet
+    public byte[] combine() {
+        byte[] combined = operands.get(operands.size() - 1);
+        for (int i = operands.size() - 2; i >= 0; i--) {
+            combined = operator.merge(combined, operands.get(i));
+        }
+        return combined;
+    }
+
+    // expiry of the value the operands landed on, Value.NO_EXPIRY when there was none
+    public long getBaseExpiresAt() {
+        return baseExpiresAt;
+    }
+}
@@ -0,0 +1,9 @@
+package org.lsmtdb.core.merge;
+
+// combines a merge operand into the value below it. must be associative, merge(merge(a, b), c) equal to
+// merge(a, merge(b, c)), since operands are folded together in the memtable and in compactions before the value
+// they apply to is known; existingValue is null when the key has no value below the operands. called from
+// writers, readers and compactions at once, so implementations must be thread safe
+public interface MergeOperator {
+    byte[] merge(byte[] existingValue, byte[] operand);
+}
@@ -0,0 +1,217 @@
+package org.lsmtdb.core.ratelimit;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class RateLimiter {
+
+    public enum Priority {
+        HIGH,
+        LOW
+    }
+
+    private static volatile RateLimiter instance;
+
+    // unlimited until a rate is set or auto tune is enabled
+    private static final long DEFAULT_BYTES_PER_SECOND = 0;
+    private static final long REFILL_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long DEFAULT_DEBT_FOR_MAX_RATE = 256L * 1024 * 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition refilled = lock.newCondition();
+
+    private long bytesPerSecond;
+    private long availableBytes;
+    private long lastRefillNanos;
+    private int waitingHigh;
+    private final long[] totalBytesThrough = new long[Priority.values().length];
+
+    private boolean autoTune;
+    private long minBytesPerSecond;
+    private long maxBytesPerSecond;
+    private long debtForMaxRate = DEFAULT_DEBT_FOR_MAX_RATE;
+    // pending compaction bytes by reporter (one per column family), tuned on their sum
+    private final Map<Object, Long> compactionDebt = new HashMap<>();
+
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.availableBytes = burstBytes();
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    public static RateLimiter getInstance() {
+        if (instance == null) {
+            synchronized (RateLimiter.class) {
+                if (instance == null) {
+                    instance = new RateLimiter(DEFAULT_BYTES_PER_SECOND);
+                }
+            }
+        }
+        return instance;
+    }
+
+    // blocks until the bytes have been granted; low priority callers yield to any waiting high priority caller
+    public void request(long bytes, Priority priority) throws InterruptedIOException {
+        if (bytes <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (priority == Priority.HIGH) {
+                waitingHigh++;
+            }
+            try {
+                long remaining = bytes;
+                while (remaining > 0) {
+                    if (bytesPerSecond <= 0) {
+                        totalBytesThrough[priority.ordinal()] += remaining;
+                        return;
+                    }
+                    refill();
+                    if (priority == Priority.LOW && waitingHigh > 0) {
+                        refilled.awaitNanos(REFILL_PERIOD_NANOS);
+                        continue;
+                    }
+                    if (availableBytes > 0) {
+                        long granted = Math.min(remaining, availableBytes);
+                        availableBytes -= granted;
+                        remaining -= granted;
+                        totalBytesThrough[priority.ordinal()] += granted;
+                        continue;
+                    }
+                    long waitNanos = Math.min(REFILL_PERIOD_NANOS, Math.max(1, remaining * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond));
+                    refilled.awaitNanos(waitNanos);
+                }
+            } finally {
+                if (priority == Priority.HIGH) {
+                    waitingHigh--;
+                }
+                refilled.signalAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for rate limiter");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long elapsed = now - lastRefillNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        long refill = elapsed * bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+        if (refill > 0) {
+            availableBytes = Math.min(burstBytes(), availableBytes + refill);
+            lastRefillNanos = now;
+        }
+    }
+
+    private long burstBytes() {
+        return Math.max(1, bytesPerSecond * REFILL_PERIOD_NANOS / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    public void setBytesPerSecond(long bytesPerSecond) {
+        lock.lock();
+        try {
+            refill();
+            this.bytesPerSecond = bytesPerSecond;
+            this.availableBytes = Math.min(availableBytes, burstBytes());
+            refilled.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBytesPerSecond() {
+        lock.lock();
+        try {
+            return bytesPerSecond;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void enableAutoTune(long minBytesPerSecond, long maxBytesPerSecond) {
+        if (minBytesPerSecond <= 0 || maxBytesPerSecond < minBytesPerSecond) {
+            throw new IllegalArgumentException("invalid auto tune bounds: " + minBytesPerSecond + ".." + maxBytesPerSecond);
+        }
+        lock.lock();
+        try {
+            this.autoTune = true;
+            this.minBytesPerSecond = minBytesPerSecond;
+            this.maxBytesPerSecond = maxBytesPerSecond;
+        } finally {
+            lock.unlock();
+        }
+        setBytesPerSecond(minBytesPerSecond);
+    }
+
+    public void disableAutoTune() {
+        lock.lock();
+        try {
+            this.autoTune = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setDebtForMaxRate(long debtForMaxRate) {
+        lock.lock();
+        try {
+            this.debtForMaxRate = Math.max(1, debtForMaxRate);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // with auto tune on, the rate scales linearly from min to max as the pending compaction debt summed over every
+    // reporter approaches debtForMaxRate
+    public void updateCompactionDebt(Object reporter, long pendingBytes) {
+        long target;
+        lock.lock();
+        try {
+            compactionDebt.put(reporter, Math.max(0, pendingBytes));
+            if (!autoTune) {
+                return;
+            }
+            long totalDebt = 0;
+            for (long debt : compactionDebt.values()) {
+                totalDebt += debt;
+            }
+            double ratio = Math.min(1.0, totalDebt / (double) debtForMaxRate);
+            target = minBytesPerSecond + (long) ((maxBytesPerSecond - minBytesPerSecond) * ratio);
+            if (target == bytesPerSecond) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        setBytesPerSecond(target);
+    }
+
+    // drops a reporter that no longer compacts, so its last debt stops counting
+    public void removeCompactionDebt(Object reporter) {
+        lock.lock();
+        try {
+            compactionDebt.remove(reporter);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getTotalBytesThrough(Priority priority) {
+        lock.lock();
+        try {
+            return totalBytesThrough[priority.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+}
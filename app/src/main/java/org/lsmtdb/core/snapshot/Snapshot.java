@@ -0,0 +1,32 @@
+package org.lsmtdb.core.snapshot;
+
+// a point-in-time view: reads through it see exactly the writes with a sequence number at or below getSequence().
+// the versions it can see are kept by flushes and compactions until it is closed
+public final class Snapshot implements AutoCloseable {
+    final SnapshotList owner;
+    private final long sequence;
+    private boolean released;
+
+    Snapshot(SnapshotList owner, long sequence) {
+        this.owner = owner;
+        this.sequence = sequence;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    // returns false if it was already released
+    synchronized boolean markReleased() {
+        if (released) {
+            return false;
+        }
+        released = true;
+        return true;
+    }
+
+    @Override
+    public void close() {
+        owner.release(this);
+    }
+}
@@ -0,0 +1,58 @@
+package org.lsmtdb.core.snapshot;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+// live snapshot sequences. the sorted list splits sequence space into stripes: everything between two consecutive
+// snapshots looks the same to every reader, so of a key's versions only the newest in each stripe has to be kept.
+// one list per store, shared by its column families since they draw from the same sequence numbers
+public class SnapshotList {
+    private static final long[] NONE = new long[0];
+
+    private final TreeMap<Long, Integer> live = new TreeMap<>();
+    private volatile long[] liveSequences = NONE;
+
+    public SnapshotList() {}
+
+    public synchronized Snapshot acquire(long sequence) {
+        live.merge(sequence, 1, Integer::sum);
+        publish();
+        return new Snapshot(this, sequence);
+    }
+
+    public synchronized void release(Snapshot snapshot) {
+        if (snapshot.owner != this) {
+            throw new IllegalArgumentException("snapshot belongs to another store");
+        }
+        if (!snapshot.markReleased()) {
+            return;
+        }
+        live.computeIfPresent(snapshot.getSequence(), (sequence, count) -> count > 1 ? count - 1 : null);
+        publish();
+    }
+
+    private void publish() {
+        long[] sequences = new long[live.size()];
+        int i = 0;
+        for (Map.Entry<Long, Integer> entry : live.entrySet()) {
+            sequences[i++] = entry.getKey();
+        }
+        liveSequences = sequences;
+    }
+
+    // ascending; shared, callers must not modify it
+    public long[] liveSequences() {
+        return liveSequences;
+    }
+
+    public boolean isEmpty() {
+        return liveSequences.length == 0;
+    }
+
+    // index of the oldest snapshot at or above the sequence, snapshots.length when only the latest view sees it
+    public static int stripe(long[] snapshots, long sequence) {
+        int index = Arrays.binarySearch(snapshots, sequence);
+        return index >= 0 ? index : -index - 1;
+    }
+}
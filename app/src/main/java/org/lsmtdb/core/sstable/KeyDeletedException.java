@@ -0,0 +1,11 @@
+package org.lsmtdb.core.sstable;
+
+// thrown by SSTableReader.get when the file holds a tombstone for the key. store level reads treat a deleted key as absent
+// and never throw it
+public class KeyDeletedException extends NotFoundException {
+    private static final long serialVersionUID = 1L;
+
+    public KeyDeletedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,103 @@
+package org.lsmtdb.core.sstable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.lsmtdb.common.ByteArrayWrapper;
+
+// interval index over the overlapping l0 files of one version. files are kept sorted by min key with the largest
+// max key of every implicit subtree alongside, so a lookup only descends into subtrees that can still cover the key.
+// the covering files come back newest first, bounds inclusive
+final class L0Index {
+    // newest first; files written before timestamps were tracked have no usable max and are always probed first
+    static final Comparator<SSTableMetadata> NEWEST_FIRST = Comparator
+        .comparingLong(L0Index::recencyKey).reversed()
+        .thenComparing(Comparator.comparingInt(SSTableMetadata::getFileNumber).reversed());
+
+    private final SSTableMetadata[] byMinKey;
+    private final int[] recencyRank;
+    private final ByteArrayWrapper[] subtreeMaxKey;
+
+    L0Index(List<SSTableMetadata> files) {
+        List<SSTableMetadata> newestFirst = new ArrayList<>(files);
+        newestFirst.sort(NEWEST_FIRST);
+
+        Integer[] order = new Integer[newestFirst.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> newestFirst.get(i).getMinKey()));
+
+        this.byMinKey = new SSTableMetadata[order.length];
+        this.recencyRank = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            byMinKey[i] = newestFirst.get(order[i]);
+            recencyRank[i] = order[i];
+        }
+        this.subtreeMaxKey = new ByteArrayWrapper[order.length];
+        buildSubtreeMax(0, order.length - 1);
+    }
+
+    static long recencyKey(SSTableMetadata file) {
+        return file.getMaxTimestamp() > 0 ? file.getMaxTimestamp() : Long.MAX_VALUE;
+    }
+
+    private ByteArrayWrapper buildSubtreeMax(int lo, int hi) {
+        if (lo > hi) {
+            return null;
+        }
+        int mid = (lo + hi) >>> 1;
+        ByteArrayWrapper max = byMinKey[mid].getMaxKey();
+        ByteArrayWrapper left = buildSubtreeMax(lo, mid - 1);
+        ByteArrayWrapper right = buildSubtreeMax(mid + 1, hi);
+        if (left != null && left.compareTo(max) > 0) {
+            max = left;
+        }
+        if (right != null && right.compareTo(max) > 0) {
+            max = right;
+        }
+        subtreeMaxKey[mid] = max;
+        return max;
+    }
+
+    List<SSTableMetadata> filesCovering(ByteArrayWrapper key) {
+        if (byMinKey.length == 0) {
+            return Collections.emptyList();
+        }
+        List<Integer> hits = new ArrayList<>();
+        collect(0, byMinKey.length - 1, key, hits);
+        if (hits.size() > 1) {
+            hits.sort(Comparator.comparingInt(i -> recencyRank[i]));
+        }
+        List<SSTableMetadata> covering = new ArrayList<>(hits.size());
+        for (int i : hits) {
+            covering.add(byMinKey[i]);
+        }
+        return covering;
+    }
+
+    private void collect(int lo, int hi, ByteArrayWrapper key, List<Integer> hits) {
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            // nothing in this subtree reaches the key
+            if (subtreeMaxKey[mid].compareTo(key) < 0) {
+                return;
+            }
+            collect(lo, mid - 1, key, hits);
+            // mid and everything to its right start after the key
+            if (byMinKey[mid].getMinKey().compareTo(key) > 0) {
+                return;
+            }
+            if (byMinKey[mid].getMaxKey().compareTo(key) >= 0) {
+                hits.add(mid);
+            }
+            lo = mid + 1;
+        }
+    }
+
+    int size() {
+        return byMinKey.length;
+    }
+}
@@ -0,0 +1,133 @@
+package org.lsmtdb.core.sstable;
+
+import java.util.List;
+import org.lsmtdb.common.ByteArrayWrapper;
+
+// fractional cascading over the sorted levels below l0. for every file we precompute which files of the next
+// non-empty level overlap it, so once a lookup has placed the key at one level (inside a file or in the gap between
+// two) the next level is searched only within those bounds instead of across its whole file list
+final class LevelCascade {
+    private final List<List<SSTableMetadata>> levels;
+    private final int firstLevel;
+    // next non-empty level below each level, -1 at the bottom
+    private final int[] nextLevel;
+    // per file: first file in the next level whose max key reaches its min key, and last file whose min key is
+    // at or before its max key
+    private final int[][] firstOverlap;
+    private final int[][] lastOverlap;
+
+    LevelCascade(List<List<SSTableMetadata>> levels) {
+        this.levels = levels;
+        this.nextLevel = new int[levels.size()];
+        this.firstOverlap = new int[levels.size()][];
+        this.lastOverlap = new int[levels.size()][];
+
+        int below = -1;
+        for (int level = levels.size() - 1; level >= 1; level--) {
+            nextLevel[level] = below;
+            List<SSTableMetadata> files = levels.get(level);
+            if (files.isEmpty()) {
+                continue;
+            }
+            if (below >= 0) {
+                List<SSTableMetadata> next = levels.get(below);
+                int[] first = new int[files.size()];
+                int[] last = new int[files.size()];
+                for (int i = 0; i < files.size(); i++) {
+                    first[i] = firstEndingAtOrAfter(next, files.get(i).getMinKey());
+                    last[i] = floor(next, 0, next.size() - 1, files.get(i).getMaxKey());
+                }
+                firstOverlap[level] = first;
+                lastOverlap[level] = last;
+            }
+            below = level;
+        }
+        this.firstLevel = below;
+    }
+
+    Picker picker(ByteArrayWrapper key) {
+        return new Picker(key);
+    }
+
+    // walks the levels top down, returning at most one candidate file per level
+    final class Picker {
+        private final ByteArrayWrapper key;
+        private int level;
+        private int pickedLevel = -1;
+        private int lo;
+        private int hi;
+
+        private Picker(ByteArrayWrapper key) {
+            this.key = key;
+            this.level = firstLevel;
+            if (level >= 0) {
+                this.lo = 0;
+                this.hi = levels.get(level).size() - 1;
+            }
+        }
+
+        // the next file whose range covers the key, or null once every level has been passed
+        SSTableMetadata next() {
+            while (level >= 0) {
+                List<SSTableMetadata> files = levels.get(level);
+                int idx = floor(files, lo, hi, key);
+                boolean hit = idx >= lo && key.compareTo(files.get(idx).getMaxKey()) <= 0;
+
+                int below = nextLevel[level];
+                if (below >= 0) {
+                    int nextSize = levels.get(below).size();
+                    if (hit) {
+                        lo = firstOverlap[level][idx];
+                        hi = lastOverlap[level][idx];
+                    } else {
+                        // the key sits between files idx and idx + 1
+                        lo = idx >= 0 ? Math.max(0, lastOverlap[level][idx]) : 0;
+                        hi = idx + 1 < files.size() ? Math.min(firstOverlap[level][idx + 1], nextSize - 1) : nextSize - 1;
+                    }
+                }
+                int current = level;
+                level = below;
+                if (hit) {
+                    pickedLevel = current;
+                    return levels.get(current).get(idx);
+                }
+            }
+            pickedLevel = -1;
+            return null;
+        }
+
+        // level of the file last returned by next
+        int pickedLevel() {
+            return pickedLevel;
+        }
+    }
+
+    // largest index in [lo, hi] whose min key is at or before the key, lo - 1 if none
+    private static int floor(List<SSTableMetadata> files, int lo, int hi, ByteArrayWrapper key) {
+        int result = lo - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (files.get(mid).getMinKey().compareTo(key) <= 0) {
+                result = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    private static int firstEndingAtOrAfter(List<SSTableMetadata> files, ByteArrayWrapper key) {
+        int lo = 0;
+        int hi = files.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (files.get(mid).getMaxKey().compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -1,6 +1,8 @@
 package org.lsmtdb.core.sstable;
 
 public class NotFoundException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
     public NotFoundException(String message) {
         super(message);
     }
@@ -1,8 +1,14 @@
 package org.lsmtdb.core.sstable;
 
+import java.util.concurrent.atomic.AtomicInteger;
 import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.Value;
+import org.lsmtdb.core.sstable.util.DeletionStatsCollector;
 
 public class SSTableMetadata {
+    // one wasted seek costs roughly as much as compacting 16KB, so a file may absorb that many misses before it is compacted
+    private static final long BYTES_PER_SEEK = 16 * 1024;
+    private static final int MIN_ALLOWED_SEEKS = 100;
     int fileNumber;
     private final String filePath;
     private final ByteArrayWrapper minKey;
@@ -10,8 +16,27 @@ public class SSTableMetadata {
     private long fileSize;
     private boolean beingCompacted;
     private final int level;
+    private long entryCount;
+    private long tombstoneCount;
+    private int maxWindowTombstones;
+    private long minTimestamp;
+    private long maxTimestamp;
+    private int rangeTombstoneCount;
+    // wall clock bounds over the file's values. tombstones do not count: they only matter while older data sits
+    // below the file. the bounds only mean something when hasExpiry is set: manifest.json entries are built by gson
+    // without running initializers, and files written before ttls existed, or holding only tombstones, never expire
+    private long minExpiry = Value.NO_EXPIRY;
+    private long maxExpiry = Value.NO_EXPIRY;
+    private boolean hasExpiry;
+    // read-path state, not persisted; a file starts with a fresh budget after a restart
+    private transient AtomicInteger allowedSeeks;
+    private transient volatile boolean seekCompactionPending;
+    // number of versions listing this file, and whether an edit has removed it; the file is deleted when both say so
+    private transient AtomicInteger versionRefs;
+    private transient volatile boolean obsolete;
 
     public SSTableMetadata(int fileNumber, String filePath, ByteArrayWrapper minKey, ByteArrayWrapper maxKey, long fileSize, boolean beingCompacted, int level) {
+        this.fileNumber = fileNumber;
         this.filePath = filePath;
         this.minKey = minKey;
         this.maxKey = maxKey;
@@ -55,4 +80,126 @@ public class SSTableMetadata {
     public int getLevel() {
         return level;
     }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    public long getTombstoneCount() {
+        return tombstoneCount;
+    }
+
+    public int getMaxWindowTombstones() {
+        return maxWindowTombstones;
+    }
+
+    public void setDeletionStats(long entryCount, long tombstoneCount, int maxWindowTombstones) {
+        this.entryCount = entryCount;
+        this.tombstoneCount = tombstoneCount;
+        this.maxWindowTombstones = maxWindowTombstones;
+    }
+
+    public void setDeletionStats(DeletionStatsCollector stats) {
+        setDeletionStats(stats.getEntryCount(), stats.getTombstoneCount(), stats.getMaxWindowTombstones());
+    }
+
+    public long getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    public long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    public void setTimestampRange(long minTimestamp, long maxTimestamp) {
+        this.minTimestamp = minTimestamp;
+        this.maxTimestamp = maxTimestamp;
+    }
+
+    public int getRangeTombstoneCount() {
+        return rangeTombstoneCount;
+    }
+
+    public void setRangeTombstoneCount(int rangeTombstoneCount) {
+        this.rangeTombstoneCount = rangeTombstoneCount;
+    }
+
+    public long getMinExpiry() {
+        return hasExpiry ? minExpiry : Value.NO_EXPIRY;
+    }
+
+    public long getMaxExpiry() {
+        return hasExpiry ? maxExpiry : Value.NO_EXPIRY;
+    }
+
+    // writers pass NO_EXPIRY as the min and anything below it as the max when the file holds no value at all
+    public void setExpiryRange(long minExpiry, long maxExpiry) {
+        this.hasExpiry = minExpiry != Value.NO_EXPIRY && minExpiry <= maxExpiry;
+        this.minExpiry = hasExpiry ? minExpiry : Value.NO_EXPIRY;
+        this.maxExpiry = hasExpiry ? maxExpiry : Value.NO_EXPIRY;
+    }
+
+    public boolean hasExpiry() {
+        return hasExpiry;
+    }
+
+    // true once no value in the file is live any more; only files that recorded ttl values ever get there
+    public boolean isExpired(long now) {
+        return hasExpiry && maxExpiry <= now;
+    }
+
+    // carries the content stats over to metadata describing the same data under a new file or level
+    public void copyStatsFrom(SSTableMetadata other) {
+        setDeletionStats(other.entryCount, other.tombstoneCount, other.maxWindowTombstones);
+        setTimestampRange(other.minTimestamp, other.maxTimestamp);
+        setRangeTombstoneCount(other.rangeTombstoneCount);
+        setExpiryRange(other.getMinExpiry(), other.getMaxExpiry());
+    }
+
+    // charges one wasted probe against the file's budget; returns true when this call used it up
+    public boolean recordSeekMiss() {
+        AtomicInteger seeks = allowedSeeks;
+        if (seeks == null) {
+            synchronized (this) {
+                if (allowedSeeks == null) {
+                    allowedSeeks = new AtomicInteger((int) Math.max(MIN_ALLOWED_SEEKS, fileSize / BYTES_PER_SEEK));
+                }
+                seeks = allowedSeeks;
+            }
+        }
+        if (seeks.decrementAndGet() == 0) {
+            seekCompactionPending = true;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isSeekCompactionPending() {
+        return seekCompactionPending;
+    }
+
+    private synchronized AtomicInteger versionRefs() {
+        if (versionRefs == null) {
+            versionRefs = new AtomicInteger();
+        }
+        return versionRefs;
+    }
+
+    void retainVersionRef() {
+        versionRefs().incrementAndGet();
+    }
+
+    // true when the last version listing an obsolete file let go of it
+    boolean releaseVersionRef() {
+        return versionRefs().decrementAndGet() == 0 && obsolete;
+    }
+
+    // called before the version that still lists the file is released, so the count cannot reach zero unnoticed
+    void markObsolete() {
+        obsolete = true;
+    }
+
+    public boolean isObsolete() {
+        return obsolete;
+    }
 }
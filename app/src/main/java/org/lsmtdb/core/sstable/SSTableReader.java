@@ -5,14 +5,20 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.RangeTombstone;
+import org.lsmtdb.common.Value;
 import org.lsmtdb.core.sstable.util.SSTableConstants;
 import org.lsmtdb.core.sstable.util.SSTableEntryHeader;
 import org.lsmtdb.core.sstable.util.SSTableFooterUtils;
 import org.lsmtdb.core.sstable.util.SSTableFooterUtils.FooterData;
 import org.lsmtdb.core.sstable.util.SSTableIndexUtils;
+import org.lsmtdb.core.sstable.util.SSTableRangeTombstoneUtils;
 import java.nio.charset.StandardCharsets;
 import org.lsmtdb.core.sstable.NotFoundException;
 
@@ -23,6 +29,11 @@ public class SSTableReader implements AutoCloseable {
     private final long indexOffset;
     private final int indexSize;
     private final long fileSize;
+    private List<RangeTombstone> rangeTombstones = Collections.emptyList();
+    private long memoryUsage;
+
+    private static final int READ_WINDOW_BYTES = 16 * 1024;
+    private static final ThreadLocal<ByteBuffer> READ_WINDOW = ThreadLocal.withInitial(() -> ByteBuffer.allocate(READ_WINDOW_BYTES));
 
     public SSTableReader(String filepath) throws IOException {
         File file = new File(filepath);
@@ -45,6 +56,75 @@ public class SSTableReader implements AutoCloseable {
         this.indexSize = readIndexSize();
         validateIndexSize();
         loadIndex();
+        loadRangeTombstones();
+        if (footer.formatVersion == SSTableConstants.SIGNED_ORDER_FORMAT_VERSION && hasKeyByteAbove7F()) {
+            channel.close();
+            throw new IOException("sstable " + filepath + " has format version " + footer.formatVersion + " and keys with bytes >= 0x80; "
+                + "it was written with signed key order, which this build cannot search");
+        }
+        this.memoryUsage = estimateMemoryUsage();
+    }
+
+    // signed and unsigned byte order only disagree on bytes >= 0x80, so a signed order file without any such byte in
+    // its keys is already in unsigned order. every key is read once, which only format 1 files pay for
+    private boolean hasKeyByteAbove7F() throws IOException {
+        for (RangeTombstone tombstone : rangeTombstones) {
+            if (hasByteAbove7F(tombstone.getStart().getData(), 0, tombstone.getStart().getData().length)
+                    || hasByteAbove7F(tombstone.getEnd().getData(), 0, tombstone.getEnd().getData().length)) {
+                return true;
+            }
+        }
+        Cursor cursor = new Cursor();
+        // a window of its own, the file may be opened while a lookup in another file holds the thread's window
+        cursor.window = ByteBuffer.allocate(READ_WINDOW_BYTES);
+        cursor.blockEnd = indexOffset;
+        long offset = dataOffset;
+        while (offset + SSTableConstants.HEADER_SIZE <= indexOffset) {
+            if (offset < cursor.windowStart || offset + SSTableConstants.HEADER_SIZE > cursor.windowStart + cursor.windowLength) {
+                fillWindow(cursor, offset, SSTableConstants.HEADER_SIZE);
+            }
+            int pos = (int) (offset - cursor.windowStart);
+            int keyLength = cursor.window.getInt(pos);
+            int valueLength = cursor.window.getInt(pos + Integer.BYTES);
+            long keyOffset = offset + SSTableConstants.HEADER_SIZE;
+            if (keyLength < 0 || keyOffset + keyLength > indexOffset) {
+                throw new IOException("corrupt sstable entry at offset " + offset);
+            }
+            if (keyOffset + keyLength > cursor.windowStart + cursor.windowLength) {
+                fillWindow(cursor, offset, SSTableConstants.HEADER_SIZE + keyLength);
+                pos = 0;
+            }
+            if (hasByteAbove7F(cursor.window.array(), pos + SSTableConstants.HEADER_SIZE, keyLength)) {
+                return true;
+            }
+            offset = keyOffset + keyLength + Math.max(SSTableEntryHeader.bodyLength(valueLength), 0);
+        }
+        return false;
+    }
+
+    private static boolean hasByteAbove7F(byte[] bytes, int from, int length) {
+        for (int i = from; i < from + length; i++) {
+            if (bytes[i] < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // heap kept while the reader is open: index entries as tree entries with boxed offsets, plus range tombstones
+    private long estimateMemoryUsage() {
+        long bytes = 0;
+        for (ByteArrayWrapper key : indexMap.keySet()) {
+            bytes += 40 + 16 + 16 + ((16 + key.getData().length + 7) & ~7L);
+        }
+        for (RangeTombstone tombstone : rangeTombstones) {
+            bytes += 64 + tombstone.getSize();
+        }
+        return bytes;
+    }
+
+    public long getMemoryUsage() {
+        return memoryUsage;
     }
     
     private void validateFileSize() throws IOException {
@@ -104,57 +184,163 @@ public class SSTableReader implements AutoCloseable {
         indexMap.putAll(SSTableIndexUtils.readIndex(indexBuffer, indexSize));
     }
 
-    public byte[] get(byte[] targetKey) throws IOException { 
-        System.out.println("checking in sst table for key: " + new String(targetKey, StandardCharsets.UTF_8));
-        ByteArrayWrapper keyWrapper = new ByteArrayWrapper(targetKey);
-        Map.Entry<ByteArrayWrapper,Long> entry = indexMap.floorEntry(keyWrapper);
-        if (entry == null) {
-            System.out.println("no floor entry found in index map");
+    private void loadRangeTombstones() throws IOException {
+        long blockOffset = this.indexOffset + this.indexSize;
+        long blockSize = this.fileSize - SSTableConstants.FOOTER_SIZE - blockOffset;
+        if (blockSize <= 0) {
+            return;
+        }
+        ByteBuffer tombstoneBuffer = ByteBuffer.allocate((int) blockSize);
+        channel.read(tombstoneBuffer, blockOffset);
+        tombstoneBuffer.flip();
+        this.rangeTombstones = SSTableRangeTombstoneUtils.readBlock(tombstoneBuffer);
+    }
+
+    public List<RangeTombstone> getRangeTombstones() {
+        return rangeTombstones;
+    }
+
+    public long maxCoveringTombstoneTimestamp(ByteArrayWrapper key) {
+        return RangeTombstone.maxCoveringTimestamp(rangeTombstones, key);
+    }
+
+    public long maxCoveringTombstoneTimestamp(ByteArrayWrapper key, long snapshot) {
+        return RangeTombstone.maxCoveringTimestamp(rangeTombstones, key, snapshot);
+    }
+
+    public byte[] get(byte[] targetKey) throws IOException {
+        Value value = getEntry(targetKey);
+        if (value.isDeleted()) {
+            System.out.println("found tombstone marker");
+            throw new KeyDeletedException("key is deleted (tombstone)");
+        }
+        return value.getValue();
+    }
+
+    // returns the stored entry for the key, including tombstones; throws NotFoundException when the key is absent
+    public Value getEntry(byte[] targetKey) throws IOException {
+        Value value = find(new ByteArrayWrapper(targetKey));
+        if (value == null) {
             throw new NotFoundException("key not found in sstable");
         }
-        System.out.println("found floor entry at offset: " + entry.getValue());
-        return scanForKey(entry.getValue(), keyWrapper);
+        return value;
     }
-    
-    private byte[] scanForKey(long startOffset, ByteArrayWrapper targetKeyWrapper) throws IOException {
-        long offset = startOffset;
-        while (offset < indexOffset) {
-            SSTableEntryHeader header = readEntryHeader(offset);
-            if (header == null) {
-                System.out.println("failed to read entry header at offset: " + offset);
-                throw new NotFoundException("key not found in sstable");
+
+    // returns the stored entry for the key, including tombstones, or null when this file does not hold it.
+    // only the block the key can sit in is scanned, through a per-thread window so entries are compared in place
+    // and a miss allocates nothing
+    public Value find(ByteArrayWrapper key) throws IOException {
+        return find(key, new Cursor(), Long.MAX_VALUE);
+    }
+
+    // position within one block, kept between lookups so keys probed in ascending order share the block read
+    // and pick up the scan where the previous key stopped. cursors borrow the thread's read window, so a thread
+    // works through one cursor at a time
+    public static final class Cursor {
+        private ByteBuffer window = READ_WINDOW.get();
+        private long windowStart;
+        private int windowLength;
+        private long blockStart = -1;
+        private long blockEnd;
+        private long offset;
+    }
+
+    public Cursor newCursor() {
+        return new Cursor();
+    }
+
+    // same as find(key), for keys probed in ascending order through one cursor. versions written after the
+    // snapshot sequence are stepped over; a key's versions are stored newest first
+    public Value find(ByteArrayWrapper key, Cursor cursor, long snapshot) throws IOException {
+        Map.Entry<ByteArrayWrapper,Long> block = indexMap.floorEntry(key);
+        if (block == null) {
+            return null;
+        }
+        if (block.getValue() != cursor.blockStart) {
+            Map.Entry<ByteArrayWrapper,Long> nextBlock = indexMap.higherEntry(block.getKey());
+            cursor.blockStart = block.getValue();
+            cursor.blockEnd = nextBlock != null ? nextBlock.getValue() : indexOffset;
+            cursor.offset = cursor.blockStart;
+        }
+        byte[] target = key.getData();
+        long blockEnd = cursor.blockEnd;
+
+        while (cursor.offset + SSTableConstants.HEADER_SIZE <= blockEnd) {
+            long offset = cursor.offset;
+            if (offset < cursor.windowStart || offset + SSTableConstants.HEADER_SIZE > cursor.windowStart + cursor.windowLength) {
+                fillWindow(cursor, offset, SSTableConstants.HEADER_SIZE);
             }
-            offset += SSTableConstants.HEADER_SIZE;
-            if (isOffsetOutOfBounds(offset, header.keyLength)) {
-                System.out.println("key length out of bounds at offset: " + offset);
-                throw new NotFoundException("key not found in sstable");
+            ByteBuffer window = cursor.window;
+            int pos = (int) (offset - cursor.windowStart);
+            int keyLength = window.getInt(pos);
+            int valueLength = window.getInt(pos + Integer.BYTES);
+            long timestamp = window.getLong(pos + Integer.BYTES * 2);
+            long keyOffset = offset + SSTableConstants.HEADER_SIZE;
+            if (keyLength < 0 || keyOffset + keyLength > blockEnd) {
+                return null;
             }
-            byte[] key = readBytes(offset, header.keyLength);
-            ByteArrayWrapper currentKey = new ByteArrayWrapper(key);
-            offset += header.keyLength;
-            int comparisonResult = currentKey.compareTo(targetKeyWrapper);
-            if (comparisonResult == 0) {
-                if (header.valueLength == -1) {
-                    System.out.println("found tombstone marker");
-                    throw new NotFoundException("key is deleted (tombstone)");
+            if (keyOffset + keyLength > cursor.windowStart + cursor.windowLength) {
+                fillWindow(cursor, offset, SSTableConstants.HEADER_SIZE + keyLength);
+                window = cursor.window;
+                pos = 0;
+            }
+            int keyPos = pos + SSTableConstants.HEADER_SIZE;
+            int comparisonResult = Arrays.compareUnsigned(window.array(), keyPos, keyPos + keyLength, target, 0, target.length);
+            long valueOffset = keyOffset + keyLength;
+            int bodyLength = SSTableEntryHeader.bodyLength(valueLength);
+            if (comparisonResult == 0 && timestamp <= snapshot) {
+                if (valueLength == SSTableEntryHeader.TOMBSTONE_LENGTH) {
+                    return new Value(null, timestamp, true);
+                }
+                if (bodyLength < 0 || isOffsetOutOfBounds(valueOffset, bodyLength)) {
+                    return null;
                 }
-                if (isOffsetOutOfBounds(offset, header.valueLength)) {
-                    System.out.println("value length out of bounds at offset: " + offset);
-                    throw new NotFoundException("key not found in sstable");
+                byte[] body;
+                if (valueOffset + bodyLength <= cursor.windowStart + cursor.windowLength) {
+                    int valuePos = (int) (valueOffset - cursor.windowStart);
+                    body = Arrays.copyOfRange(window.array(), valuePos, valuePos + bodyLength);
+                } else {
+                    body = readBytes(valueOffset, bodyLength);
                 }
-                return readBytes(offset, header.valueLength);
+                if (!SSTableEntryHeader.isExtended(valueLength)) {
+                    return new Value(body, timestamp, false);
+                }
+                long meta = ByteBuffer.wrap(body).getLong();
+                byte[] value = Arrays.copyOfRange(body, Long.BYTES, body.length);
+                if (meta == SSTableEntryHeader.MERGE_OPERAND_META) {
+                    return Value.mergeOperand(value, timestamp);
+                }
+                return new Value(value, timestamp, false, meta).liveAt(System.currentTimeMillis());
             } else if (comparisonResult > 0) {
-                System.out.println("key comparison greater than target, stopping search");
-                throw new NotFoundException("key not found in sstable");
+                return null;
             }
-            if (header.valueLength > 0) {
-                offset += header.valueLength;
+            cursor.offset = valueOffset + Math.max(bodyLength, 0);
+        }
+        return null;
+    }
+
+    // reads [offset, min(offset + window capacity, block end)) into the cursor's window, growing it when a single
+    // key does not fit
+    private void fillWindow(Cursor cursor, long offset, int required) throws IOException {
+        ByteBuffer window = cursor.window;
+        if (window.capacity() < required) {
+            window = ByteBuffer.allocate(Integer.highestOneBit(required - 1) << 1);
+            READ_WINDOW.set(window);
+            cursor.window = window;
+        }
+        int length = (int) Math.min(window.capacity(), cursor.blockEnd - offset);
+        window.clear();
+        window.limit(length);
+        while (window.hasRemaining()) {
+            int read = channel.read(window, offset + window.position());
+            if (read < 0) {
+                throw new IOException("unexpected end of sstable at offset " + (offset + window.position()));
             }
         }
-        System.out.println("reached end of data section without finding key");
-        throw new NotFoundException("key not found in sstable");
+        cursor.windowStart = offset;
+        cursor.windowLength = length;
     }
-    
+
     private boolean isOffsetOutOfBounds(long offset, int length) {
         return offset + length > this.fileSize - SSTableConstants.FOOTER_SIZE;
     }
@@ -191,6 +377,10 @@ public class SSTableReader implements AutoCloseable {
         }
     }
 
+    public Map<ByteArrayWrapper, Long> getIndex() {
+        return java.util.Collections.unmodifiableMap(indexMap);
+    }
+
     public long getDataOffset() {
         return dataOffset;
     }
@@ -1,73 +1,529 @@
 package org.lsmtdb.core.sstable;
 
-import org.lsmtdb.core.compaction.LevelMetadata;
 import org.lsmtdb.core.sstable.SSTableMetadata;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import org.lsmtdb.common.ByteArrayWrapper;;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.RangeTombstone;
+import org.lsmtdb.common.Value;
+import org.lsmtdb.core.merge.MergeOperands;
+import org.lsmtdb.core.merge.MergeOperator;
+import org.lsmtdb.core.sstable.merger.KeyValueIterator;
+import org.lsmtdb.core.sstable.merger.RangeScanIterator;
+import org.lsmtdb.core.sstable.merger.SSTableIterator;
 
 public class SSTableSearch {
+    private static final int MULTI_GET_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService multiGetExecutor = Executors.newFixedThreadPool(MULTI_GET_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "multiget-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private TableDirectory tableDirectory;
-    private List<LevelMetadata> levels;
+    private TableCache tableCache;
+    private volatile MergeOperator mergeOperator;
+
+    // one key probed against one file
+    private static final class Probe {
+        private final int keyIndex;
+        private final SSTableMetadata file;
+        private Value value;
+        private long tombstoneTimestamp = RangeTombstone.NONE;
+
+        private Probe(int keyIndex, SSTableMetadata file) {
+            this.keyIndex = keyIndex;
+            this.file = file;
+        }
+    }
+
+    public SSTableSearch(TableDirectory tableDirectory){
+        this.tableDirectory = tableDirectory;
+        this.tableCache = TableCache.getInstance();
+    }
+
+    public MergeOperator getMergeOperator(){
+        return mergeOperator;
+    }
 
-    public SSTableSearch(){
-        this.tableDirectory = TableDirectory.getInstance();
+    public void setMergeOperator(MergeOperator mergeOperator){
+        this.mergeOperator = mergeOperator;
     }
 
     public byte[] search(ByteArrayWrapper key) throws IOException{
-        levels = tableDirectory.getAllLevels();
-
-        for(LevelMetadata level : levels){
-
-            int levelNumber = level.getLevelNumber();
-            List<SSTableMetadata> levelCandidates = tableDirectory.getSSTablesAtLevel(levelNumber);
-
-            if(levelNumber == 0){
-                for(int i = 0; i<levelCandidates.size(); i++){
-                    SSTableMetadata l0Candidate = levelCandidates.get(i);
-                    if(checkWithinRange(l0Candidate, key)){
-                       
-                        try( SSTableReader ssTableReader =  new SSTableReader(l0Candidate.getFilePath());){
-                            byte[] value = ssTableReader.get(key.getData());
-                            return value;
-                        }catch(NotFoundException e){
-                            continue;
+        return search(key, RangeTombstone.NONE);
+    }
+
+    // throwing form of get, NotFoundException when the key is absent or deleted
+    public byte[] search(ByteArrayWrapper key, long coveringTombstoneTimestamp) throws IOException{
+        byte[] value = get(key, coveringTombstoneTimestamp);
+        if(value == null){
+            throw new NotFoundException("key not present");
+        }
+        return value;
+    }
+
+    public byte[] get(ByteArrayWrapper key, long coveringTombstoneTimestamp) throws IOException{
+        return get(key, coveringTombstoneTimestamp, Long.MAX_VALUE);
+    }
+
+    // the live value for the key as of the snapshot sequence, or null when it is absent or deleted.
+    // coveringTombstoneTimestamp is the newest range tombstone already known to cover the key (from the memtable),
+    // any entry older than it is treated as deleted
+    public byte[] get(ByteArrayWrapper key, long coveringTombstoneTimestamp, long snapshot) throws IOException{
+        long tombstoneTimestamp = coveringTombstoneTimestamp;
+        // the first file that was probed without holding the key; it is charged once the lookup has to probe another file
+        SSTableMetadata firstMiss = null;
+        SSTableMetadata seekFile = null;
+
+        // the pinned version keeps every file it lists on disk until the lookup is done
+        try (Version version = tableDirectory.acquireCurrent()) {
+            // l0 files overlap, so covering files are probed newest first. once the best entry found is at
+            // least as new as everything a remaining file can hold, the rest of l0 cannot change the answer
+            Value newest = null;
+            for(SSTableMetadata l0Candidate : version.l0FilesCovering(key)){
+                if(newest != null && L0Index.recencyKey(l0Candidate) <= newest.getTimestamp()){
+                    break;
+                }
+                if(writtenAfter(l0Candidate, snapshot)){
+                    continue;
+                }
+                if(seekFile == null && firstMiss != null){
+                    seekFile = firstMiss;
+                }
+
+                try( TableCache.Handle handle = tableCache.acquire(l0Candidate);){
+                    SSTableReader ssTableReader = handle.reader();
+                    tombstoneTimestamp = Math.max(tombstoneTimestamp, ssTableReader.maxCoveringTombstoneTimestamp(key, snapshot));
+                    Value value = ssTableReader.find(key, ssTableReader.newCursor(), snapshot);
+                    if(value == null){
+                        if(firstMiss == null){
+                            firstMiss = l0Candidate;
                         }
+                    }else if(newest == null || value.getTimestamp() > newest.getTimestamp()){
+                        newest = value;
                     }
                 }
-            }else {
-                int left = 0;
-                int right = levelCandidates.size() - 1;
-                while (left <= right) {
-                    int mid = left + (right - left) / 2;
-                    SSTableMetadata midSSTable = levelCandidates.get(mid);
-                    ByteArrayWrapper minKey = midSSTable.getMinKey();
-                    ByteArrayWrapper maxKey = midSSTable.getMaxKey();
-                    if (key.compareTo(minKey) < 0) {
-                        right = mid - 1;
-                    } else if (key.compareTo(maxKey) > 0) {
-                        left = mid + 1;
-                    } else {
-                        try( SSTableReader ssTableReader =  new SSTableReader(midSSTable.getFilePath());) {
-                            byte[] value = ssTableReader.get(key.getData());
-                            return value;
-                        } catch (NotFoundException e) {
-                            break;
+            }
+            if(newest != null){
+                if(isLiveOperand(newest, tombstoneTimestamp)){
+                    return getMerged(key, coveringTombstoneTimestamp, snapshot, new MergeOperands(mergeOperator));
+                }
+                return resolve(newest, tombstoneTimestamp);
+            }
+
+            // deeper levels are disjoint, at most one file per level can hold the key
+            LevelCascade.Picker picker = version.filePicker(key);
+            for(SSTableMetadata candidate = picker.next(); candidate != null; candidate = picker.next()){
+                if(writtenAfter(candidate, snapshot)){
+                    continue;
+                }
+                if(seekFile == null && firstMiss != null){
+                    seekFile = firstMiss;
+                }
+                try( TableCache.Handle handle = tableCache.acquire(candidate);) {
+                    SSTableReader ssTableReader = handle.reader();
+                    tombstoneTimestamp = Math.max(tombstoneTimestamp, ssTableReader.maxCoveringTombstoneTimestamp(key, snapshot));
+                    Value value = ssTableReader.find(key, ssTableReader.newCursor(), snapshot);
+                    if(value != null){
+                        if(isLiveOperand(value, tombstoneTimestamp)){
+                            return getMerged(key, coveringTombstoneTimestamp, snapshot, new MergeOperands(mergeOperator));
                         }
+                        return resolve(value, tombstoneTimestamp);
                     }
+                    if(firstMiss == null){
+                        firstMiss = candidate;
+                    }
+                }
+            }
+            return null;
+        } finally {
+            chargeSeekMiss(seekFile);
+        }
+    }
+
+    // the slow path for keys whose newest version is a merge operand: walks the versions at or below the snapshot
+    // newest first, gathering operands until a value, a tombstone or a covering range tombstone ends the walk, and
+    // folds them. operands already gathered from the memtable are newer than anything here
+    public byte[] getMerged(ByteArrayWrapper key, long coveringTombstoneTimestamp, long snapshot, MergeOperands operands) throws IOException{
+        long tombstoneTimestamp = coveringTombstoneTimestamp;
+        try (Version version = tableDirectory.acquireCurrent()) {
+            // l0 files can interleave a key's versions between them, so theirs are gathered together and ordered
+            List<Value> versions = new ArrayList<>();
+            for(SSTableMetadata l0Candidate : version.l0FilesCovering(key)){
+                if(!writtenAfter(l0Candidate, snapshot)){
+                    tombstoneTimestamp = Math.max(tombstoneTimestamp, collectVersions(l0Candidate, key, snapshot, versions));
+                }
+            }
+            versions.sort((a, b) -> Long.compare(b.getTimestamp(), a.getTimestamp()));
+            if(fold(versions, tombstoneTimestamp, operands)){
+                return operands.resolve();
+            }
+
+            LevelCascade.Picker picker = version.filePicker(key);
+            for(SSTableMetadata candidate = picker.next(); candidate != null; candidate = picker.next()){
+                if(writtenAfter(candidate, snapshot)){
+                    continue;
+                }
+                versions.clear();
+                tombstoneTimestamp = Math.max(tombstoneTimestamp, collectVersions(candidate, key, snapshot, versions));
+                if(fold(versions, tombstoneTimestamp, operands)){
+                    return operands.resolve();
+                }
+            }
+            return operands.resolve();
+        }
+    }
+
+    // pins the current files, so a check can start outside a lock and finish under it against what changed meanwhile
+    public Version acquireVersion(){
+        return tableDirectory.acquireCurrent();
+    }
+
+    // first of the keys with a write, or a range tombstone over it, in the files of the version with a sequence above
+    // the given one, or null. only files holding something written after it are read, so recent sequences cost a probe or two
+    public ByteArrayWrapper firstChangedSince(Version version, Collection<ByteArrayWrapper> keys, long sequence) throws IOException{
+        for(ByteArrayWrapper key : keys){
+            if(changedSince(version, null, key, sequence)){
+                return key;
+            }
+        }
+        return null;
+    }
+
+    // the same check over only the files of the current version that checked does not list, i.e. those flushed or
+    // written by a compaction since checked was pinned. nothing is read while the version is unchanged
+    public ByteArrayWrapper firstChangedInNewFiles(Version checked, Collection<ByteArrayWrapper> keys, long sequence) throws IOException{
+        try (Version version = tableDirectory.acquireCurrent()) {
+            if(version == checked || keys.isEmpty()){
+                return null;
+            }
+            Set<SSTableMetadata> skip = Collections.newSetFromMap(new IdentityHashMap<>());
+            for(int level = 0; level < checked.numLevels(); level++){
+                skip.addAll(checked.getFiles(level));
+            }
+            for(ByteArrayWrapper key : keys){
+                if(changedSince(version, skip, key, sequence)){
+                    return key;
                 }
             }
+            return null;
         }
-        throw new NotFoundException("key not present");
     }
 
-    private boolean checkWithinRange(SSTableMetadata sstable, ByteArrayWrapper key){
-        ByteArrayWrapper minKey = sstable.getMinKey();
-        ByteArrayWrapper maxKey = sstable.getMaxKey();
-        if(key.compareTo(maxKey) < 0 && key.compareTo(minKey) > 0){
-            return true;
+    private boolean changedSince(Version version, Set<SSTableMetadata> skip, ByteArrayWrapper key, long sequence) throws IOException{
+        for(SSTableMetadata l0Candidate : version.l0FilesCovering(key)){
+            if((skip == null || !skip.contains(l0Candidate)) && changedSince(l0Candidate, key, sequence)){
+                return true;
+            }
+        }
+        LevelCascade.Picker picker = version.filePicker(key);
+        for(SSTableMetadata candidate = picker.next(); candidate != null; candidate = picker.next()){
+            if((skip == null || !skip.contains(candidate)) && changedSince(candidate, key, sequence)){
+                return true;
+            }
         }
         return false;
     }
+
+    // files without recorded sequences are always read
+    private boolean changedSince(SSTableMetadata file, ByteArrayWrapper key, long sequence) throws IOException{
+        if(file.getMaxTimestamp() > 0 && file.getMaxTimestamp() <= sequence){
+            return false;
+        }
+        try(TableCache.Handle handle = tableCache.acquire(file)){
+            SSTableReader reader = handle.reader();
+            if(reader.maxCoveringTombstoneTimestamp(key, Long.MAX_VALUE) > sequence){
+                return true;
+            }
+            Value newest = reader.find(key, reader.newCursor(), Long.MAX_VALUE);
+            return newest != null && newest.getTimestamp() > sequence;
+        }
+    }
+
+    // adds the file's versions of the key newest first, down to the first one that is not an operand. returns the
+    // newest range tombstone in the file covering the key
+    private long collectVersions(SSTableMetadata file, ByteArrayWrapper key, long snapshot, List<Value> versions) throws IOException{
+        try(TableCache.Handle handle = tableCache.acquire(file)){
+            SSTableReader reader = handle.reader();
+            SSTableReader.Cursor cursor = reader.newCursor();
+            Value value = reader.find(key, cursor, snapshot);
+            while(value != null){
+                versions.add(value);
+                if(!value.isMergeOperand()){
+                    break;
+                }
+                value = reader.find(key, cursor, value.getTimestamp() - 1);
+            }
+            return reader.maxCoveringTombstoneTimestamp(key, snapshot);
+        }
+    }
+
+    // true once the walk is over
+    private static boolean fold(List<Value> versions, long tombstoneTimestamp, MergeOperands operands){
+        for(Value version : versions){
+            if(operands.add(version.isDeleted() ? null : version.getValue(), version.isMergeOperand(), version.getTimestamp(), tombstoneTimestamp)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLiveOperand(Value value, long tombstoneTimestamp){
+        return value.isMergeOperand() && value.getTimestamp() >= tombstoneTimestamp;
+    }
+
+    // keys must be sorted ascending; results line up with them, null where a key is absent or deleted.
+    // the lookup runs level by level: every key's candidate files at a level are grouped per file, each file is
+    // read once for its whole group with the keys walked in order through one block cursor, and the files of a
+    // level are read in parallel
+    public byte[][] multiGet(List<ByteArrayWrapper> keys, long[] coveringTombstoneTimestamps, long snapshot) throws IOException{
+        int count = keys.size();
+        byte[][] results = new byte[count][];
+        long[] tombstones = coveringTombstoneTimestamps.clone();
+        SSTableMetadata[] firstMiss = new SSTableMetadata[count];
+        SSTableMetadata[] seekFile = new SSTableMetadata[count];
+        // keys whose answer is a merge operand, resolved one by one once the batched walk is done
+        boolean[] merging = new boolean[count];
+
+        try (Version version = tableDirectory.acquireCurrent()) {
+            Map<SSTableMetadata, List<Probe>> byFile = new LinkedHashMap<>();
+            List<List<Probe>> l0Probes = new ArrayList<>(count);
+            for(int i = 0; i < count; i++){
+                List<SSTableMetadata> covering = version.l0FilesCovering(keys.get(i));
+                List<Probe> probes = new ArrayList<>(covering.size());
+                for(SSTableMetadata file : covering){
+                    if(writtenAfter(file, snapshot)){
+                        continue;
+                    }
+                    Probe probe = new Probe(i, file);
+                    probes.add(probe);
+                    byFile.computeIfAbsent(file, f -> new ArrayList<>()).add(probe);
+                }
+                l0Probes.add(probes);
+            }
+            probeFiles(byFile, keys, snapshot);
+
+            LevelCascade.Picker[] pickers = new LevelCascade.Picker[count];
+            SSTableMetadata[] pending = new SSTableMetadata[count];
+            for(int i = 0; i < count; i++){
+                // replays the single key walk over the l0 results, so answers and seek charging match get
+                Value newest = null;
+                for(Probe probe : l0Probes.get(i)){
+                    if(newest != null && L0Index.recencyKey(probe.file) <= newest.getTimestamp()){
+                        break;
+                    }
+                    if(seekFile[i] == null && firstMiss[i] != null){
+                        seekFile[i] = firstMiss[i];
+                    }
+                    tombstones[i] = Math.max(tombstones[i], probe.tombstoneTimestamp);
+                    if(probe.value == null){
+                        if(firstMiss[i] == null){
+                            firstMiss[i] = probe.file;
+                        }
+                    }else if(newest == null || probe.value.getTimestamp() > newest.getTimestamp()){
+                        newest = probe.value;
+                    }
+                }
+                if(newest != null){
+                    results[i] = resolve(newest, tombstones[i]);
+                    merging[i] = isLiveOperand(newest, tombstones[i]);
+                }else{
+                    pickers[i] = version.filePicker(keys.get(i));
+                    pending[i] = pickers[i].next();
+                }
+            }
+
+            for(int level = 1; level < version.numLevels(); level++){
+                byFile.clear();
+                List<Probe> round = new ArrayList<>();
+                for(int i = 0; i < count; i++){
+                    while(pending[i] != null && pickers[i].pickedLevel() == level && writtenAfter(pending[i], snapshot)){
+                        pending[i] = pickers[i].next();
+                    }
+                    if(pending[i] != null && pickers[i].pickedLevel() == level){
+                        Probe probe = new Probe(i, pending[i]);
+                        round.add(probe);
+                        byFile.computeIfAbsent(pending[i], f -> new ArrayList<>()).add(probe);
+                    }
+                }
+                if(round.isEmpty()){
+                    continue;
+                }
+                probeFiles(byFile, keys, snapshot);
+                for(Probe probe : round){
+                    int i = probe.keyIndex;
+                    if(seekFile[i] == null && firstMiss[i] != null){
+                        seekFile[i] = firstMiss[i];
+                    }
+                    tombstones[i] = Math.max(tombstones[i], probe.tombstoneTimestamp);
+                    if(probe.value != null){
+                        results[i] = resolve(probe.value, tombstones[i]);
+                        merging[i] = isLiveOperand(probe.value, tombstones[i]);
+                        pending[i] = null;
+                    }else{
+                        if(firstMiss[i] == null){
+                            firstMiss[i] = probe.file;
+                        }
+                        pending[i] = pickers[i].next();
+                    }
+                }
+            }
+            for(int i = 0; i < count; i++){
+                if(merging[i]){
+                    results[i] = getMerged(keys.get(i), coveringTombstoneTimestamps[i], snapshot, new MergeOperands(mergeOperator));
+                }
+            }
+            return results;
+        } finally {
+            for(SSTableMetadata file : seekFile){
+                chargeSeekMiss(file);
+            }
+        }
+    }
+
+    // every group but the last goes to the pool, the caller reads the last one itself
+    private void probeFiles(Map<SSTableMetadata, List<Probe>> byFile, List<ByteArrayWrapper> keys, long snapshot) throws IOException{
+        List<Future<?>> running = new ArrayList<>();
+        Throwable failure = null;
+        try{
+            int remaining = byFile.size();
+            for(Map.Entry<SSTableMetadata, List<Probe>> group : byFile.entrySet()){
+                if(--remaining > 0){
+                    running.add(multiGetExecutor.submit(() -> {
+                        probeFile(group.getKey(), group.getValue(), keys, snapshot);
+                        return null;
+                    }));
+                }else{
+                    probeFile(group.getKey(), group.getValue(), keys, snapshot);
+                }
+            }
+        }catch(IOException | RuntimeException e){
+            failure = e;
+        }
+        // wait for every read even after a failure, so nothing still runs against the pinned version
+        for(Future<?> future : running){
+            try{
+                future.get();
+            }catch(ExecutionException e){
+                if(failure == null){
+                    failure = e.getCause();
+                }
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                if(failure == null){
+                    failure = new InterruptedIOException("interrupted during multiGet");
+                }
+            }
+        }
+        if(failure instanceof IOException){
+            throw (IOException) failure;
+        }
+        if(failure instanceof RuntimeException){
+            throw (RuntimeException) failure;
+        }
+        if(failure != null){
+            throw new IOException("multiGet read failed", failure);
+        }
+    }
+
+    private void probeFile(SSTableMetadata file, List<Probe> probes, List<ByteArrayWrapper> keys, long snapshot) throws IOException{
+        try(TableCache.Handle handle = tableCache.acquire(file)){
+            SSTableReader reader = handle.reader();
+            SSTableReader.Cursor cursor = reader.newCursor();
+            for(Probe probe : probes){
+                ByteArrayWrapper key = keys.get(probe.keyIndex);
+                probe.tombstoneTimestamp = reader.maxCoveringTombstoneTimestamp(key, snapshot);
+                probe.value = reader.find(key, cursor, snapshot);
+            }
+        }
+    }
+
+    // every entry in the file is newer than the snapshot; files without recorded sequences are always probed
+    private boolean writtenAfter(SSTableMetadata file, long snapshot){
+        return file.getMinTimestamp() > 0 && file.getMinTimestamp() > snapshot;
+    }
+
+    private void chargeSeekMiss(SSTableMetadata seekFile){
+        if(seekFile != null && seekFile.recordSeekMiss()){
+            System.out.println("sstable " + seekFile.getFileNumber() + " at level " + seekFile.getLevel() + " ran out of allowed seeks, scheduling seek compaction");
+        }
+    }
+
+    // opens every file overlapping [start, end) and merges it behind the memtable source; l0 files go newest first.
+    // the returned iterator owns the reader handles and the pinned version and must be closed
+    public RangeScanIterator scan(ByteArrayWrapper start, ByteArrayWrapper end, KeyValueIterator memtableSource, List<RangeTombstone> memtableTombstones) throws IOException{
+        return scan(start, end, memtableSource, memtableTombstones, Long.MAX_VALUE);
+    }
+
+    // same, as of the snapshot sequence; the memtable source is expected to be cut at the same snapshot
+    public RangeScanIterator scan(ByteArrayWrapper start, ByteArrayWrapper end, KeyValueIterator memtableSource, List<RangeTombstone> memtableTombstones, long snapshot) throws IOException{
+        List<KeyValueIterator> sources = new ArrayList<>();
+        List<RangeTombstone> rangeTombstones = RangeTombstone.visibleAt(memtableTombstones, snapshot);
+        List<AutoCloseable> resources = new ArrayList<>();
+        sources.add(memtableSource);
+        Version version = tableDirectory.acquireCurrent();
+        resources.add(version);
+
+        try {
+            for(int levelNumber = 0; levelNumber < version.numLevels(); levelNumber++){
+                List<SSTableMetadata> levelCandidates = new ArrayList<>(version.getFiles(levelNumber));
+                if(levelNumber == 0){
+                    levelCandidates.sort(L0Index.NEWEST_FIRST);
+                }
+                for(SSTableMetadata candidate : levelCandidates){
+                    if(!overlapsRange(candidate, start, end) || writtenAfter(candidate, snapshot)){
+                        continue;
+                    }
+                    TableCache.Handle handle = tableCache.acquire(candidate);
+                    resources.add(handle);
+                    SSTableReader reader = handle.reader();
+                    SSTableIterator iterator = new SSTableIterator(reader, candidate.getMaxKey(), null);
+                    if(start != null){
+                        iterator.seek(start);
+                    }
+                    rangeTombstones.addAll(RangeTombstone.visibleAt(reader.getRangeTombstones(), snapshot));
+                    sources.add(iterator);
+                }
+            }
+            return new RangeScanIterator(sources, rangeTombstones, end, resources, snapshot, mergeOperator);
+        } catch (IOException | RuntimeException e) {
+            for(AutoCloseable resource : resources){
+                try{
+                    resource.close();
+                }catch(Exception closeFailure){
+                    e.addSuppressed(closeFailure);
+                }
+            }
+            throw e;
+        }
+    }
+
+    private boolean overlapsRange(SSTableMetadata sstable, ByteArrayWrapper start, ByteArrayWrapper end){
+        if(start != null && sstable.getMaxKey().compareTo(start) < 0){
+            return false;
+        }
+        return end == null || sstable.getMinKey().compareTo(end) < 0;
+    }
+
+    // null when the entry is a tombstone or sits under a newer range tombstone
+    private byte[] resolve(Value value, long tombstoneTimestamp){
+        if(value.isDeleted() || value.getTimestamp() < tombstoneTimestamp){
+            return null;
+        }
+        return value.getValue();
+    }
 }
@@ -11,28 +11,59 @@ import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.nio.charset.StandardCharsets;
 
 import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.RangeTombstone;
 import org.lsmtdb.common.Value;
 import org.lsmtdb.core.memtable.*;
+import org.lsmtdb.core.ratelimit.RateLimiter;
+import org.lsmtdb.core.snapshot.SnapshotList;
+import org.lsmtdb.core.sstable.util.DeletionStatsCollector;
 import org.lsmtdb.core.sstable.util.SSTableConstants;
 import org.lsmtdb.core.sstable.util.SSTableEntryHeader;
 import org.lsmtdb.core.sstable.util.SSTableFooterUtils;
 import org.lsmtdb.core.sstable.util.SSTableIndexUtils;
+import org.lsmtdb.core.sstable.util.SSTableRangeTombstoneUtils;
 
 public class SSTableWriter implements AutoCloseable {
     private static final int BUFFER_SIZE = 1024 * 1024;
     private static final int INDEX_ENTRY_INTERVAL = 128;
+    private static final long MIN_PARTITION_BYTES = 1024 * 1024;
+    private static final int MAX_PARTITIONS = 16;
+
+    // how a flush is split into l0 files: not at all, at the file boundaries of the level below l0
+    // (so each file overlaps few files there), or into shardCount ranges of roughly equal size
+    public enum Partitioning {
+        NONE,
+        NEXT_LEVEL_BOUNDARIES,
+        FIXED_SHARDS
+    }
 
     private FileChannel channel;
     private long currentOffset;
     private final List<SSTableIndexUtils.IndexEntry> index;
+    private int entriesInBlock;
+    private byte[] lastKeyInBlock;
+    private DeletionStatsCollector deletionStats;
+    private long minTimestamp;
+    private long maxTimestamp;
+    private long minExpiry;
+    private long maxExpiry;
     private final ByteBuffer buffer;
     private boolean isClosed;
     private final int level;
     private SSTableMetadata metadata;
+    private final RateLimiter rateLimiter;
+    private Partitioning partitioning = Partitioning.NEXT_LEVEL_BOUNDARIES;
+    private int shardCount = 4;
+    private final TableDirectory tableDirectory;
+    private int fileNumber;
+    private String filePath;
+    private ByteArrayWrapper fileMinKey;
+    private ByteArrayWrapper fileMaxKey;
 
     public static class IndexEntry implements SSTableIndexUtils.IndexEntry {
         private final byte[] key;
@@ -48,26 +79,119 @@ public class SSTableWriter implements AutoCloseable {
         public long getOffset() { return offset; }
     }
 
-    public SSTableWriter(int level) throws IOException {
+    // writes into the levels of the given directory, one per column family
+    public SSTableWriter(int level, TableDirectory tableDirectory) throws IOException {
         this.level = level;
+        this.tableDirectory = tableDirectory;
         this.currentOffset = 0;
         this.index = new ArrayList<>();
         this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
         this.isClosed = false;
+        this.rateLimiter = RateLimiter.getInstance();
+    }
+
+    public Partitioning getPartitioning() {
+        return partitioning;
     }
 
-    public void write(Memtable memtable) throws IOException {
+    public void setPartitioning(Partitioning partitioning) {
+        this.partitioning = partitioning;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public void setShardCount(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shard count must be at least 1");
+        }
+        this.shardCount = shardCount;
+    }
+
+    // flushes the memtable into one or more files. the partitions tile the whole key space, each file gets the
+    // range tombstones clipped to its slice, and a cut is only made once the current file holds MIN_PARTITION_BYTES
+    public List<SSTableMetadata> write(Memtable memtable) throws IOException {
         if (isClosed) {
             throw new IllegalStateException("sstablewriter is already closed");
         }
 
-        ByteArrayWrapper minKey = memtable.minKey();
-        ByteArrayWrapper maxKey = memtable.maxKey();
+        List<RangeTombstone> rangeTombstones = memtable.getRangeTombstones();
+        List<ByteArrayWrapper> boundaries = partitioning == Partitioning.NEXT_LEVEL_BOUNDARIES ? nextLevelBoundaries() : new ArrayList<>();
+        long shardBytes = partitioning == Partitioning.FIXED_SHARDS ? Math.max(MIN_PARTITION_BYTES, memtable.getSize() / shardCount) : Long.MAX_VALUE;
 
-        TableDirectory tableDir = TableDirectory.getInstance();
+        long[] snapshots = memtable.getSnapshotList().liveSequences();
+        List<SSTableMetadata> written = new ArrayList<>();
+        ByteArrayWrapper partitionStart = null;
+        ByteArrayWrapper previousKey = null;
+        long partitionBytes = 0;
+        int boundary = 0;
+        startFile();
 
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<ByteArrayWrapper, Value>> it = memtable.iterator();
+        while (it.hasNext()) {
+            Map.Entry<ByteArrayWrapper, Value> entry = it.next();
+            ByteArrayWrapper key = entry.getKey();
+
+            boolean crossedBoundary = false;
+            while (boundary < boundaries.size() && boundaries.get(boundary).compareTo(key) <= 0) {
+                boundary++;
+                crossedBoundary = true;
+            }
+            // all versions of a key stay in one file
+            boolean cut = (crossedBoundary || partitionBytes >= shardBytes) && !key.equals(previousKey);
+            previousKey = key;
+            if (cut && partitionBytes >= MIN_PARTITION_BYTES && written.size() < MAX_PARTITIONS - 1) {
+                addIfPresent(written, finishFile(partitionStart, key, rangeTombstones));
+                partitionStart = key;
+                partitionBytes = 0;
+                startFile();
+            }
+
+            // entries already shadowed by a newer range tombstone in the same memtable are not worth writing,
+            // unless a snapshot taken between the two still sees the entry
+            long covering = RangeTombstone.maxCoveringTimestamp(rangeTombstones, key);
+            long sequence = entry.getValue().getTimestamp();
+            if (covering > sequence && SnapshotList.stripe(snapshots, covering) == SnapshotList.stripe(snapshots, sequence)) {
+                continue;
+            }
+            writeEntry(entry, currentOffset + buffer.position(), now);
+            partitionBytes += key.getData().length + entry.getValue().getSize();
+        }
+        addIfPresent(written, finishFile(partitionStart, null, rangeTombstones));
+        if (written.size() > 1) {
+            System.out.println("flush partitioned into " + written.size() + " sstables (" + partitioning + ")");
+        }
+        return written;
+    }
+
+    private void addIfPresent(List<SSTableMetadata> written, SSTableMetadata metadata) {
+        if (metadata != null) {
+            written.add(metadata);
+        }
+    }
+
+    // cut points are the min keys of the first non-empty level below l0, which after dynamic level sizing is the level l0 compacts into
+    private List<ByteArrayWrapper> nextLevelBoundaries() {
+        for (int level = 1; level < tableDirectory.getAllLevels().size(); level++) {
+            List<SSTableMetadata> sstables = new ArrayList<>(tableDirectory.getSSTablesAtLevel(level));
+            if (sstables.isEmpty()) {
+                continue;
+            }
+            List<ByteArrayWrapper> boundaries = new ArrayList<>();
+            for (int i = 1; i < sstables.size(); i++) {
+                boundaries.add(sstables.get(i).getMinKey());
+            }
+            boundaries.sort(null);
+            return boundaries;
+        }
+        return new ArrayList<>();
+    }
 
-        String filePath = tableDir.generatePath(level);
+    private void startFile() throws IOException {
+        this.fileNumber = tableDirectory.getAndIncrementNextFileNumber();
+        this.filePath = tableDirectory.generatePath(level, fileNumber);
 
         Path path = Paths.get(filePath);
         Path parent = path.getParent();
@@ -81,52 +205,118 @@ public class SSTableWriter implements AutoCloseable {
         }
         
         this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.currentOffset = 0;
+        this.index.clear();
+        this.entriesInBlock = 0;
+        this.lastKeyInBlock = null;
+        this.buffer.clear();
+        this.deletionStats = new DeletionStatsCollector();
+        this.minTimestamp = Long.MAX_VALUE;
+        this.maxTimestamp = Long.MIN_VALUE;
+        this.minExpiry = Value.NO_EXPIRY;
+        this.maxExpiry = Long.MIN_VALUE;
+        this.fileMinKey = null;
+        this.fileMaxKey = null;
+    }
 
-        long dataOffset = currentOffset;
-        writeData(memtable);
+    // lo is inclusive and hi exclusive, null means unbounded on that side
+    private SSTableMetadata finishFile(ByteArrayWrapper lo, ByteArrayWrapper hi, List<RangeTombstone> rangeTombstones) throws IOException {
+        flushBuffer();
+        List<RangeTombstone> clipped = clip(rangeTombstones, lo, hi);
+        for (RangeTombstone tombstone : clipped) {
+            trackTimestamp(tombstone.getTimestamp());
+            trackKey(tombstone.getStart());
+            trackKey(tombstone.getEnd());
+        }
+
+        File file = new File(filePath);
+        if (fileMinKey == null) {
+            channel.close();
+            Files.deleteIfExists(file.toPath());
+            return null;
+        }
+
+        long dataOffset = 0;
         long indexOffset = currentOffset;
         writeIndex();
+        if (!clipped.isEmpty()) {
+            writeRangeTombstones(clipped);
+        }
         writeFooter(indexOffset, dataOffset);
         channel.force(true);
+        channel.close();
         long fileSize = file.length();
         System.out.println("sstable write complete: path=" + filePath + ", level=" + level + ", fileSize=" + fileSize + ", footerOffset=" + currentOffset);
 
-        this.metadata = tableDir.allocateNewSSTable(level, minKey, maxKey, file.length(),filePath,tableDir.getAndIncrementNextFileNumber());
+        this.metadata = tableDirectory.allocateNewSSTable(level, fileMinKey, fileMaxKey, fileSize, filePath, fileNumber);
+        this.metadata.setDeletionStats(deletionStats);
+        this.metadata.setRangeTombstoneCount(clipped.size());
+        if (minTimestamp <= maxTimestamp) {
+            this.metadata.setTimestampRange(minTimestamp, maxTimestamp);
+        }
+        this.metadata.setExpiryRange(minExpiry, maxExpiry);
 
-        tableDir.addSSTable(level, metadata);
+        tableDirectory.addSSTable(level, metadata);
+        return metadata;
     }
 
-    private void writeData(Memtable memtable) throws IOException {
-        Iterator<Map.Entry<ByteArrayWrapper, Value>> it = memtable.iterator();
-        while (it.hasNext()) {
-            long entryOffset = currentOffset + buffer.position();
-            Map.Entry<ByteArrayWrapper, Value> entry = it.next();
-            writeEntry(entry, entryOffset);
+    private List<RangeTombstone> clip(List<RangeTombstone> rangeTombstones, ByteArrayWrapper lo, ByteArrayWrapper hi) {
+        List<RangeTombstone> clipped = new ArrayList<>();
+        for (RangeTombstone tombstone : rangeTombstones) {
+            ByteArrayWrapper start = lo != null && lo.compareTo(tombstone.getStart()) > 0 ? lo : tombstone.getStart();
+            ByteArrayWrapper end = hi != null && hi.compareTo(tombstone.getEnd()) < 0 ? hi : tombstone.getEnd();
+            if (start.compareTo(end) < 0) {
+                clipped.add(start == tombstone.getStart() && end == tombstone.getEnd() ? tombstone : new RangeTombstone(start, end, tombstone.getTimestamp()));
+            }
+        }
+        return clipped;
+    }
+
+    private void trackKey(ByteArrayWrapper key) {
+        if (fileMinKey == null || key.compareTo(fileMinKey) < 0) {
+            fileMinKey = key;
+        }
+        if (fileMaxKey == null || key.compareTo(fileMaxKey) > 0) {
+            fileMaxKey = key;
         }
-        flushBuffer();
     }
 
-    private void writeEntry(Map.Entry<ByteArrayWrapper, Value> entry, long entryOffset) throws IOException {
+    private void trackTimestamp(long timestamp) {
+        minTimestamp = Math.min(minTimestamp, timestamp);
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+    }
+
+    // a value that expired while in the memtable is written as the tombstone it now reads as
+    private void writeEntry(Map.Entry<ByteArrayWrapper, Value> entry, long entryOffset, long now) throws IOException {
         byte[] key = entry.getKey().getData();
-        Value value = entry.getValue();
-        int keyLength = key.length;
-        int valueLength = value.isDeleted() ? 0 : value.getValue().length;
-        int entrySize = SSTableConstants.HEADER_SIZE + keyLength + (value.isDeleted() ? 0 : valueLength);
+        Value value = entry.getValue().liveAt(now);
+        byte[] data = value.isDeleted() ? null : value.getValue();
+        int entrySize = SSTableEntryHeader.entrySize(key, data, value.getExpiresAt(), value.isMergeOperand());
         if (buffer.remaining() < entrySize) {
             flushBuffer();
         }
-        if (shouldAddIndexEntry()) {
+        if (shouldAddIndexEntry(key)) {
             index.add(new IndexEntry(key, entryOffset));
         }
-        SSTableEntryHeader.writeTo(buffer, key.length, value.isDeleted() ? -1 : value.getValue().length, value.getTimestamp());
-        buffer.put(key);
+        SSTableEntryHeader.writeEntry(buffer, key, data, value.getTimestamp(), value.getExpiresAt(), value.isMergeOperand());
+        deletionStats.add(value.isDeleted());
+        trackTimestamp(value.getTimestamp());
         if (!value.isDeleted()) {
-            buffer.put(value.getValue());
+            minExpiry = Math.min(minExpiry, value.getExpiresAt());
+            maxExpiry = Math.max(maxExpiry, value.getExpiresAt());
         }
+        trackKey(entry.getKey());
     }
 
-    private boolean shouldAddIndexEntry() {
-        return index.isEmpty() || index.size() % INDEX_ENTRY_INTERVAL == 0;
+    // a block only starts on a new key, so every version of a key sits in the block the index points lookups at
+    private boolean shouldAddIndexEntry(byte[] key) {
+        if (entriesInBlock >= INDEX_ENTRY_INTERVAL && !Arrays.equals(key, lastKeyInBlock)) {
+            entriesInBlock = 0;
+        }
+        boolean blockStart = entriesInBlock == 0;
+        entriesInBlock++;
+        lastKeyInBlock = key;
+        return blockStart;
     }
 
     private void writeIndex() throws IOException {
@@ -134,10 +324,20 @@ public class SSTableWriter implements AutoCloseable {
         ByteBuffer indexBuffer = ByteBuffer.allocate(indexSize);
         SSTableIndexUtils.writeIndex(indexBuffer, index);
         indexBuffer.flip();
+        rateLimiter.request(indexBuffer.limit(), RateLimiter.Priority.HIGH);
         channel.write(indexBuffer, currentOffset);
         currentOffset += indexBuffer.limit();
     }
 
+    private void writeRangeTombstones(List<RangeTombstone> rangeTombstones) throws IOException {
+        ByteBuffer tombstoneBuffer = ByteBuffer.allocate(SSTableRangeTombstoneUtils.calculateSize(rangeTombstones));
+        SSTableRangeTombstoneUtils.writeBlock(tombstoneBuffer, rangeTombstones);
+        tombstoneBuffer.flip();
+        rateLimiter.request(tombstoneBuffer.limit(), RateLimiter.Priority.HIGH);
+        channel.write(tombstoneBuffer, currentOffset);
+        currentOffset += tombstoneBuffer.limit();
+    }
+
     private int calculateIndexSize() {
         int size = Integer.BYTES;
         for (SSTableIndexUtils.IndexEntry idx : index) {
@@ -151,12 +351,14 @@ public class SSTableWriter implements AutoCloseable {
         ByteBuffer footerBuffer = ByteBuffer.allocate(SSTableConstants.FOOTER_SIZE);
         SSTableFooterUtils.writeFooter(footerBuffer, indexOffset, dataOffset);
         footerBuffer.flip();
+        rateLimiter.request(footerBuffer.limit(), RateLimiter.Priority.HIGH);
         channel.write(footerBuffer, currentOffset);
         System.out.println("footer written at offset: " + currentOffset);
     }
 
     private void flushBuffer() throws IOException {
         buffer.flip();
+        rateLimiter.request(buffer.limit(), RateLimiter.Priority.HIGH);
         channel.write(buffer, currentOffset);
         currentOffset += buffer.limit();
         buffer.clear();
@@ -165,7 +367,9 @@ public class SSTableWriter implements AutoCloseable {
     @Override
     public void close() throws IOException {
         if (!isClosed) {
-            channel.close();
+            if (channel != null) {
+                channel.close();
+            }
             isClosed = true;
             System.out.println("sstable file channel closed for level=" + level + ", path=" + (channel != null ? channel.toString() : "null"));
         }
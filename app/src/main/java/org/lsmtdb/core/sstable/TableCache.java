@@ -0,0 +1,228 @@
+package org.lsmtdb.core.sstable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// shared, lazily opened sstable readers. a reader is opened (footer, index and range tombstones loaded) on first use
+// and kept until the file becomes obsolete or the cache is over its open-file budget. handles are reference counted,
+// so evicting a reader never closes it under a lookup that is still using it. with a byte capacity set, the readers'
+// in-memory indexes plus whatever else is charged to the cache (memtables, see WriteBufferManager) are kept under it
+public class TableCache {
+    private static TableCache instance;
+    private static final int DEFAULT_MAX_OPEN_FILES = 4096;
+    private static final int WARM_UP_THREADS = 4;
+
+    private final Map<String, Handle> readers = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final ExecutorService warmUpExecutor;
+    private volatile int maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+    // 0 bounds the cache by open files only
+    private volatile long capacityBytes = 0;
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final AtomicLong chargedBytes = new AtomicLong();
+
+    public static class Handle implements AutoCloseable {
+        private final SSTableReader reader;
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private volatile long lastAccess;
+
+        private Handle(SSTableReader reader) {
+            this.reader = reader;
+        }
+
+        public SSTableReader reader() {
+            return reader;
+        }
+
+        private boolean tryRef() {
+            while (true) {
+                int current = refs.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (refs.decrementAndGet() == 0) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    System.err.println("failed to close sstable reader: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private TableCache() {
+        this.warmUpExecutor = Executors.newFixedThreadPool(WARM_UP_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "sstable-warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static synchronized TableCache getInstance() {
+        if (instance == null) {
+            instance = new TableCache();
+        }
+        return instance;
+    }
+
+    public Handle acquire(SSTableMetadata sstable) throws IOException {
+        return acquire(sstable.getFilePath());
+    }
+
+    public Handle acquire(String filePath) throws IOException {
+        while (true) {
+            Handle handle = readers.get(filePath);
+            if (handle == null) {
+                Handle opened = new Handle(new SSTableReader(filePath));
+                handle = readers.putIfAbsent(filePath, opened);
+                if (handle == null) {
+                    handle = opened;
+                    residentBytes.addAndGet(opened.reader.getMemoryUsage());
+                    evictIfOverBudget();
+                } else {
+                    opened.close();
+                }
+            }
+            if (handle.tryRef()) {
+                handle.lastAccess = clock.incrementAndGet();
+                return handle;
+            }
+            // evicted between the lookup and the ref, open it again
+            remove(filePath, handle);
+        }
+    }
+
+    private boolean remove(String filePath, Handle handle) {
+        if (!readers.remove(filePath, handle)) {
+            return false;
+        }
+        residentBytes.addAndGet(-handle.reader.getMemoryUsage());
+        handle.close();
+        return true;
+    }
+
+    // drops the cache's reference; the reader closes once the last lookup using it is done
+    public void evict(String filePath) {
+        Handle handle = readers.get(filePath);
+        if (handle != null) {
+            remove(filePath, handle);
+        }
+    }
+
+    // opens readers in the background so the first lookups against these files skip the footer and index reads
+    public void warmUp(List<SSTableMetadata> sstables) {
+        for (SSTableMetadata sstable : sstables) {
+            warmUpExecutor.submit(() -> {
+                try {
+                    // opening is all that is wanted, the cache keeps its own reference
+                    acquire(sstable).close();
+                    return null;
+                } catch (IOException e) {
+                    System.err.println("failed to warm up " + sstable.getFilePath() + ": " + e.getMessage());
+                    return null;
+                }
+            });
+        }
+    }
+
+    // evicts the least recently used tenth of the budget once it is exceeded, so eviction runs rarely. over the byte
+    // capacity, least recently used readers go until the cache fits or holds no readers
+    private void evictIfOverBudget() {
+        int limit = maxOpenFiles;
+        boolean overFiles = readers.size() > limit;
+        if (!overFiles && !overCapacity()) {
+            return;
+        }
+        // lastAccess keeps moving under concurrent reads, so sort a copy taken once rather than the live handles
+        List<EvictionCandidate> candidates = new ArrayList<>(readers.size());
+        for (Map.Entry<String, Handle> entry : readers.entrySet()) {
+            candidates.add(new EvictionCandidate(entry.getKey(), entry.getValue(), entry.getValue().lastAccess));
+        }
+        candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccess));
+        int toEvict = overFiles ? candidates.size() - limit + Math.max(1, limit / 10) : 0;
+        for (int i = 0; i < candidates.size() && (i < toEvict || overCapacity()); i++) {
+            EvictionCandidate candidate = candidates.get(i);
+            remove(candidate.path, candidate.handle);
+        }
+    }
+
+    private static final class EvictionCandidate {
+        final String path;
+        final Handle handle;
+        final long lastAccess;
+
+        EvictionCandidate(String path, Handle handle, long lastAccess) {
+            this.path = path;
+            this.handle = handle;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private boolean overCapacity() {
+        long capacity = capacityBytes;
+        return capacity > 0 && residentBytes.get() + chargedBytes.get() > capacity;
+    }
+
+    // bytes held elsewhere that count against the capacity; negative to hand them back
+    public void charge(long bytes) {
+        chargedBytes.addAndGet(bytes);
+        if (bytes > 0 && !readers.isEmpty() && overCapacity()) {
+            evictIfOverBudget();
+        }
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public void setCapacityBytes(long capacityBytes) {
+        if (capacityBytes < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+        this.capacityBytes = capacityBytes;
+        evictIfOverBudget();
+    }
+
+    // reader memory plus outside charges
+    public long getUsage() {
+        return residentBytes.get() + chargedBytes.get();
+    }
+
+    public int size() {
+        return readers.size();
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    public void setMaxOpenFiles(int maxOpenFiles) {
+        if (maxOpenFiles < 1) {
+            throw new IllegalArgumentException("max open files must be at least 1");
+        }
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    public void shutdown() {
+        warmUpExecutor.shutdownNow();
+        for (String filePath : new ArrayList<>(readers.keySet())) {
+            evict(filePath);
+        }
+    }
+}
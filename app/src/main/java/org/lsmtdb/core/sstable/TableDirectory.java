@@ -8,92 +8,228 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.lsmtdb.common.ByteArrayWrapper;
 import org.lsmtdb.common.AppConstants;
 import org.lsmtdb.core.compaction.LevelMetadata;
+import org.lsmtdb.core.manifest.ManifestLog;
+import org.lsmtdb.core.manifest.VersionEdit;
 
 
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
 public class TableDirectory {
-    private static TableDirectory instance;
-    private final File manifestFile;      
+    private static final int VERIFY_THREADS = 8;
+    private final String dbPath;
+    private final File dbDir;
+    private final File legacyManifestFile;
     private final Map<Integer, LevelMetadata> levels = new HashMap<>();
     private int nextFileNumber = 1;
-    private final ExecutorService manifestExecutor = Executors.newSingleThreadExecutor();
-    private Future<?> lastSaveOperation;
+    // last sequence number handed to a write; persisted with every edit so numbering resumes after a restart.
+    // column families of one store share the counter, each manifest records it and the highest wins on open
+    private final AtomicLong lastSequence;
+    private ManifestLog manifestLog;
+    private volatile Version current;
 
-    private TableDirectory(String manifestFile){
-        this.manifestFile = new File(AppConstants.BASE_DB_PATH,manifestFile);
+    // the levels of one column family, kept under dbPath with their own manifest
+    public TableDirectory(String dbPath, AtomicLong lastSequence){
+        this.dbPath = dbPath;
+        this.dbDir = new File(dbPath);
+        this.legacyManifestFile = new File(dbPath, AppConstants.MANIFEST_PATH);
+        this.lastSequence = lastSequence;
         loadManifest();
     }
 
-    public static synchronized TableDirectory getInstance() {
-        if (instance == null) {
-            instance = new TableDirectory(AppConstants.MANIFEST_PATH);
-        }
-        return instance;
+    public String getDbPath(){
+        return dbPath;
     }
 
+    // files of the current version; the list is immutable and stays valid after later edits
     public List<SSTableMetadata> getSSTablesAtLevel(int level){
-        return levels.getOrDefault(level, new LevelMetadata(level)).getSstables();
+        return current.getFiles(level);
     }
 
     public LevelMetadata getLevelMetadata(int level){
         return levels.get(level);
     }
 
+    // pins the current version without taking a lock; the caller must close it
+    public Version acquireCurrent(){
+        while(true){
+            Version version = current;
+            if(version.tryRef()){
+                return version;
+            }
+        }
+    }
+
     public List<LevelMetadata> getAllLevels(){
         return new ArrayList<>(levels.values());
     }
 
     public void addSSTable(int level, SSTableMetadata sstable){
-        LevelMetadata meta = levels.computeIfAbsent(level, l->new LevelMetadata(level));
-
-        List<SSTableMetadata> temp = meta.getSstables();
-        temp.add(sstable);
-        Collections.sort(temp,Comparator.comparing(SSTableMetadata::getMinKey));
-        meta.setSstables(temp);
-        meta.setTotalSize(meta.getTotalSize() + sstable.getFileSize());
-        
-        levels.put(level,meta);
-        saveManifest();
+        VersionEdit edit = new VersionEdit();
+        edit.addFile(sstable);
+        logAndApply(edit);
     }
 
     public void removeSSTables(int level, List<SSTableMetadata> toRemove){
-        LevelMetadata meta = levels.get(level);
-        if(meta == null){
-            return;
+        VersionEdit edit = new VersionEdit();
+        for(SSTableMetadata s : toRemove){
+            edit.deleteFile(level, s.getFilePath());
         }
+        logAndApply(edit);
+    }
 
-        long metaSize = meta.getTotalSize();
-        for(SSTableMetadata s : toRemove){
-            metaSize -= s.getFileSize();
+    // appends the edit to the manifest, then applies it in memory and publishes the new version. the append happens
+    // under the lock so edits are logged in the order they are applied, the fsync happens outside it so concurrent
+    // flushes and compactions share one. the previous version is only let go once the edit is synced: it still lists
+    // the files the edit removes, and they must stay on disk for as long as the durable manifest may name them
+    public void logAndApply(VersionEdit edit){
+        ManifestLog log;
+        long position;
+        Version previous;
+        synchronized(this){
+            edit.setNextFileNumber(nextFileNumber);
+            long sequence = lastSequence.get();
+            if(sequence != VersionEdit.NO_SEQUENCE){
+                edit.setLastSequence(sequence);
+            }
+            try{
+                log = manifestLog;
+                position = log.write(edit);
+            }catch(IOException e){
+                throw new UncheckedIOException("failed to append to manifest", e);
+            }
+            apply(edit);
+            previous = installVersion();
+            if(log.size() > ManifestLog.MAX_MANIFEST_BYTES){
+                // the new manifest starts from a synced snapshot of the version just installed
+                try{
+                    rollOver();
+                }catch(IOException e){
+                    throw new UncheckedIOException("failed to roll over manifest", e);
+                }
+                releaseVersion(previous);
+                return;
+            }
+        }
+        // on failure the previous version is never released, so the removed files are left behind rather than lost
+        try{
+            log.sync(position);
+        }catch(IOException e){
+            throw new UncheckedIOException("failed to sync manifest", e);
+        }
+        releaseVersion(previous);
+    }
+
+    // level lists are replaced, never mutated, so anyone still holding an old list sees a consistent file set
+    private void apply(VersionEdit edit){
+        List<SSTableMetadata> removed = new ArrayList<>();
+        for(VersionEdit.DeletedFile deleted : edit.getDeletedFiles()){
+            LevelMetadata meta = levels.get(deleted.getLevel());
+            if(meta == null){
+                continue;
+            }
+            List<SSTableMetadata> temp = new ArrayList<>(meta.getSstables());
+            for(SSTableMetadata s : temp){
+                if(s.getFilePath().equals(deleted.getFilePath())){
+                    meta.setTotalSize(meta.getTotalSize() - s.getFileSize());
+                    removed.add(s);
+                }
+            }
+            temp.removeIf(s -> s.getFilePath().equals(deleted.getFilePath()));
+            meta.setSstables(Collections.unmodifiableList(temp));
+        }
+        for(SSTableMetadata sstable : edit.getNewFiles()){
+            int level = sstable.getLevel();
+            LevelMetadata meta = levels.computeIfAbsent(level, l->new LevelMetadata(level));
+            List<SSTableMetadata> temp = new ArrayList<>(meta.getSstables());
+            temp.add(sstable);
+            Collections.sort(temp,Comparator.comparing(SSTableMetadata::getMinKey));
+            meta.setSstables(Collections.unmodifiableList(temp));
+            meta.setTotalSize(meta.getTotalSize() + sstable.getFileSize());
+            nextFileNumber = Math.max(nextFileNumber, sstable.getFileNumber() + 1);
+        }
+        nextFileNumber = Math.max(nextFileNumber, edit.getNextFileNumber());
+        lastSequence.accumulateAndGet(edit.getLastSequence(), Math::max);
+
+        // the same path may have been re-added under new metadata in this edit, only files gone from every level are obsolete
+        for(SSTableMetadata s : removed){
+            if(!isLive(s.getFilePath())){
+                s.markObsolete();
+            }
         }
-        meta.setTotalSize(metaSize);
-        
-        List<SSTableMetadata> temp = meta.getSstables();
-        temp.removeIf(s -> toRemove.stream().anyMatch(r -> r.getFileNumber() == s.getFileNumber()));
-        meta.setSstables(temp);
-        
-        saveManifest();
     }
 
-    public String generatePath(int level){
-        return AppConstants.BASE_DB_PATH + "/" + "sstables/L" + level + "/" + nextFileNumber +".sst";
+    private boolean isLive(String filePath){
+        for(LevelMetadata meta : levels.values()){
+            for(SSTableMetadata s : meta.getSstables()){
+                if(s.getFilePath().equals(filePath)){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // publishes a version built from the level lists and hands back the previous one, still holding the directory's
+    // reference; the previous version's files are released once that and every reader's reference is dropped
+    private Version installVersion(){
+        List<List<SSTableMetadata>> levelFiles = new ArrayList<>();
+        for(int level = 0; level < levels.size(); level++){
+            LevelMetadata meta = levels.get(level);
+            levelFiles.add(meta != null ? meta.getSstables() : new ArrayList<>());
+        }
+        Version previous = current;
+        current = new Version(levelFiles);
+        return previous;
+    }
+
+    private static void releaseVersion(Version version){
+        if(version != null){
+            version.release();
+        }
+    }
+
+    // a snapshot edit holding every live file, written as the first record of a new manifest
+    private VersionEdit snapshotEdit(){
+        VersionEdit snapshot = new VersionEdit();
+        snapshot.setSnapshot(true);
+        snapshot.setNextFileNumber(nextFileNumber);
+        snapshot.setLastSequence(lastSequence.get());
+        for(int level = 0; level < current.numLevels(); level++){
+            for(SSTableMetadata sstable : current.getFiles(level)){
+                snapshot.addFile(sstable);
+            }
+        }
+        return snapshot;
     }
 
-    public int getAndIncrementNextFileNumber(){
+    // caller holds the lock
+    private void rollOver() throws IOException {
+        ManifestLog old = manifestLog;
+        manifestLog = ManifestLog.create(dbDir, old.getManifestNumber() + 1, snapshotEdit());
+        old.close();
+        ManifestLog.deleteManifest(dbDir, old.getManifestNumber());
+        System.out.println("manifest rolled over to " + manifestLog.getManifestNumber());
+    }
+
+    public String generatePath(int level, int fileNumber){
+        return dbPath + "/" + "sstables/L" + level + "/" + fileNumber +".sst";
+    }
+
+    public synchronized int getAndIncrementNextFileNumber(){
         return nextFileNumber++;
     }
 
@@ -102,66 +238,129 @@ public class TableDirectory {
         return meta;
     }
 
-    private void saveManifest(){
-        if (lastSaveOperation != null && !lastSaveOperation.isDone()) {
-            lastSaveOperation.cancel(true);
+    public synchronized void shutdown() {
+        try{
+            manifestLog.close();
+        }catch(IOException e){
+            System.err.println("error closing manifest: " + e.getMessage());
         }
-        lastSaveOperation = manifestExecutor.submit(() -> {
-            File tempFile = new File(manifestFile.getAbsolutePath() + ".tmp");
-            try {
-                try (FileWriter writer = new FileWriter(tempFile)) {
-                    Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    }
 
-                    JsonObject manifest = new JsonObject();
-                    manifest.addProperty("nextFileNumber", nextFileNumber);
+    // replays the binary manifest named by CURRENT, or migrates a manifest.json written by older versions,
+    // then starts a new manifest from a snapshot so the log never grows across restarts
+    private void loadManifest(){
+        long startNanos = System.nanoTime();
+        for(int i = 0; i < 5;i++){
+            levels.put(i,new LevelMetadata(i));
+        }
+        try{
+            int manifestNumber = ManifestLog.currentManifestNumber(dbDir);
+            boolean migrating = false;
+            if(manifestNumber > 0){
+                for(VersionEdit edit : ManifestLog.replay(dbDir, manifestNumber)){
+                    apply(edit);
+                }
+            }else if(legacyManifestFile.exists()){
+                System.out.println("migrating " + legacyManifestFile.getName() + " to binary manifest");
+                loadLegacyManifest();
+                migrating = true;
+            }else{
+                dbDir.mkdirs();
+                System.out.println("building manifest");
+            }
+            long replayedNanos = System.nanoTime();
+            seedSequence();
+            verifyFiles();
+            installVersion();
+            long verifiedNanos = System.nanoTime();
 
-                    JsonArray levelsJson = new JsonArray();
-                    for(LevelMetadata meta : levels.values()){
-                        JsonObject levelObj = new JsonObject();
-                        levelObj.addProperty("level", meta.getLevelNumber());
-                        levelObj.addProperty("maxSize", meta.getMaxSize());
-                        levelObj.addProperty("totalSize", meta.getTotalSize());
-                        levelObj.add("sstables", gson.toJsonTree(meta.getSstables()));
-                        levelsJson.add(levelObj);
-                    }
+            manifestLog = ManifestLog.create(dbDir, manifestNumber + 1, snapshotEdit());
+            if(manifestNumber > 0){
+                ManifestLog.deleteManifest(dbDir, manifestNumber);
+            }
+            if(migrating && !legacyManifestFile.renameTo(new File(legacyManifestFile.getPath() + ".migrated"))){
+                System.err.println("failed to rename migrated " + legacyManifestFile.getName());
+            }
+            System.out.println("manifest loaded in " + (replayedNanos - startNanos) / 1_000_000 + "ms, files verified in "
+                + (verifiedNanos - replayedNanos) / 1_000_000 + "ms");
 
-                    manifest.add("levels",levelsJson);
-                    gson.toJson(manifest,writer);
-                }
+            // readers open lazily on first lookup; the levels every lookup touches first are opened in the background
+            TableCache.getInstance().warmUp(hotFiles());
+        }catch(IOException e){
+            throw new RuntimeException("Failed to load Manifest", e);
+        }
+    }
 
-                try (FileOutputStream fos = new FileOutputStream(tempFile, true)) {
-                    fos.getFD().sync();
-                }
-                if (!tempFile.renameTo(manifestFile)) {
-                    throw new IOException("failed to atomically replace manifest");
-                }
-            } catch (IOException e) {
-                System.err.println("error saving manifest: " + e.getMessage());
-                e.printStackTrace();
+    // files written before sequence numbers existed carry wall clock timestamps in the same slot, so numbering
+    // starts above every stamp already on disk and older data keeps sorting as older
+    private void seedSequence(){
+        long seed = Math.max(lastSequence.get(), 0);
+        for(LevelMetadata level : levels.values()){
+            for(SSTableMetadata sstable : level.getSstables()){
+                seed = Math.max(seed, sstable.getMaxTimestamp());
             }
-        });
+        }
+        lastSequence.accumulateAndGet(seed, Math::max);
     }
 
-    public void shutdown() {
-        manifestExecutor.shutdown();
+    public long allocateSequence(){
+        return lastSequence.incrementAndGet();
     }
 
-    private void loadManifest(){
-        if(!manifestFile.exists()){
-            for(int i = 0; i < 5;i++){
-                levels.put(i,new LevelMetadata(i));
-            }
-            System.out.println("building manifest");
-            saveManifest();
-            if (lastSaveOperation != null) {
-                try {
-                    lastSaveOperation.get(); 
-                } catch (Exception e) {
-                    throw new RuntimeException("failed to save manifest", e);
+    public long getLastSequence(){
+        return lastSequence.get();
+    }
+
+    // checks every live file exists without opening it. the stats are spread over a small pool since on network
+    // storage each one is a round trip
+    private void verifyFiles() throws IOException {
+        List<SSTableMetadata> files = new ArrayList<>();
+        for(LevelMetadata level : levels.values()){
+            files.addAll(level.getSstables());
+        }
+        if(files.isEmpty()){
+            return;
+        }
+        int threads = Math.min(files.size(), VERIFY_THREADS);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try{
+            List<Future<Boolean>> checks = new ArrayList<>(files.size());
+            for(SSTableMetadata file : files){
+                checks.add(pool.submit(() -> new File(file.getFilePath()).isFile()));
+            }
+            List<String> missing = new ArrayList<>();
+            for(int i = 0; i < files.size(); i++){
+                if(!checks.get(i).get()){
+                    missing.add(files.get(i).getFilePath());
                 }
             }
-        } 
-        try(BufferedReader reader = new BufferedReader(new FileReader(manifestFile))){
+            if(!missing.isEmpty()){
+                throw new IOException(missing.size() + " sstables listed in the manifest are missing: " + missing);
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while verifying sstables");
+        }catch(ExecutionException e){
+            throw new IOException("failed to verify sstables", e.getCause());
+        }finally{
+            pool.shutdownNow();
+        }
+    }
+
+    // l0 plus the first non-empty level below it
+    private List<SSTableMetadata> hotFiles(){
+        List<SSTableMetadata> hot = new ArrayList<>(current.getFiles(0));
+        for(int level = 1; level < current.numLevels(); level++){
+            if(!current.getFiles(level).isEmpty()){
+                hot.addAll(current.getFiles(level));
+                break;
+            }
+        }
+        return hot;
+    }
+
+    private void loadLegacyManifest() throws IOException {
+        try(BufferedReader reader = new BufferedReader(new FileReader(legacyManifestFile))){
             Gson gson = new Gson();
             JsonObject manifest = JsonParser.parseReader(reader).getAsJsonObject();
 
@@ -177,13 +376,8 @@ public class TableDirectory {
                 List<SSTableMetadata> sstables = gson.fromJson(
                     levelObj.get("sstables"), new TypeToken<List<SSTableMetadata>>() {}.getType());
 
-                levels.put(level,new LevelMetadata(level,sstables,totalSize,maxSize));
+                levels.put(level,new LevelMetadata(level,Collections.unmodifiableList(new ArrayList<>(sstables)),totalSize,maxSize));
             } 
-        } catch (IOException e){
-            throw new RuntimeException("Failed to load Manifest", e);
         }
     }
-
-
-
 }
@@ -0,0 +1,92 @@
+package org.lsmtdb.core.sstable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.lsmtdb.common.ByteArrayWrapper;
+
+// immutable snapshot of the per-level file lists. readers pin one with TableDirectory.acquireCurrent() and close it
+// when done; the directory holds one reference to the current version and drops it when a newer one is published.
+// each version also pins its files, so a file removed by an edit is only deleted once no live version lists it
+public class Version implements AutoCloseable {
+    private final List<List<SSTableMetadata>> levels;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private final L0Index l0Index;
+    private final LevelCascade cascade;
+
+    Version(List<List<SSTableMetadata>> levelFiles) {
+        List<List<SSTableMetadata>> copy = new ArrayList<>(levelFiles.size());
+        for (List<SSTableMetadata> files : levelFiles) {
+            List<SSTableMetadata> immutable = Collections.unmodifiableList(new ArrayList<>(files));
+            for (SSTableMetadata file : immutable) {
+                file.retainVersionRef();
+            }
+            copy.add(immutable);
+        }
+        this.levels = Collections.unmodifiableList(copy);
+        this.l0Index = new L0Index(getFiles(0));
+        this.cascade = new LevelCascade(levels);
+    }
+
+    public int numLevels() {
+        return levels.size();
+    }
+
+    public List<SSTableMetadata> getFiles(int level) {
+        return level < levels.size() ? levels.get(level) : Collections.emptyList();
+    }
+
+    // l0 files whose key range covers the key, newest first
+    public List<SSTableMetadata> l0FilesCovering(ByteArrayWrapper key) {
+        return l0Index.filesCovering(key);
+    }
+
+    // candidate files below l0, one per level at most, each level searched within the bounds left by the one above
+    LevelCascade.Picker filePicker(ByteArrayWrapper key) {
+        return cascade.picker(key);
+    }
+
+    // fails once the version has been freed, so a reader racing with a swap retries on the newer one
+    boolean tryRef() {
+        while (true) {
+            int current = refs.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (refs.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            for (List<SSTableMetadata> files : levels) {
+                for (SSTableMetadata file : files) {
+                    if (file.releaseVersionRef()) {
+                        deleteObsoleteFile(file);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+
+    static void deleteObsoleteFile(SSTableMetadata file) {
+        TableCache.getInstance().evict(file.getFilePath());
+        try {
+            Files.deleteIfExists(Paths.get(file.getFilePath()));
+            System.out.println("deleted obsolete sstable " + file.getFilePath());
+        } catch (IOException e) {
+            System.err.println("failed to delete sstable file: " + file.getFilePath() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.lsmtdb.core.sstable.merger;
+
+import java.io.IOException;
+import org.lsmtdb.common.ByteArrayWrapper;
+
+// sorted source of entries: next() loads the following entry and the getters expose it.
+// a null value is a point tombstone, which is also how a value past its expiry comes out
+public interface KeyValueIterator {
+    boolean hasNext();
+
+    void next() throws IOException;
+
+    ByteArrayWrapper getCurrentKey();
+
+    byte[] getCurrentValue();
+
+    long getCurrentTimestamp();
+
+    // Value.NO_EXPIRY unless the current value was written with a ttl
+    long getCurrentExpiresAt();
+
+    // true when the current value is a merge operand rather than a whole value
+    boolean isCurrentMergeOperand();
+}
@@ -0,0 +1,150 @@
+package org.lsmtdb.core.sstable.merger;
+
+import java.io.IOException;
+import java.util.List;
+import org.lsmtdb.common.ByteArrayWrapper;
+
+// k-way merge over sorted sources using a loser tree: each internal node keeps the loser of the match played there
+// and tree[0] keeps the overall winner, so advancing the winner replays a single leaf-to-root path
+// (ceil(log2 k) key comparisons) instead of the ~2 log2 k of a binary heap sift-down.
+// equal keys come out newest first (higher timestamp, then lower source index), so callers keep the first
+// occurrence of a key and skip the rest
+public class MergingIterator implements KeyValueIterator {
+    private final KeyValueIterator[] sources;
+    private final boolean[] valid;
+    private final int[] tree;
+    private final int k;
+    private int validCount;
+    private int current = -1;
+
+    public MergingIterator(List<? extends KeyValueIterator> sources) throws IOException {
+        this.k = sources.size();
+        this.sources = sources.toArray(new KeyValueIterator[0]);
+        this.valid = new boolean[k];
+        this.tree = new int[Math.max(k, 1)];
+        for (int i = 0; i < k; i++) {
+            if (this.sources[i].hasNext()) {
+                this.sources[i].next();
+                valid[i] = true;
+                validCount++;
+            }
+        }
+        if (k > 0) {
+            tree[0] = build(1);
+        }
+    }
+
+    // leaves sit at implicit positions k..2k-1, internal nodes at 1..k-1
+    private int build(int node) {
+        if (node >= k) {
+            return node - k;
+        }
+        int left = build(2 * node);
+        int right = build(2 * node + 1);
+        if (beats(left, right)) {
+            tree[node] = right;
+            return left;
+        }
+        tree[node] = left;
+        return right;
+    }
+
+    private void replay(int leaf) {
+        int winner = leaf;
+        for (int node = (leaf + k) >> 1; node > 0; node >>= 1) {
+            if (beats(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    private boolean beats(int a, int b) {
+        if (!valid[a]) {
+            return false;
+        }
+        if (!valid[b]) {
+            return true;
+        }
+        int cmp = ByteArrayWrapper.compare(sources[a].getCurrentKey().getData(), sources[b].getCurrentKey().getData());
+        if (cmp != 0) {
+            return cmp < 0;
+        }
+        long ta = sources[a].getCurrentTimestamp();
+        long tb = sources[b].getCurrentTimestamp();
+        if (ta != tb) {
+            return ta > tb;
+        }
+        return a < b;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (current < 0) {
+            return validCount > 0;
+        }
+        return validCount > 1 || sources[current].hasNext();
+    }
+
+    @Override
+    public void next() throws IOException {
+        if (current >= 0) {
+            if (sources[current].hasNext()) {
+                sources[current].next();
+            } else {
+                valid[current] = false;
+                validCount--;
+            }
+            replay(current);
+        }
+        if (k == 0 || !valid[tree[0]]) {
+            throw new IllegalStateException("no more elements");
+        }
+        current = tree[0];
+    }
+
+    // the source that produced the current entry; a caller may move it forward itself (e.g. skip a block)
+    // and the next call to next() picks up from wherever it was left
+    public KeyValueIterator getCurrentSource() {
+        return current < 0 ? null : sources[current];
+    }
+
+    // smallest key among the other sources, i.e. the best loser on the current winner's path; null when none
+    public ByteArrayWrapper peekRunnerUpKey() {
+        int best = -1;
+        for (int node = (current + k) >> 1; node > 0; node >>= 1) {
+            int candidate = tree[node];
+            if (valid[candidate] && (best < 0 || beats(candidate, best))) {
+                best = candidate;
+            }
+        }
+        return best < 0 ? null : sources[best].getCurrentKey();
+    }
+
+    @Override
+    public ByteArrayWrapper getCurrentKey() {
+        return sources[current].getCurrentKey();
+    }
+
+    @Override
+    public byte[] getCurrentValue() {
+        return sources[current].getCurrentValue();
+    }
+
+    @Override
+    public long getCurrentTimestamp() {
+        return sources[current].getCurrentTimestamp();
+    }
+
+    @Override
+    public long getCurrentExpiresAt() {
+        return sources[current].getCurrentExpiresAt();
+    }
+
+    @Override
+    public boolean isCurrentMergeOperand() {
+        return sources[current].isCurrentMergeOperand();
+    }
+}
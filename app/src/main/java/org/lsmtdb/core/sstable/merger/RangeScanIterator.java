@@ -0,0 +1,132 @@
+package org.lsmtdb.core.sstable.merger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.RangeTombstone;
+import org.lsmtdb.core.merge.MergeOperands;
+import org.lsmtdb.core.merge.MergeOperator;
+
+// live entries of a key range, merged newest first across sources: versions newer than the snapshot, older
+// versions, point tombstones and entries shadowed by a newer range tombstone are skipped. end is exclusive,
+// null for unbounded. a merge operand is folded with the older versions of its key that follow it
+public class RangeScanIterator implements Iterator<Map.Entry<ByteArrayWrapper, byte[]>>, AutoCloseable {
+    private final MergingIterator merged;
+    private final List<RangeTombstone> rangeTombstones;
+    private final ByteArrayWrapper end;
+    private final List<? extends AutoCloseable> resources;
+    private final long snapshot;
+    private final MergeOperator mergeOperator;
+    private Map.Entry<ByteArrayWrapper, byte[]> pending;
+    private ByteArrayWrapper lastKey;
+    private boolean done;
+    // the merged iterator already sits on an entry that has not been looked at, left there by a fold
+    private boolean positioned;
+
+    public RangeScanIterator(List<? extends KeyValueIterator> sources, List<RangeTombstone> rangeTombstones, ByteArrayWrapper end, List<? extends AutoCloseable> resources) throws IOException {
+        this(sources, rangeTombstones, end, resources, Long.MAX_VALUE);
+    }
+
+    public RangeScanIterator(List<? extends KeyValueIterator> sources, List<RangeTombstone> rangeTombstones, ByteArrayWrapper end, List<? extends AutoCloseable> resources, long snapshot) throws IOException {
+        this(sources, rangeTombstones, end, resources, snapshot, null);
+    }
+
+    public RangeScanIterator(List<? extends KeyValueIterator> sources, List<RangeTombstone> rangeTombstones, ByteArrayWrapper end, List<? extends AutoCloseable> resources, long snapshot,
+                             MergeOperator mergeOperator) throws IOException {
+        this.mergeOperator = mergeOperator;
+        this.merged = new MergingIterator(sources);
+        this.rangeTombstones = rangeTombstones;
+        this.end = end;
+        this.resources = resources;
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (pending == null && !done) {
+            try {
+                fetch();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return pending != null;
+    }
+
+    @Override
+    public Map.Entry<ByteArrayWrapper, byte[]> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<ByteArrayWrapper, byte[]> entry = pending;
+        pending = null;
+        return entry;
+    }
+
+    private void fetch() throws IOException {
+        while (positioned || merged.hasNext()) {
+            if (!positioned) {
+                merged.next();
+            }
+            positioned = false;
+            ByteArrayWrapper key = merged.getCurrentKey();
+            if (end != null && key.compareTo(end) >= 0) {
+                break;
+            }
+            if (merged.getCurrentTimestamp() > snapshot || (lastKey != null && key.equals(lastKey))) {
+                continue;
+            }
+            lastKey = key;
+            byte[] value = merged.getCurrentValue();
+            long coveringTimestamp = RangeTombstone.maxCoveringTimestamp(rangeTombstones, key);
+            if (value == null || coveringTimestamp > merged.getCurrentTimestamp()) {
+                continue;
+            }
+            if (merged.isCurrentMergeOperand()) {
+                value = fold(key, value, coveringTimestamp);
+            }
+            pending = new AbstractMap.SimpleImmutableEntry<>(key, value);
+            return;
+        }
+        done = true;
+    }
+
+    // consumes the key's older versions until one ends the fold, stopping on the next key if it comes first
+    private byte[] fold(ByteArrayWrapper key, byte[] operand, long coveringTimestamp) throws IOException {
+        MergeOperands operands = new MergeOperands(mergeOperator);
+        operands.add(operand, true, merged.getCurrentTimestamp(), RangeTombstone.NONE);
+        while (!operands.isComplete() && merged.hasNext()) {
+            merged.next();
+            if (!merged.getCurrentKey().equals(key)) {
+                positioned = true;
+                break;
+            }
+            if (merged.getCurrentTimestamp() <= snapshot) {
+                operands.add(merged.getCurrentValue(), merged.isCurrentMergeOperand(), merged.getCurrentTimestamp(), coveringTimestamp);
+            }
+        }
+        return operands.resolve();
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (AutoCloseable resource : resources) {
+            try {
+                resource.close();
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
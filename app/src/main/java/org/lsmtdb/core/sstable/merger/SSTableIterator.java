@@ -2,74 +2,233 @@ package org.lsmtdb.core.sstable.merger;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.Value;
+import org.lsmtdb.core.ratelimit.RateLimiter;
 import org.lsmtdb.core.sstable.SSTableReader;
 import org.lsmtdb.core.sstable.util.SSTableConstants;
 import org.lsmtdb.core.sstable.util.SSTableEntryHeader;
 
-public class SSTableIterator implements Comparable<SSTableIterator> {
+public class SSTableIterator implements KeyValueIterator {
     private final SSTableReader reader;
     private long currentOffset;
+    private long currentEntryOffset;
     private ByteArrayWrapper currentKey;
     private byte[] currentValue;
-    private boolean hasNext;
     private long currentTimestamp;
+    private long currentExpiresAt;
+    private boolean currentMergeOperand;
+    // expiry is judged once per iterator, so a merge or scan sees a value either live or expired throughout
+    private final long now = System.currentTimeMillis();
+    private final RateLimiter rateLimiter;
+    // reads are charged to the limiter a block at a time; everything before this offset has been paid for
+    private long chargedUpTo;
+    // block start offset -> first key of the block, as recorded in the sstable index
+    private final TreeMap<Long, ByteArrayWrapper> blockStarts = new TreeMap<>();
+    private final TreeMap<ByteArrayWrapper, Long> blockIndex = new TreeMap<>();
+    private final ByteArrayWrapper maxKey;
 
     public SSTableIterator(SSTableReader reader) throws IOException {
+        this(reader, null);
+    }
+
+    public SSTableIterator(SSTableReader reader, ByteArrayWrapper maxKey) throws IOException {
+        this(reader, maxKey, RateLimiter.getInstance());
+    }
+
+    // rateLimiter may be null for foreground reads (scans) that should not compete with compaction's budget
+    public SSTableIterator(SSTableReader reader, ByteArrayWrapper maxKey, RateLimiter rateLimiter) throws IOException {
         this.reader = reader;
+        this.rateLimiter = rateLimiter;
         this.currentOffset = reader.getDataOffset();
-        this.hasNext = true;
+        this.chargedUpTo = currentOffset;
+        this.maxKey = maxKey;
+        for (Map.Entry<ByteArrayWrapper, Long> entry : reader.getIndex().entrySet()) {
+            blockStarts.put(entry.getValue(), entry.getKey());
+            blockIndex.put(entry.getKey(), entry.getValue());
+        }
     }
 
+    @Override
     public boolean hasNext() {
-        return hasNext;
+        return currentOffset < reader.getIndexOffset();
     }
 
+    @Override
     public void next() throws IOException {
-        if (!hasNext) {
+        if (!hasNext()) {
             throw new IllegalStateException("no more elements");
         }
         advance();
     }
 
     private void advance() throws IOException {
-        if (currentOffset >= reader.getIndexOffset()) {
-            hasNext = false;
-            return;
-        }
-
+        currentEntryOffset = currentOffset;
         SSTableEntryHeader header = reader.readEntryHeader(currentOffset);
+        if (header == null) {
+            throw new IOException("truncated sstable entry header at offset " + currentOffset);
+        }
+        if (rateLimiter != null && currentOffset >= chargedUpTo) {
+            Long blockEnd = blockStarts.higherKey(currentOffset);
+            chargedUpTo = blockEnd != null ? blockEnd : reader.getIndexOffset();
+            rateLimiter.request(chargedUpTo - currentOffset, RateLimiter.Priority.LOW);
+        }
         currentOffset += SSTableConstants.HEADER_SIZE;
         byte[] key = reader.readBytes(currentOffset, header.keyLength);
         currentOffset += header.keyLength;
         currentKey = new ByteArrayWrapper(key);
         currentTimestamp = header.timestamp;
+        currentExpiresAt = Value.NO_EXPIRY;
+        currentMergeOperand = false;
 
-        if (header.valueLength == -1) { 
+        if (header.isTombstone()) {
             currentValue = null;
+        } else if (header.isExtended()) {
+            byte[] body = reader.readBytes(currentOffset, header.bodyLength());
+            currentOffset += header.bodyLength();
+            long meta = ByteBuffer.wrap(body).getLong();
+            if (meta == SSTableEntryHeader.MERGE_OPERAND_META) {
+                currentMergeOperand = true;
+                currentValue = Arrays.copyOfRange(body, Long.BYTES, body.length);
+                return;
+            }
+            currentExpiresAt = meta;
+            // an expired value goes on as a tombstone, so compaction drops its bytes and it still hides older versions
+            if (currentExpiresAt <= now) {
+                currentValue = null;
+                currentExpiresAt = Value.NO_EXPIRY;
+            } else {
+                currentValue = Arrays.copyOfRange(body, Long.BYTES, body.length);
+            }
         } else if (header.valueLength > 0) {
             currentValue = reader.readBytes(currentOffset, header.valueLength);
             currentOffset += header.valueLength;
         } else {
             currentValue = new byte[0];
         }
-        currentKey = new ByteArrayWrapper(key);
     }
 
+    // positions the iterator so the next call to next() reads the first entry with key >= target.
+    // jumps to the covering block through the index, then walks entry headers without reading values
+    public void seek(ByteArrayWrapper target) throws IOException {
+        Map.Entry<ByteArrayWrapper, Long> block = blockIndex.floorEntry(target);
+        long offset = block != null ? block.getValue() : reader.getDataOffset();
+        while (offset < reader.getIndexOffset()) {
+            SSTableEntryHeader header = reader.readEntryHeader(offset);
+            if (header == null) {
+                throw new IOException("truncated sstable entry header at offset " + offset);
+            }
+            byte[] key = reader.readBytes(offset + SSTableConstants.HEADER_SIZE, header.keyLength);
+            if (ByteArrayWrapper.compare(key, target.getData()) >= 0) {
+                break;
+            }
+            offset += SSTableConstants.HEADER_SIZE + header.keyLength + header.bodyLength();
+        }
+        currentOffset = offset;
+        currentKey = null;
+    }
+
+    // true when the current entry is the first entry of an indexed block
+    public boolean isAtBlockStart() {
+        return currentKey != null && blockStarts.containsKey(currentEntryOffset);
+    }
+
+    public long getCurrentBlockOffset() {
+        return currentEntryOffset;
+    }
+
+    public long getCurrentBlockEnd() {
+        Long next = blockStarts.higherKey(currentEntryOffset);
+        return next != null ? next : reader.getIndexOffset();
+    }
+
+    // exclusive upper bound for keys in the current block, or the inclusive file max key for the last block
+    public ByteArrayWrapper getCurrentBlockUpperBound() {
+        Map.Entry<Long, ByteArrayWrapper> next = blockStarts.higherEntry(currentEntryOffset);
+        return next != null ? next.getValue() : maxKey;
+    }
+
+    // walks the entry headers of the current block without reading values
+    public BlockScan scanCurrentBlock() throws IOException {
+        long end = getCurrentBlockEnd();
+        long offset = currentEntryOffset;
+        BlockScan scan = new BlockScan();
+        while (offset < end) {
+            SSTableEntryHeader header = reader.readEntryHeader(offset);
+            if (header == null) {
+                throw new IOException("truncated sstable entry header at offset " + offset);
+            }
+            ByteArrayWrapper key = new ByteArrayWrapper(reader.readBytes(offset + SSTableConstants.HEADER_SIZE, header.keyLength));
+            scan.repeatedKey |= key.equals(scan.lastKey);
+            scan.lastKey = key;
+            scan.tombstones.add(header.isTombstone());
+            offset += SSTableConstants.HEADER_SIZE + header.keyLength + header.bodyLength();
+        }
+        Map.Entry<Long, ByteArrayWrapper> next = blockStarts.higherEntry(currentEntryOffset);
+        scan.repeatedKey |= next != null && next.getValue().equals(scan.lastKey);
+        return scan;
+    }
+
+    // last key and per entry tombstone flags of a block, in file order
+    public static final class BlockScan {
+        private ByteArrayWrapper lastKey;
+        private boolean repeatedKey;
+        private final List<Boolean> tombstones = new ArrayList<>();
+
+        // true when some key has more than one version in the block, or its last key goes on into the next block
+        public boolean hasRepeatedKey() {
+            return repeatedKey;
+        }
+
+        public ByteArrayWrapper getLastKey() {
+            return lastKey;
+        }
+
+        public List<Boolean> getTombstones() {
+            return tombstones;
+        }
+    }
+
+    public boolean isLastBlock() {
+        return blockStarts.higherKey(currentEntryOffset) == null;
+    }
+
+    // positions the iterator so the next call to next() reads the first entry after the current block
+    public void skipCurrentBlock() {
+        currentOffset = getCurrentBlockEnd();
+    }
+
+    public SSTableReader getReader() {
+        return reader;
+    }
+
+    @Override
     public ByteArrayWrapper getCurrentKey() {
         return currentKey;
     }
 
+    @Override
     public byte[] getCurrentValue() {
         return currentValue;
     }
 
+    @Override
     public long getCurrentTimestamp() {
         return currentTimestamp;
     }
 
     @Override
-    public int compareTo(SSTableIterator other) {
-        return currentKey.compareTo(other.getCurrentKey());
+    public long getCurrentExpiresAt() {
+        return currentExpiresAt;
+    }
+
+    @Override
+    public boolean isCurrentMergeOperand() {
+        return currentMergeOperand;
     }
 }
@@ -1,104 +1,274 @@
 package org.lsmtdb.core.sstable.merger;
 
 import java.io.IOException;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Map;
 import org.lsmtdb.core.sstable.SSTableMetadata;
 import java.util.ArrayList;
 import org.lsmtdb.core.sstable.SSTableReader;
 import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.RangeTombstone;
+import org.lsmtdb.common.Value;
 import java.io.File;
+import org.lsmtdb.core.compaction.CompactionFilter;
+import org.lsmtdb.core.merge.MergeOperands;
+import org.lsmtdb.core.merge.MergeOperator;
 import org.lsmtdb.core.sstable.TableDirectory;
+import org.lsmtdb.core.snapshot.SnapshotList;
 
 public class SSTableMerger {
     List<SSTableMetadata> tablesToMerge;
 
-    public static List<SSTableMetadata> mergeSSTables(List<SSTableMetadata> sstablesToCompact) throws IOException {
+    // tombstones are carried into the output unless it is the bottommost level for the inputs' key range; values past
+    // their ttl come out of the iterators as tombstones and are treated the same way.
+    // of a key's versions the newest in each snapshot stripe is kept, so every live snapshot still reads what it did.
+    // compactionFilter may be null. with a filter every entry is decoded, since copied blocks would skip it.
+    // a merge operand kept for its stripe absorbs the older versions of that stripe; at the bottommost level an
+    // operand with nothing below it becomes a value. without a mergeOperator operands and everything below them
+    // are carried over as they are
+    public static List<SSTableMetadata> mergeSSTables(TableDirectory tableDir, SnapshotList snapshotList, List<SSTableMetadata> sstablesToCompact, int outputLevel, boolean bottommost,
+                                                      CompactionFilter compactionFilter, MergeOperator mergeOperator) throws IOException {
         //prepare iterators for each sstable
-        PriorityQueue<SSTableIterator> heap = new PriorityQueue<>();
-        ByteArrayWrapper minKey = null;
-        ByteArrayWrapper maxKey = null;
-        
-        for(SSTableMetadata metadata : sstablesToCompact){
-            try{
-                SSTableReader reader = new SSTableReader(metadata.getFilePath());
-                SSTableIterator iterator = new SSTableIterator(reader);
-                heap.add(iterator);
-            }catch(IOException e){
-                throw new RuntimeException("Error creating SSTableIterator for " + metadata.getFilePath(), e);
-            }
-        }
+        List<SSTableIterator> iterators = new ArrayList<>();
+        Map<KeyValueIterator, SSTableMetadata> passthroughAllowed = new IdentityHashMap<>();
+        List<RangeTombstone> rangeTombstones = new ArrayList<>();
+        List<SSTableReader> readers = new ArrayList<>();
+        KeyBounds bounds = new KeyBounds();
+        long passthroughBlocks = 0;
+        long foldedVersions = 0;
+        long[] snapshots = snapshotList.liveSequences();
+        long now = System.currentTimeMillis();
+        CompactionFilter.Context filterContext = compactionFilter != null ? new CompactionFilter.Context(outputLevel, bottommost) : null;
 
-        int nextLevel = sstablesToCompact.get(0).getLevel() + 1;
+        try {
+            for(SSTableMetadata metadata : sstablesToCompact){
+                try{
+                    SSTableReader reader = new SSTableReader(metadata.getFilePath());
+                    readers.add(reader);
+                    SSTableIterator iterator = new SSTableIterator(reader, metadata.getMaxKey());
+                    rangeTombstones.addAll(reader.getRangeTombstones());
+                    // blocks holding expired values are decoded, so those values go out as tombstones or not at all
+                    if(metadata.getEntryCount() > 0 && metadata.getTombstoneCount() == 0 && metadata.getMaxTimestamp() > 0 && metadata.getMinExpiry() > now && compactionFilter == null){
+                        passthroughAllowed.put(iterator, metadata);
+                    }
+                    iterators.add(iterator);
+                }catch(IOException e){
+                    throw new RuntimeException("Error creating SSTableIterator for " + metadata.getFilePath(), e);
+                }
+            }
 
-        TableDirectory tableDir = TableDirectory.getInstance();
-        String mergedFilePath = tableDir.generatePath(nextLevel);
-        int fileNumber = tableDir.getAndIncrementNextFileNumber();
-        String tempMergedFilePath = mergedFilePath + ".tmp";
-        System.out.println("[merger] creating temp merged file: " + tempMergedFilePath);
-        java.nio.file.Path tempPath = java.nio.file.Paths.get(tempMergedFilePath);
-        java.nio.file.Path finalPath = java.nio.file.Paths.get(mergedFilePath);
-        
-        try (SSTableStreamWriter writer = new SSTableStreamWriter(tempMergedFilePath)) {
+            int fileNumber = tableDir.getAndIncrementNextFileNumber();
+            String mergedFilePath = tableDir.generatePath(outputLevel, fileNumber);
+            String tempMergedFilePath = mergedFilePath + ".tmp";
+            System.out.println("[merger] creating temp merged file: " + tempMergedFilePath);
+            java.nio.file.Path tempPath = java.nio.file.Paths.get(tempMergedFilePath);
+            java.nio.file.Path finalPath = java.nio.file.Paths.get(mergedFilePath);
 
-            while(!heap.isEmpty()){
-                SSTableIterator it = heap.poll();
+            SSTableStreamWriter writer = new SSTableStreamWriter(tempMergedFilePath);
+            try (writer) {
 
-                ByteArrayWrapper key = it.getCurrentKey();
-                byte[] value = it.getCurrentValue();
-                long timestamp = it.getCurrentTimestamp();
+                MergingIterator merged = new MergingIterator(iterators);
+                ByteArrayWrapper lastKey = null;
+                int lastKeptStripe = -1;
+                // the operand kept for lastKey's current stripe, written once the versions it absorbs are known
+                MergeOperands pending = null;
+                long pendingTimestamp = 0;
+                long pendingCovering = RangeTombstone.NONE;
+                boolean pendingNewest = false;
+                while(merged.hasNext()){
+                    merged.next();
+                    ByteArrayWrapper key = merged.getCurrentKey();
+                    long timestamp = merged.getCurrentTimestamp();
+                    int stripe = SnapshotList.stripe(snapshots, timestamp);
+                    // equal keys arrive newest first, so anything matching the last key is an older version and only
+                    // survives when some snapshot sees it instead of the one already kept
+                    boolean olderVersion = lastKey != null && key.equals(lastKey);
+                    if(olderVersion && stripe == lastKeptStripe){
+                        if(pending != null && !pending.isComplete()){
+                            pending.add(merged.getCurrentValue(), merged.isCurrentMergeOperand(), timestamp, merged.getCurrentExpiresAt(), pendingCovering);
+                            foldedVersions++;
+                        }
+                        continue;
+                    }
+                    if(pending != null){
+                        // with the key over at the bottom there is nothing left for the operands to land on
+                        writePending(writer, bounds, lastKey, pendingTimestamp, pending, bottommost && !olderVersion, bottommost && lastKeptStripe == 0,
+                            compactionFilter, pendingNewest ? filterContext : null);
+                        pending = null;
+                    }
 
-                while(!heap.isEmpty() && heap.peek().getCurrentKey().equals(key)){
-                    SSTableIterator next = heap.poll();
+                    KeyValueIterator source = merged.getCurrentSource();
+                    SSTableMetadata passthroughSource = passthroughAllowed.get(source);
+                    if(!olderVersion && passthroughSource != null && canPassThrough((SSTableIterator) source, merged.peekRunnerUpKey(), rangeTombstones)){
+                        SSTableIterator it = (SSTableIterator) source;
+                        SSTableIterator.BlockScan block = it.scanCurrentBlock();
+                        // versions of one key may have lost the snapshot that kept them apart, so such a block is decoded
+                        if(!block.hasRepeatedKey()){
+                            long blockOffset = it.getCurrentBlockOffset();
+                            writer.copyBlock(it.getReader().getChannel(), blockOffset, it.getCurrentBlockEnd() - blockOffset, key.getData(), block.getTombstones(),
+                                passthroughSource.getMinTimestamp(), passthroughSource.getMaxTimestamp(), passthroughSource.getMinExpiry(), passthroughSource.getMaxExpiry());
+                            passthroughBlocks++;
+                            bounds.include(key, block.getLastKey());
 
-                    if(next.getCurrentTimestamp() > timestamp){
-                        value = next.getCurrentValue();
-                        timestamp = next.getCurrentTimestamp();
+                            it.skipCurrentBlock();
+                            lastKey = null;
+                            continue;
+                        }
                     }
 
-                    if(next.hasNext()){
-                        heap.add(next);
+                    byte[] value = merged.getCurrentValue();
+                    long expiresAt = merged.getCurrentExpiresAt();
+                    boolean mergeOperand = merged.isCurrentMergeOperand();
+                    lastKey = key;
+                    lastKeptStripe = stripe;
+
+                    // a range tombstone only hides the entry from readers that also see the tombstone
+                    long stripeEnd = stripe < snapshots.length ? snapshots[stripe] : Long.MAX_VALUE;
+                    long covering = RangeTombstone.maxCoveringTimestamp(rangeTombstones, key, stripeEnd);
+                    boolean shadowed = covering > timestamp;
+                    if(mergeOperand && !shadowed){
+                        if(mergeOperator == null){
+                            // nothing can fold the operand, so the versions below it have to stay as well
+                            lastKeptStripe = -1;
+                        }else{
+                            pending = new MergeOperands(mergeOperator);
+                            pending.add(value, true, timestamp, RangeTombstone.NONE);
+                            pendingTimestamp = timestamp;
+                            pendingCovering = covering;
+                            pendingNewest = stripe == snapshots.length;
+                            continue;
+                        }
+                    }
+                    // only the newest stripe is filtered, no snapshot reads it
+                    if(filterContext != null && value != null && !mergeOperand && !shadowed && stripe == snapshots.length){
+                        value = filter(compactionFilter, filterContext, key, value);
+                        if(value == null){
+                            expiresAt = Value.NO_EXPIRY;
+                        }
                     }
+                    // a bottommost tombstone can go once no snapshot predates it, older versions then fall in its stripe
+                    boolean droppable = value == null && bottommost && stripe == 0;
+                    if(!shadowed && !droppable){
+                        writer.writeEntry(key.getData(), value, timestamp, expiresAt, mergeOperand);
+                        bounds.include(key, key);
+                    }
+                }
+                if(pending != null){
+                    writePending(writer, bounds, lastKey, pendingTimestamp, pending, bottommost, bottommost && lastKeptStripe == 0,
+                        compactionFilter, pendingNewest ? filterContext : null);
                 }
 
-                if(value != null){
-                    writer.writeEntry(key.getData(), value, timestamp);
-                    
-                    if (minKey == null || key.compareTo(minKey) < 0) {
-                        minKey = key;
-                    }
-                    if (maxKey == null || key.compareTo(maxKey) > 0) {
-                        maxKey = key;
+                // range tombstones have to outlive the merge unless nothing older can sit below the output and no
+                // snapshot predates them
+                for(RangeTombstone tombstone : rangeTombstones){
+                    if(!bottommost || SnapshotList.stripe(snapshots, tombstone.getTimestamp()) > 0){
+                        writer.addRangeTombstone(tombstone);
+                        bounds.include(tombstone.getStart(), tombstone.getEnd());
                     }
                 }
 
-                if(it.hasNext()){
-                    heap.add(it);
+                if(filterContext != null){
+                    System.out.println("[merger] compaction filter at level " + outputLevel + ": kept=" + filterContext.getKeptCount()
+                        + ", removed=" + filterContext.getRemovedCount() + ", changed=" + filterContext.getChangedCount());
+                }
+
+                if(bounds.min == null) {
+                    writer.close();
+                    java.nio.file.Files.deleteIfExists(tempPath);
+                    return new ArrayList<>();
                 }
+
+                writer.finish();
+                System.out.println("[merger] finished writing temp merged file: " + tempMergedFilePath + ", passthroughBlocks=" + passthroughBlocks + ", foldedVersions=" + foldedVersions);
             }
-            
-            if(minKey == null || maxKey == null) {
-                return new ArrayList<>();
+            // atomic rename
+            java.nio.file.Files.move(tempPath, finalPath, java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("[merger] atomically moved temp file to final merged file: " + mergedFilePath);
+            File mergedFile = new File(mergedFilePath);
+            SSTableMetadata mergedMetadata = tableDir.allocateNewSSTable(
+                outputLevel,
+                bounds.min,
+                bounds.max,
+                mergedFile.length(),
+                mergedFilePath,
+                fileNumber
+            );
+            writer.applyStatsTo(mergedMetadata);
+            System.out.println("[merger] created SSTableMetadata for merged file: " + mergedFilePath + ", size=" + mergedFile.length() + ", tombstones=" + mergedMetadata.getTombstoneCount() + ", rangeTombstones=" + mergedMetadata.getRangeTombstoneCount());
+            List<SSTableMetadata> result = new ArrayList<>();
+            result.add(mergedMetadata);
+            return result;
+        } finally {
+            for (SSTableReader reader : readers) {
+                reader.close();
             }
+        }
+    }
 
-            writer.finish();
-            System.out.println("[merger] finished writing temp merged file: " + tempMergedFilePath);
+    // writes the operand kept for a key's stripe: as a value once it has landed on one, or when nothing is left below
+    // it at the bottommost level, otherwise as a single operand standing for every one it absorbed
+    private static void writePending(SSTableStreamWriter writer, KeyBounds bounds, ByteArrayWrapper key, long timestamp, MergeOperands pending, boolean nothingBelow,
+                                     boolean dropTombstone, CompactionFilter compactionFilter, CompactionFilter.Context filterContext) throws IOException {
+        boolean resolved = pending.isComplete() || nothingBelow;
+        byte[] value = resolved ? pending.resolve() : pending.combine();
+        long expiresAt = resolved ? pending.getBaseExpiresAt() : Value.NO_EXPIRY;
+        if(resolved && filterContext != null){
+            value = filter(compactionFilter, filterContext, key, value);
+            if(value == null){
+                if(dropTombstone){
+                    return;
+                }
+                expiresAt = Value.NO_EXPIRY;
+            }
+        }
+        writer.writeEntry(key.getData(), value, timestamp, expiresAt, !resolved);
+        bounds.include(key, key);
+    }
+
+    // the value to write after the filter has seen it, null when the filter removes it
+    private static byte[] filter(CompactionFilter compactionFilter, CompactionFilter.Context filterContext, ByteArrayWrapper key, byte[] value){
+        CompactionFilter.Decision decision = compactionFilter.filter(filterContext, key.getData(), value);
+        filterContext.record(decision);
+        if(decision.isRemove()){
+            return null;
+        }
+        return decision.getNewValue() != null ? decision.getNewValue() : value;
+    }
+
+    // smallest and largest key written to the output
+    private static final class KeyBounds {
+        ByteArrayWrapper min;
+        ByteArrayWrapper max;
+
+        void include(ByteArrayWrapper low, ByteArrayWrapper high){
+            if (min == null || low.compareTo(min) < 0) {
+                min = low;
+            }
+            if (max == null || high.compareTo(max) > 0) {
+                max = high;
+            }
+        }
+    }
+
+    // a whole block can be copied verbatim when no other input has a key at or below the block's last key
+    private static boolean canPassThrough(SSTableIterator it, ByteArrayWrapper runnerUpKey, List<RangeTombstone> rangeTombstones){
+        if(!it.isAtBlockStart()){
+            return false;
+        }
+        ByteArrayWrapper upperBound = it.getCurrentBlockUpperBound();
+        if(upperBound == null){
+            return false;
+        }
+        for(RangeTombstone tombstone : rangeTombstones){
+            if(tombstone.overlaps(it.getCurrentKey(), upperBound)){
+                return false;
+            }
+        }
+        if(runnerUpKey == null){
+            return true;
         }
-        // atomic rename
-        java.nio.file.Files.move(tempPath, finalPath, java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
-        System.out.println("[merger] atomically moved temp file to final merged file: " + mergedFilePath);
-        File mergedFile = new File(mergedFilePath);
-        SSTableMetadata mergedMetadata = tableDir.allocateNewSSTable(
-            nextLevel,
-            minKey,
-            maxKey,
-            mergedFile.length(),
-            mergedFilePath,
-            fileNumber
-        );
-        System.out.println("[merger] created SSTableMetadata for merged file: " + mergedFilePath + ", size=" + mergedFile.length());
-        List<SSTableMetadata> result = new ArrayList<>();
-        result.add(mergedMetadata);
-        return result;
+        int cmp = upperBound.compareTo(runnerUpKey);
+        return it.isLastBlock() ? cmp < 0 : cmp <= 0;
     }
 }
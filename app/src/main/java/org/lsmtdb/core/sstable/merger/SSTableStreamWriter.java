@@ -8,11 +8,18 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import org.lsmtdb.common.RangeTombstone;
+import org.lsmtdb.common.Value;
+import org.lsmtdb.core.ratelimit.RateLimiter;
+import org.lsmtdb.core.sstable.SSTableMetadata;
 import org.lsmtdb.core.sstable.SSTableWriter;
+import org.lsmtdb.core.sstable.util.DeletionStatsCollector;
 import org.lsmtdb.core.sstable.util.SSTableConstants;
 import org.lsmtdb.core.sstable.util.SSTableEntryHeader;
 import org.lsmtdb.core.sstable.util.SSTableIndexUtils;
+import org.lsmtdb.core.sstable.util.SSTableRangeTombstoneUtils;
 import org.lsmtdb.core.sstable.util.SSTableFooterUtils;
 
 public class SSTableStreamWriter implements AutoCloseable {
@@ -23,9 +30,24 @@ public class SSTableStreamWriter implements AutoCloseable {
     private final ByteBuffer buffer;
     private long currentOffset;
     private final List<SSTableWriter.IndexEntry> index;
+    private int entriesInBlock;
+    private byte[] lastKeyInBlock;
+    private final DeletionStatsCollector deletionStats = new DeletionStatsCollector();
+    private final List<RangeTombstone> rangeTombstones = new ArrayList<>();
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+    // over live values only, see SSTableMetadata
+    private long minExpiry = Value.NO_EXPIRY;
+    private long maxExpiry = Long.MIN_VALUE;
     private boolean isClosed;
+    private final RateLimiter rateLimiter;
+    private final RateLimiter.Priority priority;
 
     public SSTableStreamWriter(String filepath) throws IOException {
+        this(filepath, RateLimiter.Priority.LOW);
+    }
+
+    public SSTableStreamWriter(String filepath, RateLimiter.Priority priority) throws IOException {
         Path path = Paths.get(filepath);
         Path parent = path.getParent();
         if (parent != null && !Files.exists(parent)) {
@@ -41,38 +63,115 @@ public class SSTableStreamWriter implements AutoCloseable {
         this.currentOffset = 0;
         this.index = new ArrayList<>();
         this.isClosed = false;
+        this.rateLimiter = RateLimiter.getInstance();
+        this.priority = priority;
     }
 
     public void writeEntry(byte[] key, byte[] value, long timestamp) throws IOException {
+        writeEntry(key, value, timestamp, Value.NO_EXPIRY);
+    }
+
+    // value is null for a tombstone, expiresAt is Value.NO_EXPIRY for a value without a ttl
+    public void writeEntry(byte[] key, byte[] value, long timestamp, long expiresAt) throws IOException {
+        writeEntry(key, value, timestamp, expiresAt, false);
+    }
+
+    public void writeEntry(byte[] key, byte[] value, long timestamp, long expiresAt, boolean mergeOperand) throws IOException {
         if (isClosed) throw new IllegalStateException("writer is already closed");
         long entryOffset = currentOffset + buffer.position();
         // System.out.println("[stream-writer] writing entry at offset: " + entryOffset + ", key.length=" + key.length + ", value.length=" + (value == null ? -1 : value.length));
-        writeEntryToBuffer(key, value, timestamp, entryOffset);
+        writeEntryToBuffer(key, value, timestamp, expiresAt, mergeOperand, entryOffset);
+        trackTimestamps(timestamp, timestamp);
+        if (value != null) {
+            trackExpiry(expiresAt, expiresAt);
+        }
         if (buffer.remaining() < SSTableConstants.HEADER_SIZE) {
             flushBuffer();
         }
     }
 
-    private void writeEntryToBuffer(byte[] key, byte[] value, long timestamp, long entryOffset) throws IOException {
-        int keyLength = key.length;
-        int valueLength = value != null ? value.length : -1;
-        int entrySize = SSTableConstants.HEADER_SIZE + keyLength + (valueLength > 0 ? valueLength : 0);
+    private void writeEntryToBuffer(byte[] key, byte[] value, long timestamp, long expiresAt, boolean mergeOperand, long entryOffset) throws IOException {
+        int entrySize = SSTableEntryHeader.entrySize(key, value, expiresAt, mergeOperand);
 
         if (buffer.remaining() < entrySize) {
             flushBuffer();
         }
 
-        if (shouldAddIndexEntry()) {
+        if (shouldAddIndexEntry(key)) {
             index.add(new SSTableWriter.IndexEntry(key, entryOffset));
         }
 
-        SSTableEntryHeader.writeTo(buffer, keyLength, valueLength, timestamp);
-        buffer.put(key);
-        if (value != null) buffer.put(value);
+        SSTableEntryHeader.writeEntry(buffer, key, value, timestamp, expiresAt, mergeOperand);
+        deletionStats.add(value == null);
+    }
+
+    // a block only starts on a new key, so every version of a key sits in the block the index points lookups at
+    private boolean shouldAddIndexEntry(byte[] key) {
+        if (entriesInBlock >= INDEX_ENTRY_INTERVAL && !Arrays.equals(key, lastKeyInBlock)) {
+            entriesInBlock = 0;
+        }
+        boolean blockStart = entriesInBlock == 0;
+        entriesInBlock++;
+        lastKeyInBlock = key;
+        return blockStart;
+    }
+
+    // copies a run of already encoded entries verbatim; the copied run becomes its own block in the output index
+    // copied blocks come from tombstone-free inputs, so they count as a full window of live entries. the source
+    // file's bounds stand in for the block's own timestamps and expiries
+    public void copyBlock(FileChannel source, long offset, long length, byte[] firstKey, List<Boolean> entryTombstones, long sourceMinTimestamp,
+                          long sourceMaxTimestamp, long sourceMinExpiry, long sourceMaxExpiry) throws IOException {
+        if (isClosed) throw new IllegalStateException("writer is already closed");
+        flushBuffer();
+        index.add(new SSTableWriter.IndexEntry(firstKey, currentOffset));
+        // the next written entry opens a fresh block
+        entriesInBlock = INDEX_ENTRY_INTERVAL;
+        lastKeyInBlock = null;
+        rateLimiter.request(length, priority);
+        channel.position(currentOffset);
+        long copied = 0;
+        while (copied < length) {
+            long transferred = source.transferTo(offset + copied, length - copied, channel);
+            if (transferred <= 0) {
+                throw new IOException("short transfer while copying block at offset " + (offset + copied));
+            }
+            copied += transferred;
+        }
+        currentOffset += length;
+        for (boolean tombstone : entryTombstones) {
+            deletionStats.add(tombstone);
+        }
+        trackTimestamps(sourceMinTimestamp, sourceMaxTimestamp);
+        trackExpiry(sourceMinExpiry, sourceMaxExpiry);
+    }
+
+    public void addRangeTombstone(RangeTombstone tombstone) {
+        if (isClosed) throw new IllegalStateException("writer is already closed");
+        rangeTombstones.add(tombstone);
+        trackTimestamps(tombstone.getTimestamp(), tombstone.getTimestamp());
+    }
+
+    private void trackTimestamps(long min, long max) {
+        minTimestamp = Math.min(minTimestamp, min);
+        maxTimestamp = Math.max(maxTimestamp, max);
+    }
+
+    private void trackExpiry(long min, long max) {
+        minExpiry = Math.min(minExpiry, min);
+        maxExpiry = Math.max(maxExpiry, max);
+    }
+
+    public void applyStatsTo(SSTableMetadata metadata) {
+        metadata.setDeletionStats(deletionStats);
+        if (minTimestamp <= maxTimestamp) {
+            metadata.setTimestampRange(minTimestamp, maxTimestamp);
+        }
+        metadata.setRangeTombstoneCount(rangeTombstones.size());
+        metadata.setExpiryRange(minExpiry, maxExpiry);
     }
 
-    private boolean shouldAddIndexEntry() {
-        return index.isEmpty() || index.size() % INDEX_ENTRY_INTERVAL == 0;
+    public DeletionStatsCollector getDeletionStats() {
+        return deletionStats;
     }
 
     public void finish() throws IOException {
@@ -83,6 +182,9 @@ public class SSTableStreamWriter implements AutoCloseable {
         long indexOffset = currentOffset;
         System.out.println("[stream-writer] writing index at offset: " + indexOffset);
         writeIndex();
+        if (!rangeTombstones.isEmpty()) {
+            writeRangeTombstones();
+        }
         long footerOffset = channel.position();
         System.out.println("[stream-writer] writing footer at offset: " + footerOffset + ", indexOffset=" + indexOffset + ", dataOffset=0");
         writeFooter(indexOffset, 0);
@@ -94,6 +196,7 @@ public class SSTableStreamWriter implements AutoCloseable {
         if (buffer.position() == 0) return;
         System.out.println("[stream-writer] flushing buffer at file offset: " + currentOffset + ", buffer size: " + buffer.position());
         buffer.flip();
+        rateLimiter.request(buffer.remaining(), priority);
         while (buffer.hasRemaining()) {
             int written =channel.write(buffer, currentOffset);
             currentOffset += written;
@@ -107,6 +210,7 @@ public class SSTableStreamWriter implements AutoCloseable {
         ByteBuffer indexBuffer = ByteBuffer.allocate(indexSize);
         SSTableIndexUtils.writeIndex(indexBuffer, index);
         indexBuffer.flip();
+        rateLimiter.request(indexBuffer.remaining(), priority);
 
         while (indexBuffer.hasRemaining()) {
             int written = channel.write(indexBuffer, currentOffset);
@@ -114,6 +218,18 @@ public class SSTableStreamWriter implements AutoCloseable {
         }
     }
 
+    private void writeRangeTombstones() throws IOException {
+        ByteBuffer tombstoneBuffer = ByteBuffer.allocate(SSTableRangeTombstoneUtils.calculateSize(rangeTombstones));
+        SSTableRangeTombstoneUtils.writeBlock(tombstoneBuffer, rangeTombstones);
+        tombstoneBuffer.flip();
+        rateLimiter.request(tombstoneBuffer.remaining(), priority);
+
+        while (tombstoneBuffer.hasRemaining()) {
+            int written = channel.write(tombstoneBuffer, currentOffset);
+            currentOffset += written;
+        }
+    }
+
     private int calculateIndexSize() {
         int size = Integer.BYTES;
         for (SSTableWriter.IndexEntry idx : index) {
@@ -126,6 +242,7 @@ public class SSTableStreamWriter implements AutoCloseable {
         ByteBuffer footerBuffer = ByteBuffer.allocate(SSTableConstants.FOOTER_SIZE);
         SSTableFooterUtils.writeFooter(footerBuffer, indexOffset, dataOffset);
         footerBuffer.flip();
+        rateLimiter.request(footerBuffer.remaining(), priority);
 
         while (footerBuffer.hasRemaining()) {
             int written = channel.write(footerBuffer, currentOffset);
@@ -0,0 +1,40 @@
+package org.lsmtdb.core.sstable.util;
+
+public class DeletionStatsCollector {
+    public static final int WINDOW_SIZE = 128;
+
+    private final boolean[] window = new boolean[WINDOW_SIZE];
+    private int windowPos;
+    private int windowFill;
+    private int windowTombstones;
+    private int maxWindowTombstones;
+    private long entryCount;
+    private long tombstoneCount;
+
+    public void add(boolean tombstone) {
+        if (windowFill == WINDOW_SIZE && window[windowPos]) {
+            windowTombstones--;
+        }
+        window[windowPos] = tombstone;
+        windowPos = (windowPos + 1) % WINDOW_SIZE;
+        windowFill = Math.min(WINDOW_SIZE, windowFill + 1);
+        if (tombstone) {
+            windowTombstones++;
+            tombstoneCount++;
+        }
+        entryCount++;
+        maxWindowTombstones = Math.max(maxWindowTombstones, windowTombstones);
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    public long getTombstoneCount() {
+        return tombstoneCount;
+    }
+
+    public int getMaxWindowTombstones() {
+        return maxWindowTombstones;
+    }
+}
@@ -3,5 +3,10 @@ package org.lsmtdb.core.sstable.util;
 public class SSTableConstants {
     public static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES;
     public static final int FOOTER_SIZE = Long.BYTES * 3;
-    public static final long FOOTER_MAGIC = 0xFACEDBEECAFEBEEFL;
+    // the footer magic carries the format version. version 1 files sort keys as signed bytes, version 2 as unsigned
+    // bytes; the orders only disagree for bytes >= 0x80, so a version 1 file is read as is unless a key holds one
+    public static final int FORMAT_VERSION = 2;
+    public static final int SIGNED_ORDER_FORMAT_VERSION = 1;
+    public static final long FOOTER_MAGIC = 0xFACEDBEECAFEB002L;
+    public static final long SIGNED_ORDER_FOOTER_MAGIC = 0xFACEDBEECAFEBEEFL;
 } 
\ No newline at end of file
@@ -1,8 +1,16 @@
 package org.lsmtdb.core.sstable.util;
 
 import java.nio.ByteBuffer;
+import org.lsmtdb.common.Value;
 
 public class SSTableEntryHeader {
+    public static final int TOMBSTONE_LENGTH = -1;
+    // an extended entry is stored as [long meta][value] after the key, its length slot holding EXTENDED_BASE
+    // minus the length of both. meta is the expiry of a value written with a ttl, or MERGE_OPERAND_META
+    private static final int EXTENDED_BASE = -2;
+    // expiry times are wall clock millis and never negative
+    public static final long MERGE_OPERAND_META = -1L;
+
     public final int keyLength;
     public final int valueLength;
     public final long timestamp;
@@ -25,4 +33,52 @@ public class SSTableEntryHeader {
         buffer.putInt(valueLength);
         buffer.putLong(timestamp);
     }
-} 
\ No newline at end of file
+
+    public boolean isTombstone() {
+        return valueLength == TOMBSTONE_LENGTH;
+    }
+
+    public boolean isExtended() {
+        return isExtended(valueLength);
+    }
+
+    // bytes stored after the key
+    public int bodyLength() {
+        return bodyLength(valueLength);
+    }
+
+    public static boolean isExtended(int valueLength) {
+        return valueLength <= EXTENDED_BASE;
+    }
+
+    public static int bodyLength(int valueLength) {
+        if (valueLength >= 0) {
+            return valueLength;
+        }
+        return valueLength == TOMBSTONE_LENGTH ? 0 : EXTENDED_BASE - valueLength;
+    }
+
+    // value is null for a tombstone
+    public static int encodeValueLength(byte[] value, long expiresAt, boolean mergeOperand) {
+        if (value == null) {
+            return TOMBSTONE_LENGTH;
+        }
+        return expiresAt == Value.NO_EXPIRY && !mergeOperand ? value.length : EXTENDED_BASE - (Long.BYTES + value.length);
+    }
+
+    public static int entrySize(byte[] key, byte[] value, long expiresAt, boolean mergeOperand) {
+        return SSTableConstants.HEADER_SIZE + key.length + bodyLength(encodeValueLength(value, expiresAt, mergeOperand));
+    }
+
+    public static void writeEntry(ByteBuffer buffer, byte[] key, byte[] value, long timestamp, long expiresAt, boolean mergeOperand) {
+        int valueLength = encodeValueLength(value, expiresAt, mergeOperand);
+        writeTo(buffer, key.length, valueLength, timestamp);
+        buffer.put(key);
+        if (isExtended(valueLength)) {
+            buffer.putLong(mergeOperand ? MERGE_OPERAND_META : expiresAt);
+        }
+        if (value != null) {
+            buffer.put(value);
+        }
+    }
+}
@@ -30,18 +30,23 @@ public class SSTableFooterUtils {
         buffer.position(posAfter);
         System.out.println("reading footer: indexOffset=" + indexOffset + ", dataOffset=" + dataOffset + ", magic=" + magic);
         System.out.println("footer bytes read: " + java.util.Arrays.toString(footerBytes));
+        if (magic == SSTableConstants.SIGNED_ORDER_FOOTER_MAGIC) {
+            return new FooterData(indexOffset, dataOffset, SSTableConstants.SIGNED_ORDER_FORMAT_VERSION);
+        }
         if (magic != SSTableConstants.FOOTER_MAGIC) {
             throw new IllegalArgumentException("invalid sstable file: footer magic mismatch " + magic + " != " + SSTableConstants.FOOTER_MAGIC);
         }
-        return new FooterData(indexOffset, dataOffset);
+        return new FooterData(indexOffset, dataOffset, SSTableConstants.FORMAT_VERSION);
     }
 
     public static class FooterData {
         public final long indexOffset;
         public final long dataOffset;
-        public FooterData(long indexOffset, long dataOffset) {
+        public final int formatVersion;
+        public FooterData(long indexOffset, long dataOffset, int formatVersion) {
             this.indexOffset = indexOffset;
             this.dataOffset = dataOffset;
+            this.formatVersion = formatVersion;
         }
     }
 } 
\ No newline at end of file
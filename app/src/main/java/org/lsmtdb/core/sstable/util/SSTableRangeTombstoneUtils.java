@@ -0,0 +1,45 @@
+package org.lsmtdb.core.sstable.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.RangeTombstone;
+
+// range tombstones live in a meta block between the index and the footer:
+// [int count] then per tombstone [int startLen][start][int endLen][end][long timestamp]
+public class SSTableRangeTombstoneUtils {
+
+    public static int calculateSize(List<RangeTombstone> tombstones) {
+        int size = Integer.BYTES;
+        for (RangeTombstone tombstone : tombstones) {
+            size += Integer.BYTES + tombstone.getStart().getData().length + Integer.BYTES + tombstone.getEnd().getData().length + Long.BYTES;
+        }
+        return size;
+    }
+
+    public static void writeBlock(ByteBuffer buffer, List<RangeTombstone> tombstones) {
+        buffer.putInt(tombstones.size());
+        for (RangeTombstone tombstone : tombstones) {
+            buffer.putInt(tombstone.getStart().getData().length);
+            buffer.put(tombstone.getStart().getData());
+            buffer.putInt(tombstone.getEnd().getData().length);
+            buffer.put(tombstone.getEnd().getData());
+            buffer.putLong(tombstone.getTimestamp());
+        }
+    }
+
+    public static List<RangeTombstone> readBlock(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        List<RangeTombstone> tombstones = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] start = new byte[buffer.getInt()];
+            buffer.get(start);
+            byte[] end = new byte[buffer.getInt()];
+            buffer.get(end);
+            long timestamp = buffer.getLong();
+            tombstones.add(new RangeTombstone(new ByteArrayWrapper(start), new ByteArrayWrapper(end), timestamp));
+        }
+        return tombstones;
+    }
+}
@@ -35,6 +35,12 @@ public class WALReader implements Closeable {
       buffer.flip();
       while (buffer.hasRemaining()) {
         try {
+          if (buffer.remaining() >= Integer.BYTES && buffer.getInt(buffer.position()) == WalEntry.BATCH_MARKER) {
+            if (!readBatch(buffer, entries)) {
+              break;
+            }
+            continue;
+          }
           WalEntry entry = WalEntry.deserialize(buffer);
           entries.add(entry);
         } catch (BufferUnderflowException e) {
@@ -47,6 +53,27 @@ public class WALReader implements Closeable {
     }
   }
 
+  // a batch torn by a crash is dropped whole; returns false when it was
+  private boolean readBatch(ByteBuffer buffer, List<WalEntry> entries) {
+    if (buffer.remaining() < WalEntry.BATCH_HEADER_LENGTH) {
+      return false;
+    }
+    buffer.getInt();
+    int count = buffer.getInt();
+    int bytes = buffer.getInt();
+    if (bytes < 0 || buffer.remaining() < bytes) {
+      return false;
+    }
+    ByteBuffer batch = buffer.slice(buffer.position(), bytes);
+    buffer.position(buffer.position() + bytes);
+    List<WalEntry> batchEntries = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      batchEntries.add(WalEntry.deserialize(batch));
+    }
+    entries.addAll(batchEntries);
+    return true;
+  }
+
   @Override
   public void close() throws IOException {
     channel.close();
@@ -7,6 +7,7 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.Files;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class WALWriter implements Closeable {
@@ -15,6 +16,8 @@ public class WALWriter implements Closeable {
   private final ReentrantLock lock = new ReentrantLock();
   private final int batchSize;
   private int currentBatchCount = 0;
+  // bytes appended since the last clear, tracked here so callers can check it on every write without a stat
+  private volatile long size;
 
   public WALWriter(Path walPath, int batchSize) throws IOException {
     Path parent = walPath.getParent();
@@ -30,18 +33,19 @@ public class WALWriter implements Closeable {
         FileChannel.open(
             walPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
     this.batchSize = batchSize;
+    this.size = channel.size();
   }
 
   public void append(WalEntry entry) throws IOException {
     lock.lock();
     try {
-      int size = entry.serializedSize();
-      ByteBuffer buffer = ByteBuffer.allocate(size);
+      ByteBuffer buffer = ByteBuffer.allocate(entry.serializedSize());
       entry.serialize(buffer);
       buffer.flip();
       while (buffer.hasRemaining()) {
         channel.write(buffer);
       }
+      this.size += buffer.limit();
       currentBatchCount++;
       if (currentBatchCount >= batchSize) {
         flush();
@@ -51,6 +55,39 @@ public class WALWriter implements Closeable {
     }
   }
 
+  // one record for the whole batch, so recovery replays all of it or none
+  public void appendBatch(List<WalEntry> entries) throws IOException {
+    lock.lock();
+    try {
+      int bytes = 0;
+      for (WalEntry entry : entries) {
+        bytes += entry.serializedSize();
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(WalEntry.BATCH_HEADER_LENGTH + bytes);
+      buffer.putInt(WalEntry.BATCH_MARKER);
+      buffer.putInt(entries.size());
+      buffer.putInt(bytes);
+      for (WalEntry entry : entries) {
+        entry.serialize(buffer);
+      }
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      this.size += buffer.limit();
+      currentBatchCount += entries.size();
+      if (currentBatchCount >= batchSize) {
+        flush();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long size() {
+    return size;
+  }
+
   public void flush() throws IOException {
     channel.force(false);
     currentBatchCount = 0;
@@ -72,6 +109,7 @@ public class WALWriter implements Closeable {
     try {
       channel.truncate(0);
       currentBatchCount = 0;
+      size = 0;
     } finally {
       lock.unlock();
     }
@@ -4,34 +4,107 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
 import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.RangeTombstone;
 import org.lsmtdb.common.Value;
 
 public class WalEntry {
+    private static final int TOMBSTONE_LENGTH = -1;
+    // a range tombstone record stores the range start as its key, followed by [int endLen][end]
+    private static final int RANGE_TOMBSTONE_LENGTH = -2;
+    // a value written with a ttl is followed by [long expiresAt][int valLen][value] instead of the bare value
+    private static final int EXPIRING_LENGTH = -3;
+    // a merge operand is followed by [int valLen][operand]
+    private static final int MERGE_OPERAND_LENGTH = -4;
+    // key lengths are never negative, so a negative value in that slot marks a prefix. records of the default
+    // column family carry none and read the same as before column families existed
+    static final int COLUMN_FAMILY_MARKER = -1;
+    // [int marker][int count][int bytes] ahead of a write batch, replayed whole or not at all
+    static final int BATCH_MARKER = -2;
+    static final int BATCH_HEADER_LENGTH = Integer.BYTES * 3;
+    public static final int DEFAULT_COLUMN_FAMILY = 0;
+
+    public final int columnFamilyId;
     public final ByteArrayWrapper key;
     public final Value value;
+    public final RangeTombstone rangeTombstone;
 
     public WalEntry(ByteArrayWrapper key, Value val) {
+        this(DEFAULT_COLUMN_FAMILY, key, val);
+    }
+
+    public WalEntry(RangeTombstone rangeTombstone) {
+        this(DEFAULT_COLUMN_FAMILY, rangeTombstone);
+    }
+
+    public WalEntry(int columnFamilyId, ByteArrayWrapper key, Value val) {
+        this.columnFamilyId = columnFamilyId;
         this.key = key;
         this.value = val;
+        this.rangeTombstone = null;
+    }
+
+    public WalEntry(int columnFamilyId, RangeTombstone rangeTombstone) {
+        this.columnFamilyId = columnFamilyId;
+        this.key = rangeTombstone.getStart();
+        this.value = new Value(null, rangeTombstone.getTimestamp(), true);
+        this.rangeTombstone = rangeTombstone;
+    }
+
+    public boolean isRangeTombstone() {
+        return rangeTombstone != null;
     }
 
     public void serialize(ByteBuffer buffer) {
+        if (columnFamilyId != DEFAULT_COLUMN_FAMILY) {
+            buffer.putInt(COLUMN_FAMILY_MARKER);
+            buffer.putInt(columnFamilyId);
+        }
         buffer.putInt(this.key.getData().length);
-        buffer.putInt(this.value.isDeleted() ? -1 : this.value.getValue().length);
+        if (isRangeTombstone()) {
+            buffer.putInt(RANGE_TOMBSTONE_LENGTH);
+        } else if (isExpiring()) {
+            buffer.putInt(EXPIRING_LENGTH);
+        } else if (value.isMergeOperand()) {
+            buffer.putInt(MERGE_OPERAND_LENGTH);
+        } else {
+            buffer.putInt(this.value.isDeleted() ? TOMBSTONE_LENGTH : this.value.getValue().length);
+        }
         buffer.putLong(this.value.getTimestamp());
         buffer.put(this.key.getData());
 
-        if (!value.isDeleted()) {
+        if (isRangeTombstone()) {
+            buffer.putInt(rangeTombstone.getEnd().getData().length);
+            buffer.put(rangeTombstone.getEnd().getData());
+        } else if (isExpiring()) {
+            buffer.putLong(value.getExpiresAt());
+            buffer.putInt(value.getValue().length);
+            buffer.put(value.getValue());
+        } else if (value.isMergeOperand()) {
+            buffer.putInt(value.getValue().length);
+            buffer.put(value.getValue());
+        } else if (!value.isDeleted()) {
             buffer.put(value.getValue());
         }
     }
 
+    private boolean isExpiring() {
+        return !isRangeTombstone() && !value.isDeleted() && value.getExpiresAt() != Value.NO_EXPIRY;
+    }
+
     public static WalEntry deserialize(ByteBuffer buffer) {
         if (buffer.remaining() < (Integer.BYTES + Integer.BYTES + Long.BYTES)) {
             throw new BufferUnderflowException();
         }
 
+        int columnFamilyId = DEFAULT_COLUMN_FAMILY;
         int keyLen = buffer.getInt();
+        if (keyLen == COLUMN_FAMILY_MARKER) {
+            columnFamilyId = buffer.getInt();
+            if (buffer.remaining() < (Integer.BYTES + Integer.BYTES + Long.BYTES)) {
+                throw new BufferUnderflowException();
+            }
+            keyLen = buffer.getInt();
+        }
         int valLen = buffer.getInt();
         long timestamp = buffer.getLong();
 
@@ -43,8 +116,48 @@ public class WalEntry {
         buffer.get(key);
         ByteArrayWrapper keyWrapper = new ByteArrayWrapper(key);
 
+        if (valLen == RANGE_TOMBSTONE_LENGTH) {
+            if (buffer.remaining() < Integer.BYTES) {
+                throw new BufferUnderflowException();
+            }
+            int endLen = buffer.getInt();
+            if (buffer.remaining() < endLen) {
+                throw new BufferUnderflowException();
+            }
+            byte[] end = new byte[endLen];
+            buffer.get(end);
+            return new WalEntry(columnFamilyId, new RangeTombstone(keyWrapper, new ByteArrayWrapper(end), timestamp));
+        }
+
+        if (valLen == EXPIRING_LENGTH) {
+            if (buffer.remaining() < Long.BYTES + Integer.BYTES) {
+                throw new BufferUnderflowException();
+            }
+            long expiresAt = buffer.getLong();
+            int length = buffer.getInt();
+            if (buffer.remaining() < length) {
+                throw new BufferUnderflowException();
+            }
+            byte[] val = new byte[length];
+            buffer.get(val);
+            return new WalEntry(columnFamilyId, keyWrapper, new Value(val, timestamp, false, expiresAt));
+        }
+
+        if (valLen == MERGE_OPERAND_LENGTH) {
+            if (buffer.remaining() < Integer.BYTES) {
+                throw new BufferUnderflowException();
+            }
+            int length = buffer.getInt();
+            if (buffer.remaining() < length) {
+                throw new BufferUnderflowException();
+            }
+            byte[] operand = new byte[length];
+            buffer.get(operand);
+            return new WalEntry(columnFamilyId, keyWrapper, Value.mergeOperand(operand, timestamp));
+        }
+
         Value valObj;
-        if (valLen > 0) {
+        if (valLen >= 0) {
             byte[] val = new byte[valLen];
             buffer.get(val);
             valObj = new Value(val, timestamp, false);
@@ -52,12 +165,21 @@ public class WalEntry {
             valObj = new Value(null, timestamp, true);
         }
 
-        return new WalEntry(keyWrapper, valObj);
+        return new WalEntry(columnFamilyId, keyWrapper, valObj);
     }
 
     public int serializedSize() {
         int size = Integer.BYTES + Integer.BYTES + Long.BYTES + key.getData().length;
-        if (!value.isDeleted()) {
+        if (columnFamilyId != DEFAULT_COLUMN_FAMILY) {
+            size += Integer.BYTES + Integer.BYTES;
+        }
+        if (isRangeTombstone()) {
+            size += Integer.BYTES + rangeTombstone.getEnd().getData().length;
+        } else if (isExpiring()) {
+            size += Long.BYTES + Integer.BYTES + value.getValue().length;
+        } else if (value.isMergeOperand()) {
+            size += Integer.BYTES + value.getValue().length;
+        } else if (!value.isDeleted()) {
             size += value.getValue().length;
         }
         return size;
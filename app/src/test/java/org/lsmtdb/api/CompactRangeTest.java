@@ -0,0 +1,73 @@
+package org.lsmtdb.api;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lsmtdb.core.compaction.CompactRangeOptions;
+import org.lsmtdb.core.sstable.Version;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompactRangeTest {
+    @TempDir
+    Path dir;
+
+    private KeyValueStore store;
+
+    @BeforeEach
+    void open() throws IOException {
+        store = KeyValueStore.open(dir.toString());
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        store.close();
+    }
+
+    private void flush() throws IOException {
+        store.getDefaultColumnFamily().flush();
+    }
+
+    private int filesAtLevel(int level) {
+        try (Version version = store.getDefaultColumnFamily().tableDirectory.acquireCurrent()) {
+            return version.getFiles(level).size();
+        }
+    }
+
+    @Test
+    void olderL0FileOutsideTheRangeGoesDownWithTheNewerOne() throws IOException {
+        store.put("n", "old");
+        flush();
+        store.put("a", "1");
+        store.put("n", "new");
+        store.put("z", "1");
+        flush();
+        assertEquals(2, filesAtLevel(0));
+        assertEquals("new", store.get("n"));
+
+        // only the newer file lies in [a, b], but the older one overlaps it and must not stay above it
+        store.compactRange("a", "b");
+        assertEquals(0, filesAtLevel(0));
+        assertEquals("new", store.get("n"));
+        assertEquals("1", store.get("a"));
+        assertEquals("1", store.get("z"));
+    }
+
+    @Test
+    void l0FilesDisjointFromTheRangeStayInL0() throws IOException {
+        store.put("a", "1");
+        flush();
+        store.put("x", "1");
+        flush();
+
+        CompactRangeOptions options = new CompactRangeOptions();
+        options.setMaxSubcompactions(1);
+        store.compactRange("a", "b", options).join();
+        assertEquals(1, filesAtLevel(0));
+        assertEquals("1", store.get("a"));
+        assertEquals("1", store.get("x"));
+    }
+}
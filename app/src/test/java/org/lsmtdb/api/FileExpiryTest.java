@@ -0,0 +1,124 @@
+package org.lsmtdb.api;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.core.sstable.SSTableMetadata;
+import org.lsmtdb.core.sstable.Version;
+import org.lsmtdb.core.sstable.merger.SSTableStreamWriter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileExpiryTest {
+    @TempDir
+    Path dir;
+
+    private static List<String> paths(ColumnFamily family) {
+        List<String> paths = new ArrayList<>();
+        try (Version version = family.tableDirectory.acquireCurrent()) {
+            for (int level = 0; level < version.numLevels(); level++) {
+                for (SSTableMetadata sstable : version.getFiles(level)) {
+                    paths.add(sstable.getFilePath());
+                }
+            }
+        }
+        return paths;
+    }
+
+    private static void expireFiles(ColumnFamily family) {
+        family.compactionManager.checkAndTriggerCompaction();
+    }
+
+    @Test
+    void migratedManifestKeepsItsFiles() throws IOException {
+        // one L1 file described by manifest.json the way stores wrote it before the binary manifest: no stats, no expiry
+        String path = dir.resolve("sstables/L1/1.sst").toString();
+        new File(path).getParentFile().mkdirs();
+        try (SSTableStreamWriter writer = new SSTableStreamWriter(path)) {
+            writer.writeEntry("a".getBytes(StandardCharsets.UTF_8), "1".getBytes(StandardCharsets.UTF_8), 1);
+            writer.writeEntry("b".getBytes(StandardCharsets.UTF_8), "2".getBytes(StandardCharsets.UTF_8), 2);
+            writer.finish();
+        }
+        Gson gson = new Gson();
+        JsonObject sstable = new JsonObject();
+        sstable.addProperty("fileNumber", 1);
+        sstable.addProperty("filePath", path);
+        sstable.add("minKey", gson.toJsonTree(new ByteArrayWrapper("a".getBytes(StandardCharsets.UTF_8))));
+        sstable.add("maxKey", gson.toJsonTree(new ByteArrayWrapper("b".getBytes(StandardCharsets.UTF_8))));
+        sstable.addProperty("fileSize", new File(path).length());
+        sstable.addProperty("beingCompacted", false);
+        sstable.addProperty("level", 1);
+        JsonArray sstables = new JsonArray();
+        sstables.add(sstable);
+        JsonObject level = new JsonObject();
+        level.addProperty("level", 1);
+        level.addProperty("maxSize", 10L * 1024 * 1024);
+        level.addProperty("totalSize", new File(path).length());
+        level.add("sstables", sstables);
+        JsonArray levels = new JsonArray();
+        levels.add(level);
+        JsonObject manifest = new JsonObject();
+        manifest.addProperty("nextFileNumber", 2);
+        manifest.add("levels", levels);
+        Files.writeString(dir.resolve("manifest.json"), gson.toJson(manifest));
+
+        try (KeyValueStore store = KeyValueStore.open(dir.toString())) {
+            ColumnFamily family = store.getDefaultColumnFamily();
+            SSTableMetadata migrated = family.tableDirectory.getSSTablesAtLevel(1).get(0);
+            assertFalse(migrated.hasExpiry());
+            assertFalse(migrated.isExpired(System.currentTimeMillis()));
+            expireFiles(family);
+            assertEquals(List.of(path), paths(family));
+            assertTrue(new File(path).exists());
+            assertEquals("1", store.get("a"));
+            assertEquals("2", store.get("b"));
+        }
+        // and again once the migrated entry has gone through the binary manifest
+        try (KeyValueStore store = KeyValueStore.open(dir.toString())) {
+            expireFiles(store.getDefaultColumnFamily());
+            assertEquals("2", store.get("b"));
+        }
+    }
+
+    @Test
+    void dropsOnlyFilesWhoseValuesAllExpired() throws IOException, InterruptedException {
+        try (KeyValueStore store = KeyValueStore.open(dir.toString())) {
+            ColumnFamily family = store.getDefaultColumnFamily();
+            for (int i = 0; i < 5; i++) {
+                store.put("t" + i, "short", 300);
+            }
+            family.flush();
+            List<String> expiring = paths(family);
+            store.put("a", "kept");
+            store.put("b", "kept", 60_000);
+            family.flush();
+            // a file of tombstones only records no ttl, so it is not expired either
+            store.delete("q");
+            family.flush();
+            assertEquals(3, paths(family).size());
+            expireFiles(family);
+            assertEquals(3, paths(family).size());
+            assertEquals("short", store.get("t0"));
+
+            Thread.sleep(400);
+            expireFiles(family);
+            List<String> remaining = paths(family);
+            assertEquals(2, remaining.size());
+            assertFalse(remaining.containsAll(expiring));
+            assertFalse(new File(expiring.get(0)).exists());
+            assertNull(store.get("t0"));
+            assertEquals("kept", store.get("a"));
+            assertEquals("kept", store.get("b"));
+        }
+    }
+}
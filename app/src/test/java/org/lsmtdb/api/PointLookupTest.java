@@ -0,0 +1,73 @@
+package org.lsmtdb.api;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PointLookupTest {
+    @TempDir
+    Path dir;
+
+    private KeyValueStore store;
+
+    @BeforeEach
+    void open() throws IOException {
+        store = KeyValueStore.open(dir.toString());
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        store.close();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void returnedArraysAreTheCallersOwn() throws IOException {
+        store.put("k", "value");
+        byte[] value = store.get(bytes("k"));
+        Arrays.fill(value, (byte) 'x');
+        byte[] fromMultiGet = store.multiGet(List.of(bytes("k"))).get(0);
+        Arrays.fill(fromMultiGet, (byte) 'y');
+        assertEquals("value", store.get("k"));
+
+        // nor does a change reach the sstable the memtable is flushed to
+        store.getDefaultColumnFamily().flush();
+        assertEquals("value", store.get("k"));
+    }
+
+    @Test
+    void bufferLookupCopiesOnlyWhenTheValueFits() throws IOException {
+        store.put("mem", "in the memtable");
+        store.put("disk", "in an sstable");
+        store.getDefaultColumnFamily().flush();
+        store.put("mem", "in the memtable");
+        store.delete("gone");
+
+        for (String key : List.of("mem", "disk")) {
+            byte[] expected = bytes(store.get(key));
+            ByteBuffer small = ByteBuffer.allocate(4);
+            assertEquals(expected.length, store.get(bytes(key), small));
+            assertEquals(0, small.position());
+
+            ByteBuffer out = ByteBuffer.allocate(64);
+            out.put((byte) '>');
+            assertEquals(expected.length, store.get(bytes(key), out));
+            assertEquals(1 + expected.length, out.position());
+            assertArrayEquals(expected, Arrays.copyOfRange(out.array(), 1, 1 + expected.length));
+        }
+        assertEquals(IKeyValueStore.NOT_FOUND, store.get(bytes("gone"), ByteBuffer.allocate(8)));
+        assertEquals(IKeyValueStore.NOT_FOUND, store.get(bytes("never"), ByteBuffer.allocate(8)));
+    }
+}
@@ -0,0 +1,68 @@
+package org.lsmtdb.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lsmtdb.core.sstable.SSTableMetadata;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RangeTombstoneDropTest {
+    @TempDir
+    Path dir;
+
+    private KeyValueStore store;
+    private ColumnFamily family;
+
+    @BeforeEach
+    void open() throws IOException {
+        store = KeyValueStore.open(dir.toString());
+        family = store.getDefaultColumnFamily();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        store.close();
+    }
+
+    private List<SSTableMetadata> l0() {
+        return family.tableDirectory.getSSTablesAtLevel(0);
+    }
+
+    @Test
+    void coveredFileIsClaimedAndDropped() throws IOException {
+        store.put("b", "1");
+        store.put("c", "1");
+        family.flush();
+        SSTableMetadata covered = l0().get(0);
+
+        store.deleteRange("a", "z");
+        family.flush();
+        assertEquals(1, l0().size());
+        assertNotEquals(covered.getFilePath(), l0().get(0).getFilePath());
+        // claimed before the edit, so no compaction picked it up in between
+        assertTrue(covered.isBeingCompacted());
+        assertFalse(new File(covered.getFilePath()).exists());
+        assertNull(store.get("b"));
+    }
+
+    @Test
+    void fileClaimedByACompactionIsLeftToIt() throws IOException {
+        store.put("b", "1");
+        family.flush();
+        SSTableMetadata claimed = l0().get(0);
+        claimed.setBeingCompacted(true);
+
+        store.deleteRange("a", "z");
+        family.flush();
+        assertEquals(2, l0().size());
+        assertTrue(new File(claimed.getFilePath()).exists());
+        assertNull(store.get("b"));
+        claimed.setBeingCompacted(false);
+    }
+}
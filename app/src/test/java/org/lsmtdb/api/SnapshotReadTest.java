@@ -0,0 +1,211 @@
+package org.lsmtdb.api;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lsmtdb.core.compaction.CompactRangeOptions;
+import org.lsmtdb.core.snapshot.Snapshot;
+import org.lsmtdb.core.sstable.SSTableMetadata;
+import org.lsmtdb.core.sstable.Version;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotReadTest {
+    @TempDir
+    Path dir;
+
+    private KeyValueStore store;
+
+    @BeforeEach
+    void open() throws IOException {
+        store = KeyValueStore.open(dir.toString());
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        store.close();
+    }
+
+    private static String key(int i) {
+        return String.format("key%04d", i);
+    }
+
+    private static String string(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    private void flush() throws IOException {
+        store.getDefaultColumnFamily().flush();
+    }
+
+    private void compactToBottom(boolean forceRewrite) {
+        CompactRangeOptions options = new CompactRangeOptions();
+        options.setForceBottommostRewrite(forceRewrite);
+        store.compactRange(null, null, options).join();
+    }
+
+    // [entries, tombstones] over every file of the default family
+    private long[] fileStats() {
+        try (Version version = store.getDefaultColumnFamily().tableDirectory.acquireCurrent()) {
+            long[] stats = new long[2];
+            for (int level = 0; level < version.numLevels(); level++) {
+                for (SSTableMetadata file : version.getFiles(level)) {
+                    stats[0] += file.getEntryCount();
+                    stats[1] += file.getTombstoneCount();
+                }
+            }
+            return stats;
+        }
+    }
+
+    // point reads, multiGet and a full scan at the snapshot all have to match the expected view
+    private void assertView(Snapshot snapshot, TreeMap<String, String> expected, int keys) throws IOException {
+        List<byte[]> batch = new ArrayList<>();
+        for (int i = 0; i < keys; i++) {
+            String key = key(i);
+            assertEquals(expected.get(key), string(store.get(key.getBytes(StandardCharsets.UTF_8), snapshot)), key);
+            batch.add(key.getBytes(StandardCharsets.UTF_8));
+        }
+        List<byte[]> values = store.multiGet(batch, snapshot);
+        for (int i = 0; i < keys; i++) {
+            assertEquals(expected.get(key(i)), string(values.get(i)), "multiGet " + key(i));
+        }
+        TreeMap<String, String> scanned = new TreeMap<>();
+        try (ScanIterator it = store.scan(null, null, snapshot)) {
+            while (it.hasNext()) {
+                Map.Entry<String, String> entry = it.next();
+                scanned.put(entry.getKey(), entry.getValue());
+            }
+        }
+        assertEquals(expected, scanned);
+    }
+
+    @Test
+    void snapshotSurvivesOverwritesDeletesFlushAndCompaction() throws IOException {
+        int keys = 400;
+        TreeMap<String, String> live = new TreeMap<>();
+        for (int i = 0; i < keys; i++) {
+            store.put(key(i), "v0-" + i);
+            live.put(key(i), "v0-" + i);
+        }
+        flush();
+        Snapshot first = store.getSnapshot();
+        TreeMap<String, String> firstView = new TreeMap<>(live);
+
+        Random random = new Random(44);
+        for (int i = 0; i < 600; i++) {
+            String key = key(random.nextInt(keys));
+            if (random.nextInt(4) == 0) {
+                store.delete(key);
+                live.remove(key);
+            } else {
+                store.put(key, "v1-" + i);
+                live.put(key, "v1-" + i);
+            }
+        }
+        store.deleteRange(key(100), key(150));
+        live.subMap(key(100), key(150)).clear();
+        Snapshot second = store.getSnapshot();
+        TreeMap<String, String> secondView = new TreeMap<>(live);
+        // the newest writes stay in the memtable, so reads at each snapshot cross the memtable and the files
+        for (int i = 0; i < keys; i += 3) {
+            store.put(key(i), "v2-" + i);
+            live.put(key(i), "v2-" + i);
+        }
+
+        assertView(first, firstView, keys);
+        assertView(second, secondView, keys);
+        flush();
+        assertView(first, firstView, keys);
+        assertView(second, secondView, keys);
+        compactToBottom(true);
+        assertView(first, firstView, keys);
+        assertView(second, secondView, keys);
+        assertView(null, live, keys);
+
+        store.releaseSnapshot(first);
+        compactToBottom(true);
+        assertView(second, secondView, keys);
+        assertView(null, live, keys);
+        store.releaseSnapshot(second);
+    }
+
+    @Test
+    void bottommostTombstoneIsKeptWhileASnapshotSeesTheValueBelowIt() throws IOException {
+        store.put("k", "v");
+        flush();
+        Snapshot snapshot = store.getSnapshot();
+        store.delete("k");
+        flush();
+
+        compactToBottom(false);
+        assertEquals("v", string(store.get("k".getBytes(StandardCharsets.UTF_8), snapshot)));
+        assertNull(store.get("k"));
+        assertEquals(2, fileStats()[0], "value and tombstone both kept");
+        assertEquals(1, fileStats()[1]);
+
+        store.releaseSnapshot(snapshot);
+        compactToBottom(false);
+        assertNull(store.get("k"));
+        assertEquals(0, fileStats()[0], "with no snapshot left the tombstone and the value go");
+    }
+
+    @Test
+    void onlyVersionsSomeSnapshotSeesSurviveCompaction() throws IOException {
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (int version = 0; version < 5; version++) {
+            store.put("k", "v" + version);
+            flush();
+            snapshots.add(store.getSnapshot());
+        }
+        store.put("k", "latest");
+        flush();
+
+        compactToBottom(true);
+        assertEquals(6, fileStats()[0]);
+        for (int version = 0; version < 5; version++) {
+            assertEquals("v" + version, string(store.get("k".getBytes(StandardCharsets.UTF_8), snapshots.get(version))));
+        }
+
+        // snapshots 1 and 3 remain: versions 1, 3 and the latest
+        store.releaseSnapshot(snapshots.get(0));
+        store.releaseSnapshot(snapshots.get(2));
+        store.releaseSnapshot(snapshots.get(4));
+        compactToBottom(true);
+        assertEquals(3, fileStats()[0]);
+        assertEquals("v1", string(store.get("k".getBytes(StandardCharsets.UTF_8), snapshots.get(1))));
+        assertEquals("v3", string(store.get("k".getBytes(StandardCharsets.UTF_8), snapshots.get(3))));
+        assertEquals("latest", store.get("k"));
+
+        store.releaseSnapshot(snapshots.get(1));
+        store.releaseSnapshot(snapshots.get(3));
+        compactToBottom(true);
+        assertEquals(1, fileStats()[0]);
+        assertEquals("latest", store.get("k"));
+    }
+
+    @Test
+    void snapshotReadsIgnoreRangeDeletesWrittenAfterIt() throws IOException {
+        for (int i = 0; i < 50; i++) {
+            store.put(key(i), "v" + i);
+        }
+        Snapshot snapshot = store.getSnapshot();
+        store.deleteRange(key(10), key(40));
+        flush();
+        compactToBottom(false);
+
+        assertEquals("v20", string(store.get(key(20).getBytes(StandardCharsets.UTF_8), snapshot)));
+        assertNull(store.get(key(20)));
+        assertEquals("v40", store.get(key(40)));
+        store.releaseSnapshot(snapshot);
+    }
+}
@@ -0,0 +1,160 @@
+package org.lsmtdb.api;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lsmtdb.core.sstable.Version;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransactionConflictTest {
+    @TempDir
+    Path dir;
+
+    private KeyValueStore store;
+    private ColumnFamily counters;
+
+    @BeforeEach
+    void open() throws IOException {
+        store = KeyValueStore.open(dir.toString());
+        ColumnFamilyOptions options = new ColumnFamilyOptions();
+        options.setMergeOperator((existing, operand) -> {
+            long base = existing == null ? 0 : Long.parseLong(new String(existing, StandardCharsets.UTF_8));
+            return Long.toString(base + Long.parseLong(new String(operand, StandardCharsets.UTF_8))).getBytes(StandardCharsets.UTF_8);
+        });
+        counters = store.createColumnFamily("counters", options);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        store.close();
+    }
+
+    private static void flush(ColumnFamily family) throws IOException {
+        family.flush();
+        assertTrue(family.memtable.isEmpty());
+    }
+
+    private static int l0Files(ColumnFamily family) {
+        try (Version version = family.tableDirectory.acquireCurrent()) {
+            return version.getFiles(0).size();
+        }
+    }
+
+    // reads key in a new transaction, lets write run outside it, then commits a put of key
+    private void assertConflict(ColumnFamily family, String key, Write write) throws IOException {
+        try (Transaction transaction = store.beginTransaction()) {
+            transaction.get(family, key);
+            write.run();
+            transaction.put(family, key, "mine");
+            assertThrows(TransactionConflictException.class, transaction::commit);
+            assertTrue(transaction.isFinished());
+        }
+        assertNotEquals("mine", store.get(family, key));
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    @Test
+    void writesBeforeBeginDoNotConflict() throws IOException {
+        store.put("a", "old");
+        flush(store.getDefaultColumnFamily());
+        store.put("b", "old");
+        try (Transaction transaction = store.beginTransaction()) {
+            assertEquals("old", transaction.get("a"));
+            assertEquals("old", transaction.get("b"));
+            store.put("c", "other");
+            transaction.put("a", "new");
+            transaction.put("b", "new");
+            transaction.commit();
+        }
+        assertEquals("new", store.get("a"));
+        assertEquals("new", store.get("b"));
+    }
+
+    @Test
+    void writeInMemtableConflicts() throws IOException {
+        store.put("a", "old");
+        ColumnFamily family = store.getDefaultColumnFamily();
+        assertConflict(family, "a", () -> store.put("a", "theirs"));
+        assertConflict(family, "a", () -> store.delete("a"));
+        assertEquals(0, l0Files(family));
+    }
+
+    @Test
+    void writeFlushedToL0Conflicts() throws IOException {
+        ColumnFamily family = store.getDefaultColumnFamily();
+        store.put("a", "old");
+        flush(family);
+        assertConflict(family, "a", () -> {
+            store.put("a", "theirs");
+            flush(family);
+        });
+        assertEquals(2, l0Files(family));
+        // the later file has moved on, but a key it does not hold still commits
+        try (Transaction transaction = store.beginTransaction()) {
+            transaction.get("b");
+            store.put("c", "other");
+            flush(family);
+            transaction.put("b", "mine");
+            transaction.commit();
+        }
+        assertEquals("mine", store.get("b"));
+    }
+
+    @Test
+    void rangeTombstoneAfterBeginConflicts() throws IOException {
+        ColumnFamily family = store.getDefaultColumnFamily();
+        store.put("b", "old");
+        flush(family);
+        assertConflict(family, "b", () -> store.deleteRange("a", "c"));
+        store.put("b", "old");
+        flush(family);
+        assertConflict(family, "b", () -> {
+            store.deleteRange("a", "c");
+            flush(family);
+        });
+        // a range that stops short of the key leaves it alone
+        try (Transaction transaction = store.beginTransaction()) {
+            transaction.get("d");
+            store.deleteRange("a", "c");
+            flush(family);
+            transaction.put("d", "mine");
+            transaction.commit();
+        }
+        assertEquals("mine", store.get("d"));
+    }
+
+    @Test
+    void mergesConflict() throws IOException {
+        store.put(counters, "n", "1");
+        flush(counters);
+        assertConflict(counters, "n", () -> store.merge(counters, "n", "1"));
+        assertConflict(counters, "n", () -> {
+            store.merge(counters, "n", "1");
+            flush(counters);
+        });
+        assertEquals("3", store.get(counters, "n"));
+
+        // a key the transaction only merged into is tracked as well
+        try (Transaction transaction = store.beginTransaction()) {
+            transaction.merge(counters, "n", "10");
+            assertEquals("13", transaction.get(counters, "n"));
+            store.merge(counters, "n", "1");
+            assertThrows(TransactionConflictException.class, transaction::commit);
+        }
+        assertEquals("4", store.get(counters, "n"));
+
+        try (Transaction transaction = store.beginTransaction()) {
+            transaction.merge(counters, "n", "10");
+            transaction.commit();
+        }
+        assertEquals("14", store.get(counters, "n"));
+    }
+}
@@ -0,0 +1,86 @@
+package org.lsmtdb.core.compaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.core.manifest.VersionEdit;
+import org.lsmtdb.core.snapshot.SnapshotList;
+import org.lsmtdb.core.sstable.SSTableMetadata;
+import org.lsmtdb.core.sstable.SSTableReader;
+import org.lsmtdb.core.sstable.TableDirectory;
+import org.lsmtdb.core.sstable.Version;
+import org.lsmtdb.core.sstable.merger.SSTableStreamWriter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrivialMoveTest {
+    @TempDir
+    Path dir;
+
+    private TableDirectory open() {
+        return new TableDirectory(dir.toString(), new AtomicLong(VersionEdit.NO_SEQUENCE));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void copyFallbackLeavesTheSourceToPinnedVersions() throws IOException {
+        TableDirectory tableDirectory = open();
+        CompactionPools pools = new CompactionPools();
+        CompactionManager compactionManager = new CompactionManager(tableDirectory, new SnapshotList(), pools);
+        try {
+            int fileNumber = tableDirectory.getAndIncrementNextFileNumber();
+            String source = tableDirectory.generatePath(1, fileNumber);
+            new File(source).getParentFile().mkdirs();
+            try (SSTableStreamWriter writer = new SSTableStreamWriter(source)) {
+                writer.writeEntry(bytes("a"), bytes("1"), 1);
+                writer.writeEntry(bytes("b"), bytes("2"), 2);
+                writer.finish();
+                SSTableMetadata sstable = tableDirectory.allocateNewSSTable(1, new ByteArrayWrapper(bytes("a")), new ByteArrayWrapper(bytes("b")),
+                    new File(source).length(), source, fileNumber);
+                writer.applyStatsTo(sstable);
+                tableDirectory.addSSTable(1, sstable);
+            }
+
+            // a leftover at the path the move will use makes the hard link fail, so the file is copied instead
+            String target = tableDirectory.generatePath(2, tableDirectory.getAndIncrementNextFileNumber() + 1);
+            new File(target).getParentFile().mkdirs();
+            Files.writeString(Path.of(target), "stale");
+
+            try (Version pinned = tableDirectory.acquireCurrent()) {
+                compactionManager.handleNoOverlap(tableDirectory.getSSTablesAtLevel(1).get(0), 2);
+                assertTrue(tableDirectory.getSSTablesAtLevel(1).isEmpty());
+                assertEquals(target, tableDirectory.getSSTablesAtLevel(2).get(0).getFilePath());
+                // the pinned version still lists the source, so it stays readable until released
+                assertEquals(source, pinned.getFiles(1).get(0).getFilePath());
+                try (SSTableReader reader = new SSTableReader(source)) {
+                    assertArrayEquals(bytes("2"), reader.get(bytes("b")));
+                }
+            }
+            assertFalse(new File(source).exists());
+            try (SSTableReader reader = new SSTableReader(target)) {
+                assertArrayEquals(bytes("1"), reader.get(bytes("a")));
+                assertArrayEquals(bytes("2"), reader.get(bytes("b")));
+            }
+        } finally {
+            pools.shutdown();
+            tableDirectory.shutdown();
+        }
+
+        TableDirectory reopened = open();
+        try {
+            assertEquals(1, reopened.getSSTablesAtLevel(2).size());
+            assertTrue(new File(reopened.getSSTablesAtLevel(2).get(0).getFilePath()).exists());
+        } finally {
+            reopened.shutdown();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.lsmtdb.core.manifest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ManifestLogTest {
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    @TempDir
+    Path dir;
+
+    private static VersionEdit edit(int fileNumber) {
+        VersionEdit edit = new VersionEdit();
+        edit.setNextFileNumber(fileNumber + 1);
+        edit.setLastSequence(fileNumber * 10L);
+        edit.addFile(VersionEditTest.file(0, fileNumber, "k" + fileNumber, "k" + fileNumber + "z"));
+        return edit;
+    }
+
+    private static VersionEdit snapshot() {
+        VersionEdit snapshot = new VersionEdit();
+        snapshot.setSnapshot(true);
+        snapshot.setNextFileNumber(1);
+        return snapshot;
+    }
+
+    private File manifest(int number) {
+        return dir.resolve("MANIFEST-" + number).toFile();
+    }
+
+    // writes the snapshot plus edits 1..count and closes the log
+    private void writeLog(int number, int count) throws IOException {
+        try (ManifestLog log = ManifestLog.create(dir.toFile(), number, snapshot())) {
+            long position = 0;
+            for (int i = 1; i <= count; i++) {
+                position = log.write(edit(i));
+            }
+            log.sync(position);
+        }
+    }
+
+    @Test
+    void replaysEveryRecordInOrder() throws IOException {
+        writeLog(3, 5);
+
+        assertEquals(3, ManifestLog.currentManifestNumber(dir.toFile()));
+        List<VersionEdit> edits = ManifestLog.replay(dir.toFile(), 3);
+        assertEquals(6, edits.size());
+        assertTrue(edits.get(0).isSnapshot());
+        for (int i = 1; i <= 5; i++) {
+            VersionEdit replayed = edits.get(i);
+            assertFalse(replayed.isSnapshot());
+            assertEquals(i + 1, replayed.getNextFileNumber());
+            assertEquals(i * 10L, replayed.getLastSequence());
+            VersionEditTest.assertSameFile(edit(i).getNewFiles().get(0), replayed.getNewFiles().get(0));
+        }
+    }
+
+    @Test
+    void framesRecordsAsLengthCrcPayload() throws IOException {
+        writeLog(1, 2);
+
+        long expected = 0;
+        for (VersionEdit edit : List.of(snapshot(), edit(1), edit(2))) {
+            expected += RECORD_HEADER_SIZE + edit.encode().length;
+        }
+        assertEquals(expected, manifest(1).length());
+        byte[] data = Files.readAllBytes(manifest(1).toPath());
+        assertEquals(snapshot().encode().length, ((data[0] & 0xff) << 24) | ((data[1] & 0xff) << 16) | ((data[2] & 0xff) << 8) | (data[3] & 0xff));
+    }
+
+    @Test
+    void sizeTracksAppendedBytes() throws IOException {
+        try (ManifestLog log = ManifestLog.create(dir.toFile(), 1, snapshot())) {
+            long before = log.size();
+            long position = log.write(edit(1));
+            assertEquals(before + RECORD_HEADER_SIZE + edit(1).encode().length, position);
+            assertEquals(position, log.size());
+        }
+    }
+
+    @Test
+    void tornTailEndsReplayAtLastIntactRecord() throws IOException {
+        writeLog(1, 3);
+        long intact = manifest(1).length() - RECORD_HEADER_SIZE - edit(3).encode().length;
+
+        // a crash partway through the last append: its header made it to disk, part of its payload did not
+        try (RandomAccessFile file = new RandomAccessFile(manifest(1), "rw")) {
+            file.setLength(intact + RECORD_HEADER_SIZE + 5);
+        }
+        List<VersionEdit> edits = ManifestLog.replay(dir.toFile(), 1);
+        assertEquals(3, edits.size());
+        assertEquals(3, edits.get(2).getNextFileNumber());
+
+        // only part of the header made it
+        try (RandomAccessFile file = new RandomAccessFile(manifest(1), "rw")) {
+            file.setLength(intact + 3);
+        }
+        assertEquals(3, ManifestLog.replay(dir.toFile(), 1).size());
+    }
+
+    @Test
+    void corruptRecordEndsReplay() throws IOException {
+        writeLog(1, 3);
+        long lastPayload = manifest(1).length() - edit(3).encode().length;
+
+        try (RandomAccessFile file = new RandomAccessFile(manifest(1), "rw")) {
+            file.seek(lastPayload + 2);
+            int b = file.read();
+            file.seek(lastPayload + 2);
+            file.write(b ^ 0xff);
+        }
+        List<VersionEdit> edits = ManifestLog.replay(dir.toFile(), 1);
+        assertEquals(3, edits.size());
+    }
+
+    @Test
+    void negativeLengthEndsReplay() throws IOException {
+        writeLog(1, 1);
+        try (RandomAccessFile file = new RandomAccessFile(manifest(1), "rw")) {
+            file.seek(file.length());
+            file.writeInt(-5);
+            file.writeInt(0);
+        }
+        assertEquals(2, ManifestLog.replay(dir.toFile(), 1).size());
+    }
+
+    @Test
+    void createPointsCurrentAtTheNewManifest() throws IOException {
+        assertEquals(0, ManifestLog.currentManifestNumber(dir.toFile()));
+        writeLog(1, 1);
+        writeLog(2, 0);
+
+        assertEquals(2, ManifestLog.currentManifestNumber(dir.toFile()));
+        assertFalse(dir.resolve("CURRENT.tmp").toFile().exists());
+        ManifestLog.deleteManifest(dir.toFile(), 1);
+        assertFalse(manifest(1).exists());
+        assertEquals(1, ManifestLog.replay(dir.toFile(), 2).size());
+    }
+
+    @Test
+    void rejectsMalformedCurrent() throws IOException {
+        Files.writeString(dir.resolve("CURRENT"), "garbage\n");
+        assertThrows(IOException.class, () -> ManifestLog.currentManifestNumber(dir.toFile()));
+    }
+}
@@ -0,0 +1,107 @@
+package org.lsmtdb.core.manifest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.Value;
+import org.lsmtdb.core.sstable.SSTableMetadata;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VersionEditTest {
+
+    static SSTableMetadata file(int level, int fileNumber, String minKey, String maxKey) {
+        SSTableMetadata sstable = new SSTableMetadata(fileNumber, "sstables/L" + level + "/" + fileNumber + ".sst",
+            key(minKey), key(maxKey), 4096 + fileNumber, false, level);
+        sstable.setDeletionStats(100 + fileNumber, 7, 3);
+        sstable.setTimestampRange(10, 20 + fileNumber);
+        sstable.setRangeTombstoneCount(2);
+        return sstable;
+    }
+
+    static ByteArrayWrapper key(String key) {
+        return new ByteArrayWrapper(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void assertSameFile(SSTableMetadata expected, SSTableMetadata actual) {
+        assertEquals(expected.getLevel(), actual.getLevel());
+        assertEquals(expected.getFileNumber(), actual.getFileNumber());
+        assertEquals(expected.getFilePath(), actual.getFilePath());
+        assertEquals(expected.getMinKey(), actual.getMinKey());
+        assertEquals(expected.getMaxKey(), actual.getMaxKey());
+        assertEquals(expected.getFileSize(), actual.getFileSize());
+        assertEquals(expected.getEntryCount(), actual.getEntryCount());
+        assertEquals(expected.getTombstoneCount(), actual.getTombstoneCount());
+        assertEquals(expected.getMaxWindowTombstones(), actual.getMaxWindowTombstones());
+        assertEquals(expected.getMinTimestamp(), actual.getMinTimestamp());
+        assertEquals(expected.getMaxTimestamp(), actual.getMaxTimestamp());
+        assertEquals(expected.getRangeTombstoneCount(), actual.getRangeTombstoneCount());
+        assertEquals(expected.getMinExpiry(), actual.getMinExpiry());
+        assertEquals(expected.getMaxExpiry(), actual.getMaxExpiry());
+    }
+
+    @Test
+    void roundTripsEveryField() throws IOException {
+        VersionEdit edit = new VersionEdit();
+        edit.setSnapshot(true);
+        edit.setNextFileNumber(42);
+        edit.setLastSequence(12345);
+        edit.deleteFile(1, "sstables/L1/3.sst");
+        edit.deleteFile(2, "sstables/L2/4.sst");
+        SSTableMetadata plain = file(0, 40, "a", "m");
+        SSTableMetadata expiring = file(1, 41, "n", "z");
+        expiring.setExpiryRange(1000, 2000);
+        edit.addFile(plain);
+        edit.addFile(expiring);
+
+        VersionEdit decoded = VersionEdit.decode(edit.encode());
+
+        assertTrue(decoded.isSnapshot());
+        assertEquals(42, decoded.getNextFileNumber());
+        assertEquals(12345, decoded.getLastSequence());
+        assertEquals(2, decoded.getDeletedFiles().size());
+        assertEquals(2, decoded.getDeletedFiles().get(1).getLevel());
+        assertEquals("sstables/L2/4.sst", decoded.getDeletedFiles().get(1).getFilePath());
+        assertEquals(2, decoded.getNewFiles().size());
+        assertSameFile(plain, decoded.getNewFiles().get(0));
+        assertSameFile(expiring, decoded.getNewFiles().get(1));
+    }
+
+    @Test
+    void unsetFieldsStayUnset() throws IOException {
+        VersionEdit decoded = VersionEdit.decode(new VersionEdit().encode());
+
+        assertFalse(decoded.isSnapshot());
+        assertEquals(-1, decoded.getNextFileNumber());
+        assertEquals(VersionEdit.NO_SEQUENCE, decoded.getLastSequence());
+        assertTrue(decoded.getNewFiles().isEmpty());
+        assertTrue(decoded.getDeletedFiles().isEmpty());
+    }
+
+    @Test
+    void fileWithoutExpiryDecodesAsNeverExpiring() throws IOException {
+        VersionEdit edit = new VersionEdit();
+        edit.addFile(file(0, 1, "a", "b"));
+
+        SSTableMetadata decoded = VersionEdit.decode(edit.encode()).getNewFiles().get(0);
+
+        assertEquals(Value.NO_EXPIRY, decoded.getMinExpiry());
+        assertEquals(Value.NO_EXPIRY, decoded.getMaxExpiry());
+    }
+
+    @Test
+    void rejectsUnknownTag() {
+        assertThrows(IOException.class, () -> VersionEdit.decode(new byte[] {99}));
+    }
+
+    @Test
+    void rejectsExpiryWithoutFile() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(6);
+        bytes.writeBytes(new byte[2 * Long.BYTES]);
+
+        assertThrows(IOException.class, () -> VersionEdit.decode(bytes.toByteArray()));
+    }
+}
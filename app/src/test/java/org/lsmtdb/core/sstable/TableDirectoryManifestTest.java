@@ -0,0 +1,222 @@
+package org.lsmtdb.core.sstable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.core.manifest.ManifestLog;
+import org.lsmtdb.core.manifest.VersionEdit;
+import org.lsmtdb.core.sstable.merger.SSTableStreamWriter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TableDirectoryManifestTest {
+    @TempDir
+    Path dir;
+
+    private TableDirectory open() {
+        return new TableDirectory(dir.toString(), new AtomicLong(VersionEdit.NO_SEQUENCE));
+    }
+
+    private static ByteArrayWrapper key(String key) {
+        return new ByteArrayWrapper(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // a real sstable holding keys from..to, registered with the directory
+    private static SSTableMetadata writeTable(TableDirectory tableDirectory, int level, String from, String to) throws IOException {
+        int fileNumber = tableDirectory.getAndIncrementNextFileNumber();
+        String path = tableDirectory.generatePath(level, fileNumber);
+        new File(path).getParentFile().mkdirs();
+        try (SSTableStreamWriter writer = new SSTableStreamWriter(path)) {
+            writer.writeEntry(from.getBytes(StandardCharsets.UTF_8), "v".getBytes(StandardCharsets.UTF_8), fileNumber + 1);
+            writer.writeEntry(to.getBytes(StandardCharsets.UTF_8), "v".getBytes(StandardCharsets.UTF_8), fileNumber + 1);
+            writer.finish();
+            SSTableMetadata sstable = tableDirectory.allocateNewSSTable(level, key(from), key(to), new File(path).length(), path, fileNumber);
+            writer.applyStatsTo(sstable);
+            return sstable;
+        }
+    }
+
+    private static List<String> paths(TableDirectory tableDirectory, int level) {
+        return tableDirectory.getSSTablesAtLevel(level).stream().map(SSTableMetadata::getFilePath).sorted().toList();
+    }
+
+    @Test
+    void reopenRestoresFilesAndCounters() throws IOException {
+        TableDirectory tableDirectory = open();
+        SSTableMetadata a = writeTable(tableDirectory, 0, "a", "c");
+        SSTableMetadata b = writeTable(tableDirectory, 1, "d", "f");
+        SSTableMetadata c = writeTable(tableDirectory, 1, "g", "h");
+        tableDirectory.addSSTable(0, a);
+        tableDirectory.addSSTable(1, b);
+        tableDirectory.addSSTable(1, c);
+        tableDirectory.removeSSTables(1, List.of(b));
+        tableDirectory.allocateSequence();
+        long lastSequence = tableDirectory.getLastSequence();
+        int nextFileNumber = tableDirectory.getAndIncrementNextFileNumber();
+        // the number handed out above is only persisted with the next edit
+        tableDirectory.addSSTable(0, writeTable(tableDirectory, 0, "x", "y"));
+        tableDirectory.shutdown();
+
+        TableDirectory reopened = open();
+        try {
+            assertEquals(2, reopened.getSSTablesAtLevel(0).size());
+            assertEquals(List.of(c.getFilePath()), paths(reopened, 1));
+            assertTrue(reopened.getAndIncrementNextFileNumber() > nextFileNumber);
+            assertTrue(reopened.getLastSequence() >= lastSequence);
+            assertEquals(2, reopened.getSSTablesAtLevel(1).get(0).getEntryCount());
+        } finally {
+            reopened.shutdown();
+        }
+    }
+
+    @Test
+    void reopenAfterTornAppendKeepsEarlierEdits() throws IOException {
+        TableDirectory tableDirectory = open();
+        SSTableMetadata kept = writeTable(tableDirectory, 0, "a", "b");
+        SSTableMetadata torn = writeTable(tableDirectory, 0, "c", "d");
+        tableDirectory.addSSTable(0, kept);
+        tableDirectory.addSSTable(0, torn);
+        tableDirectory.shutdown();
+
+        // cut the last record short, as a crash partway through the append would
+        int manifestNumber = ManifestLog.currentManifestNumber(dir.toFile());
+        File manifest = dir.resolve("MANIFEST-" + manifestNumber).toFile();
+        try (RandomAccessFile file = new RandomAccessFile(manifest, "rw")) {
+            file.setLength(file.length() - 7);
+        }
+
+        TableDirectory reopened = open();
+        try {
+            assertEquals(List.of(kept.getFilePath()), paths(reopened, 0));
+            assertFalse(manifest.exists(), "replayed manifest is replaced by a fresh one");
+        } finally {
+            reopened.shutdown();
+        }
+    }
+
+    @Test
+    void removedFileIsDeletedOnlyOnceTheEditIsLogged() throws IOException {
+        TableDirectory tableDirectory = open();
+        SSTableMetadata a = writeTable(tableDirectory, 1, "a", "b");
+        SSTableMetadata b = writeTable(tableDirectory, 1, "c", "d");
+        tableDirectory.addSSTable(1, a);
+        tableDirectory.addSSTable(1, b);
+
+        // an edit that cannot reach the manifest changes nothing, in memory or on disk
+        tableDirectory.shutdown();
+        assertThrows(UncheckedIOException.class, () -> tableDirectory.removeSSTables(1, List.of(a)));
+        assertEquals(List.of(a.getFilePath(), b.getFilePath()), paths(tableDirectory, 1));
+        assertTrue(new File(a.getFilePath()).exists());
+
+        TableDirectory reopened = open();
+        try {
+            assertEquals(List.of(a.getFilePath(), b.getFilePath()), paths(reopened, 1));
+            reopened.removeSSTables(1, List.of(reopened.getSSTablesAtLevel(1).get(0)));
+            assertFalse(new File(a.getFilePath()).exists());
+        } finally {
+            reopened.shutdown();
+        }
+        TableDirectory again = open();
+        try {
+            assertEquals(List.of(b.getFilePath()), paths(again, 1));
+        } finally {
+            again.shutdown();
+        }
+    }
+
+    @Test
+    void rollsOverOnceTheManifestGrowsPastItsLimit() throws IOException {
+        TableDirectory tableDirectory = open();
+        SSTableMetadata live = writeTable(tableDirectory, 1, "a", "b");
+        tableDirectory.addSSTable(1, live);
+        int first = ManifestLog.currentManifestNumber(dir.toFile());
+
+        // files with huge keys come and go until the edits alone outgrow the limit
+        byte[] big = new byte[64 * 1024];
+        Arrays.fill(big, (byte) 'k');
+        long written = 0;
+        for (int i = 0; written <= ManifestLog.MAX_MANIFEST_BYTES; i++) {
+            String path = dir.resolve("gone-" + i + ".sst").toString();
+            SSTableMetadata gone = new SSTableMetadata(1000 + i, path, new ByteArrayWrapper(big), new ByteArrayWrapper(big), 1, false, 2);
+            tableDirectory.addSSTable(2, gone);
+            tableDirectory.removeSSTables(2, List.of(gone));
+            written += 2L * big.length;
+        }
+        int rolled = ManifestLog.currentManifestNumber(dir.toFile());
+        assertTrue(rolled > first);
+        assertFalse(dir.resolve("MANIFEST-" + first).toFile().exists());
+        assertTrue(dir.resolve("MANIFEST-" + rolled).toFile().length() < ManifestLog.MAX_MANIFEST_BYTES);
+        tableDirectory.shutdown();
+
+        TableDirectory reopened = open();
+        try {
+            assertEquals(List.of(live.getFilePath()), paths(reopened, 1));
+            assertTrue(reopened.getSSTablesAtLevel(2).isEmpty());
+        } finally {
+            reopened.shutdown();
+        }
+    }
+
+    @Test
+    void migratesLegacyJsonManifest() throws IOException {
+        // lay the files out with a throwaway directory, then describe them the way manifest.json used to
+        TableDirectory writer = open();
+        SSTableMetadata l0 = writeTable(writer, 0, "a", "c");
+        SSTableMetadata l1 = writeTable(writer, 1, "b", "z");
+        writer.shutdown();
+        for (File file : dir.toFile().listFiles()) {
+            if (file.getName().startsWith("MANIFEST-") || file.getName().equals("CURRENT")) {
+                Files.delete(file.toPath());
+            }
+        }
+        Gson gson = new Gson();
+        JsonArray levels = new JsonArray();
+        for (SSTableMetadata sstable : List.of(l0, l1)) {
+            JsonObject level = new JsonObject();
+            level.addProperty("level", sstable.getLevel());
+            level.addProperty("maxSize", 10L * 1024 * 1024);
+            level.addProperty("totalSize", sstable.getFileSize());
+            level.add("sstables", gson.toJsonTree(List.of(sstable)));
+            levels.add(level);
+        }
+        JsonObject manifest = new JsonObject();
+        manifest.addProperty("nextFileNumber", 17);
+        manifest.add("levels", levels);
+        Files.writeString(dir.resolve("manifest.json"), gson.toJson(manifest));
+
+        TableDirectory migrated = open();
+        try {
+            assertEquals(List.of(l0.getFilePath()), paths(migrated, 0));
+            assertEquals(List.of(l1.getFilePath()), paths(migrated, 1));
+            assertEquals(key("z"), migrated.getSSTablesAtLevel(1).get(0).getMaxKey());
+            assertEquals(17, migrated.getAndIncrementNextFileNumber());
+            assertFalse(dir.resolve("manifest.json").toFile().exists());
+            assertTrue(dir.resolve("manifest.json.migrated").toFile().exists());
+            assertTrue(ManifestLog.currentManifestNumber(dir.toFile()) > 0);
+        } finally {
+            migrated.shutdown();
+        }
+
+        // the binary manifest now stands on its own
+        TableDirectory reopened = open();
+        try {
+            assertEquals(List.of(l0.getFilePath()), paths(reopened, 0));
+            assertEquals(List.of(l1.getFilePath()), paths(reopened, 1));
+        } finally {
+            reopened.shutdown();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.lsmtdb.core.sstable.merger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.common.Value;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MergingIteratorTest {
+    private static final class Entry {
+        final ByteArrayWrapper key;
+        final long timestamp;
+        final int source;
+
+        Entry(ByteArrayWrapper key, long timestamp, int source) {
+            this.key = key;
+            this.timestamp = timestamp;
+            this.source = source;
+        }
+    }
+
+    // the order MergingIterator promises: key ascending, then newest first, then the lower source index
+    private static final Comparator<Entry> MERGE_ORDER = Comparator.<Entry, ByteArrayWrapper>comparing(e -> e.key)
+            .thenComparing(Comparator.comparingLong((Entry e) -> e.timestamp).reversed())
+            .thenComparingInt(e -> e.source);
+
+    // in memory source over entries already in merge order
+    private static final class ListSource implements KeyValueIterator {
+        final List<Entry> entries;
+        int cursor;
+
+        ListSource(List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor < entries.size();
+        }
+
+        @Override
+        public void next() {
+            if (!hasNext()) {
+                throw new IllegalStateException("no more elements");
+            }
+            cursor++;
+        }
+
+        // moves the source on the way skipCurrentBlock does, so the following next() reads past count entries
+        void skip(int count) {
+            cursor = Math.min(entries.size(), cursor + count);
+        }
+
+        Entry current() {
+            return entries.get(cursor - 1);
+        }
+
+        @Override
+        public ByteArrayWrapper getCurrentKey() {
+            return current().key;
+        }
+
+        @Override
+        public byte[] getCurrentValue() {
+            return current().key.getData();
+        }
+
+        @Override
+        public long getCurrentTimestamp() {
+            return current().timestamp;
+        }
+
+        @Override
+        public long getCurrentExpiresAt() {
+            return Value.NO_EXPIRY;
+        }
+
+        @Override
+        public boolean isCurrentMergeOperand() {
+            return false;
+        }
+    }
+
+    // keys from a small alphabet that includes bytes >= 0x80, so sources share keys and unsigned order matters
+    private static List<List<Entry>> randomSources(Random random) {
+        int sourceCount = random.nextInt(10);
+        List<List<Entry>> sources = new ArrayList<>();
+        for (int source = 0; source < sourceCount; source++) {
+            List<Entry> entries = new ArrayList<>();
+            int size = random.nextInt(4) == 0 ? 0 : random.nextInt(60);
+            for (int i = 0; i < size; i++) {
+                byte[] key = new byte[1 + random.nextInt(2)];
+                for (int j = 0; j < key.length; j++) {
+                    key[j] = (byte) (random.nextInt(6) * 0x30);
+                }
+                // a narrow timestamp range so equal keys across sources also tie on timestamp
+                entries.add(new Entry(new ByteArrayWrapper(key), random.nextInt(8), source));
+            }
+            entries.sort(MERGE_ORDER);
+            sources.add(entries);
+        }
+        return sources;
+    }
+
+    // reference merge: a linear scan over the next unread entry of every source
+    private static int nextSource(List<List<Entry>> sources, int[] read) {
+        int best = -1;
+        for (int i = 0; i < sources.size(); i++) {
+            if (read[i] < sources.get(i).size()
+                    && (best == -1 || MERGE_ORDER.compare(sources.get(i).get(read[i]), sources.get(best).get(read[best])) < 0)) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static ByteArrayWrapper runnerUpKey(List<List<Entry>> sources, int[] read, int current) {
+        ByteArrayWrapper smallest = null;
+        for (int i = 0; i < sources.size(); i++) {
+            if (i != current && read[i] < sources.get(i).size()) {
+                ByteArrayWrapper key = sources.get(i).get(read[i]).key;
+                if (smallest == null || key.compareTo(smallest) < 0) {
+                    smallest = key;
+                }
+            }
+        }
+        return smallest;
+    }
+
+    @Test
+    void mergesInKeyThenNewestFirstOrder() throws IOException {
+        Random random = new Random(31);
+        for (int round = 0; round < 500; round++) {
+            List<List<Entry>> sources = randomSources(random);
+            List<ListSource> iterators = new ArrayList<>();
+            List<Entry> expected = new ArrayList<>();
+            for (List<Entry> entries : sources) {
+                iterators.add(new ListSource(entries));
+                expected.addAll(entries);
+            }
+            expected.sort(MERGE_ORDER);
+
+            MergingIterator merging = new MergingIterator(iterators);
+            int[] read = new int[sources.size()];
+            for (Entry entry : expected) {
+                assertTrue(merging.hasNext(), "round " + round);
+                merging.next();
+                assertEquals(entry.key, merging.getCurrentKey(), "round " + round);
+                assertEquals(entry.timestamp, merging.getCurrentTimestamp(), "round " + round);
+                assertTrue(merging.getCurrentSource() == iterators.get(entry.source), "round " + round);
+                read[entry.source]++;
+                assertEquals(runnerUpKey(sources, read, entry.source), merging.peekRunnerUpKey(), "round " + round);
+            }
+            assertFalse(merging.hasNext(), "round " + round);
+        }
+    }
+
+    @Test
+    void replaysASourceMovedOnByTheCaller() throws IOException {
+        Random random = new Random(32);
+        for (int round = 0; round < 500; round++) {
+            List<List<Entry>> sources = randomSources(random);
+            List<ListSource> iterators = new ArrayList<>();
+            for (List<Entry> entries : sources) {
+                iterators.add(new ListSource(entries));
+            }
+
+            MergingIterator merging = new MergingIterator(iterators);
+            int[] read = new int[sources.size()];
+            int source;
+            while ((source = nextSource(sources, read)) != -1) {
+                Entry entry = sources.get(source).get(read[source]);
+                assertTrue(merging.hasNext(), "round " + round);
+                merging.next();
+                assertEquals(entry.key, merging.getCurrentKey(), "round " + round);
+                assertEquals(entry.timestamp, merging.getCurrentTimestamp(), "round " + round);
+                assertTrue(merging.getCurrentSource() == iterators.get(source), "round " + round);
+                read[source]++;
+                assertEquals(runnerUpKey(sources, read, source), merging.peekRunnerUpKey(), "round " + round);
+
+                // what the merger does on a block passthrough: the winning source skips ahead behind the merge's back
+                if (random.nextInt(3) == 0) {
+                    int skipped = random.nextInt(5);
+                    ((ListSource) merging.getCurrentSource()).skip(skipped);
+                    read[source] = Math.min(sources.get(source).size(), read[source] + skipped);
+                }
+            }
+            assertFalse(merging.hasNext(), "round " + round);
+        }
+    }
+}
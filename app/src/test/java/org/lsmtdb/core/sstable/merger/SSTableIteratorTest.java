@@ -0,0 +1,138 @@
+package org.lsmtdb.core.sstable.merger;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lsmtdb.common.ByteArrayWrapper;
+import org.lsmtdb.core.sstable.SSTableReader;
+import org.lsmtdb.core.sstable.util.SSTableConstants;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SSTableIteratorTest {
+    @TempDir
+    Path dir;
+
+    private static byte[] randomKey(Random random) {
+        byte[] key = new byte[1 + random.nextInt(6)];
+        random.nextBytes(key);
+        return key;
+    }
+
+    // an sstable of random keys spanning many index blocks, with the same contents kept in a TreeMap
+    private String writeTable(Random random, TreeMap<ByteArrayWrapper, byte[]> contents) throws IOException {
+        while (contents.size() < 3000) {
+            byte[] key = randomKey(random);
+            contents.put(new ByteArrayWrapper(key), key);
+        }
+        String path = dir.resolve("1.sst").toString();
+        try (SSTableStreamWriter writer = new SSTableStreamWriter(path)) {
+            long timestamp = 1;
+            for (Map.Entry<ByteArrayWrapper, byte[]> entry : contents.entrySet()) {
+                writer.writeEntry(entry.getKey().getData(), entry.getValue(), timestamp++);
+            }
+            writer.finish();
+        }
+        return path;
+    }
+
+    @Test
+    void iteratesInUnsignedKeyOrder() throws IOException {
+        TreeMap<ByteArrayWrapper, byte[]> contents = new TreeMap<>();
+        String path = writeTable(new Random(31), contents);
+        try (SSTableReader reader = new SSTableReader(path)) {
+            SSTableIterator iterator = new SSTableIterator(reader, null, null);
+            for (Map.Entry<ByteArrayWrapper, byte[]> entry : contents.entrySet()) {
+                assertTrue(iterator.hasNext());
+                iterator.next();
+                assertEquals(entry.getKey(), iterator.getCurrentKey());
+                assertArrayEquals(entry.getValue(), iterator.getCurrentValue());
+            }
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    @Test
+    void seekLandsOnTheCeilingKey() throws IOException {
+        Random random = new Random(32);
+        TreeMap<ByteArrayWrapper, byte[]> contents = new TreeMap<>();
+        String path = writeTable(random, contents);
+
+        // targets before the first key, after the last, on stored keys and between them
+        List<ByteArrayWrapper> targets = new ArrayList<>();
+        targets.add(new ByteArrayWrapper(new byte[0]));
+        targets.add(new ByteArrayWrapper(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}));
+        List<ByteArrayWrapper> keys = new ArrayList<>(contents.keySet());
+        for (int i = 0; i < 500; i++) {
+            targets.add(keys.get(random.nextInt(keys.size())));
+            targets.add(new ByteArrayWrapper(randomKey(random)));
+        }
+
+        try (SSTableReader reader = new SSTableReader(path)) {
+            SSTableIterator iterator = new SSTableIterator(reader, null, null);
+            for (ByteArrayWrapper target : targets) {
+                iterator.seek(target);
+                // the entries after the seek are exactly the tail of the reference from the target on, for a few steps
+                List<ByteArrayWrapper> expected = contents.tailMap(target, true).keySet().stream().limit(5).toList();
+                for (ByteArrayWrapper key : expected) {
+                    assertTrue(iterator.hasNext(), "seek to " + target);
+                    iterator.next();
+                    assertEquals(key, iterator.getCurrentKey(), "seek to " + target);
+                    assertArrayEquals(contents.get(key), iterator.getCurrentValue());
+                }
+                if (expected.size() < 5) {
+                    assertFalse(iterator.hasNext(), "seek to " + target);
+                }
+            }
+        }
+    }
+
+    private static void markSignedOrder(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.seek(file.length() - Long.BYTES);
+            file.writeLong(SSTableConstants.SIGNED_ORDER_FOOTER_MAGIC);
+        }
+    }
+
+    @Test
+    void refusesASignedOrderTableWithHighKeyBytes() throws IOException {
+        String path = writeTable(new Random(33), new TreeMap<>());
+        markSignedOrder(path);
+        assertThrows(IOException.class, () -> new SSTableReader(path));
+    }
+
+    @Test
+    void readsASignedOrderTableWhoseKeysAreBelow0x80() throws IOException {
+        // keys of 7 bit bytes sort the same either way, so the old file is usable as it is
+        Random random = new Random(34);
+        TreeMap<ByteArrayWrapper, byte[]> contents = new TreeMap<>();
+        while (contents.size() < 3000) {
+            byte[] key = randomKey(random);
+            for (int i = 0; i < key.length; i++) {
+                key[i] &= 0x7F;
+            }
+            contents.put(new ByteArrayWrapper(key), key);
+        }
+        String path = writeTable(random, contents);
+        markSignedOrder(path);
+        try (SSTableReader reader = new SSTableReader(path)) {
+            SSTableIterator iterator = new SSTableIterator(reader, null, null);
+            for (Map.Entry<ByteArrayWrapper, byte[]> entry : contents.entrySet()) {
+                assertTrue(iterator.hasNext());
+                iterator.next();
+                assertEquals(entry.getKey(), iterator.getCurrentKey());
+            }
+            assertFalse(iterator.hasNext());
+            for (ByteArrayWrapper key : contents.keySet()) {
+                assertArrayEquals(contents.get(key), reader.get(key.getData()));
+            }
+        }
+    }
+}